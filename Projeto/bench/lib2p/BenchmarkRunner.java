@@ -0,0 +1,136 @@
+package lib2p;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Small benchmark harness in the style of JMH's average-time mode, without dependencies.
+ *
+ * Each benchmark is run once per value of its parameter: a setup builds the state and returns the
+ * operation, which is warmed up for {@code -wi} iterations and then timed for {@code -i} iterations of
+ * {@code -t} ms each. Operations are called in batches that grow until a batch takes about a millisecond,
+ * so the clock is not read around tiny operations, and every result is written to a volatile field so the
+ * JIT cannot drop the work (a few ns per operation, the same for every run). The report gives the mean
+ * time per operation and its standard deviation over the measured iterations.
+ *
+ * Options: {@code [regex] [-wi N] [-i N] [-t ms] [-p name=v1,v2,...] [-csv file]}.
+ */
+final class BenchmarkRunner {
+
+    /** The operation being measured; its result is consumed so it cannot be optimised away. */
+    interface Op {
+        Object run() throws Exception;
+    }
+
+    /** Builds the state for one parameter value and returns the operation to measure. */
+    interface Setup {
+        Op create(int param) throws Exception;
+    }
+
+    private static final class Benchmark {
+        final String name;
+        final String param;
+        final int[] values;
+        final Setup setup;
+
+        Benchmark(String name, String param, int[] values, Setup setup) {
+            this.name = name;
+            this.param = param;
+            this.values = values;
+            this.setup = setup;
+        }
+    }
+
+    // resultados consumidos aqui: a escrita volatile impede a eliminação do trabalho
+    static volatile Object sink;
+
+    private final List<Benchmark> benchmarks = new ArrayList<>();
+    private final Map<String, int[]> overrides = new LinkedHashMap<>();
+    private Pattern filter = Pattern.compile(".*");
+    private int warmups = 3;
+    private int iterations = 5;
+    private long iterationMs = 1000;
+    private String csv;
+
+    BenchmarkRunner(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-wi": warmups = Integer.parseInt(args[++i]); break;
+                case "-i": iterations = Integer.parseInt(args[++i]); break;
+                case "-t": iterationMs = Long.parseLong(args[++i]); break;
+                case "-csv": csv = args[++i]; break;
+                case "-p": {
+                    String[] kv = args[++i].split("=", 2);
+                    overrides.put(kv[0], Arrays.stream(kv[1].split(",")).mapToInt(Integer::parseInt).toArray());
+                    break;
+                }
+                default: filter = Pattern.compile(args[i]);
+            }
+        }
+    }
+
+    /** Adds {@code name}, run once for each of {@code values} of {@code param} (overridable with -p). */
+    void add(String name, String param, int[] values, Setup setup) {
+        benchmarks.add(new Benchmark(name, param, values, setup));
+    }
+
+    void run() throws Exception {
+        List<String> rows = new ArrayList<>();
+        rows.add("benchmark,param,value,ns_per_op,stddev,ops");
+        System.out.printf(Locale.ROOT, "%-28s %-14s %16s %12s %12s%n", "Benchmark", "Param", "ns/op", "stddev", "ops");
+        for (Benchmark b : benchmarks) {
+            if (!filter.matcher(b.name).find()) continue;
+            for (int value : overrides.getOrDefault(b.param, b.values)) {
+                Op op = b.setup.create(value);
+                for (int i = 0; i < warmups; i++) iteration(op);
+                double[] ns = new double[iterations];
+                long ops = 0;
+                for (int i = 0; i < iterations; i++) {
+                    long[] r = iteration(op);
+                    ns[i] = (double) r[0] / r[1];
+                    ops += r[1];
+                }
+                double mean = Arrays.stream(ns).average().orElse(0);
+                double var = 0;
+                for (double x : ns) var += (x - mean) * (x - mean);
+                double stddev = iterations > 1 ? Math.sqrt(var / (iterations - 1)) : 0;
+                System.out.printf(Locale.ROOT, "%-28s %-14s %16.1f %12.1f %12d%n", b.name, b.param + "=" + value, mean, stddev, ops);
+                rows.add(String.format(Locale.ROOT, "%s,%s,%d,%.1f,%.1f,%d", b.name, b.param, value, mean, stddev, ops));
+            }
+        }
+        if (csv != null) writeCsv(rows);
+    }
+
+    /** One timed iteration: {elapsed ns, operations}. */
+    private long[] iteration(Op op) throws Exception {
+        long deadline = System.nanoTime() + iterationMs * 1_000_000;
+        long start = System.nanoTime();
+        long ops = 0;
+        int batch = 1;
+        while (true) {
+            long t0 = System.nanoTime();
+            for (int i = 0; i < batch; i++) sink = op.run();
+            long t1 = System.nanoTime();
+            ops += batch;
+            if (t1 >= deadline) return new long[]{t1 - start, ops};
+            if (t1 - t0 < 1_000_000 && batch < (1 << 20)) batch <<= 1;
+        }
+    }
+
+    private void writeCsv(List<String> rows) throws IOException {
+        try (PrintWriter w = new PrintWriter(Files.newBufferedWriter(Paths.get(csv), StandardCharsets.UTF_8))) {
+            for (String row : rows) w.println(row);
+        }
+        System.out.println("Resultados em " + csv);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,168 @@
+package lib2p;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Micro-benchmarks of the hashing, parsing and quorum hot paths of the leader and peers.
+ *
+ * Run from the project root after compiling src and bench to the same output directory, e.g.
+ * <pre>
+ *   javac -encoding UTF-8 -d out/bench src/lib2p/*.java bench/lib2p/*.java
+ *   java -cp out/bench lib2p.Benchmarks [regex] [-wi 3] [-i 5] [-t 1000] [-p cids=1000,1000000] [-csv results.csv]
+ * </pre>
+ * Results are mean ns per operation; compare the CSV of two builds to spot regressions.
+ */
+public class Benchmarks {
+
+    private static final int[] VECTOR_SIZES = {1_000, 10_000, 100_000, 1_000_000};
+    // CIDs por lote, como nos lotes de group commit
+    private static final int BATCH = 16;
+    private static final Map<Integer, List<String>> cidsBySize = new HashMap<>();
+
+    public static void main(String[] args) throws Exception {
+        BenchmarkRunner runner = new BenchmarkRunner(args);
+
+        // CID de um upload: chunks, hash de cada bloco e raiz Merkle (BlockStore.put); a partir da segunda
+        // operação os blocos já existem, como num upload repetido
+        runner.add("cid.put", "bytes", new int[]{4 * 1024, 256 * 1024, 4 * 1024 * 1024}, bytes -> {
+            Path dir = Files.createTempDirectory("bench-blocks");
+            dir.toFile().deleteOnExit();
+            BlockStore store = new BlockStore(dir);
+            byte[] data = new byte[bytes];
+            new Random(bytes).nextBytes(data);
+            return () -> store.put(new ByteArrayInputStream(data));
+        });
+
+        // Hash do vetor: árvore completa (arranque, snapshot) e incremental (um lote sobre o vetor committed)
+        runner.add("vector.hash.full", "cids", VECTOR_SIZES, n -> {
+            List<String> cids = cids(n);
+            return () -> VectorMerkleTree.of(cids).rootHex();
+        });
+        runner.add("vector.hash.batch", "cids", VECTOR_SIZES, n -> {
+            VectorMerkleTree tree = VectorMerkleTree.of(cids(n));
+            List<byte[]> batch = new ArrayList<>();
+            for (int i = 0; i < BATCH; i++) batch.add(BlockStore.fromHex(cid(n + i)));
+            return () -> {
+                MerkleAccumulator acc = tree.accumulator();
+                for (byte[] leaf : batch) acc.add(leaf);
+                return acc.rootHex();
+            };
+        });
+
+        // Cópia do vetor (padrão antigo: uma lista nova por atualização) vs snapshot do CidVector
+        runner.add("vector.copy", "cids", VECTOR_SIZES, n -> {
+            List<String> cids = cids(n);
+            return () -> new ArrayList<>(cids);
+        });
+        runner.add("vector.snapshot", "cids", VECTOR_SIZES, n -> {
+            CidVector vector = new CidVector();
+            vector.resetTo(cids(n));
+            return vector::snapshot;
+        });
+
+        // Pertença de um CID: procura linear numa lista vs índice do CidVector (metade presentes, metade não)
+        runner.add("vector.contains.list", "cids", VECTOR_SIZES, n -> {
+            List<String> cids = cids(n);
+            String[] probes = probes(n);
+            int[] i = {0};
+            return () -> cids.contains(probes[i[0]++ & (probes.length - 1)]);
+        });
+        runner.add("vector.contains.index", "cids", VECTOR_SIZES, n -> {
+            CidVector vector = new CidVector();
+            vector.resetTo(cids(n));
+            String[] probes = probes(n);
+            int[] i = {0};
+            return () -> vector.contains(probes[i[0]++ & (probes.length - 1)]);
+        });
+
+        // Mensagens: atualização tentativa com embeddings (ReceiveMessageHandler), commit em delta
+        // (CommitHandler) e confirmação "peerId:version:hash" (ConfirmHandler)
+        runner.add("parse.update", "docs", new int[]{1, BATCH, 256}, n -> {
+            List<DocumentUpdate.Entry> entries = new ArrayList<>();
+            Random random = new Random(n);
+            for (int i = 0; i < n; i++) {
+                float[] v = new float[EmbeddingModel.DIM];
+                for (int j = 0; j < v.length; j++) v[j] = random.nextFloat() - 0.5f;
+                entries.add(new DocumentUpdate.Entry(cid(i), EmbeddingModel.encode(v)));
+            }
+            String message = new DocumentUpdate(42, entries).toMessage();
+            return () -> DocumentUpdate.fromMessage(message);
+        });
+        runner.add("parse.commit", "delta", new int[]{1, BATCH, 256}, n -> {
+            String body = "42;41;" + cid(-1) + ";" + String.join(",", cids(n).subList(0, n));
+            return () -> Libp2pPeer.CommitMessage.parse(body);
+        });
+        runner.add("parse.confirmation", "peers", new int[]{3, 15, 101}, n -> {
+            String[] bodies = new String[n];
+            for (int i = 0; i < n; i++) bodies[i] = "peer" + i + ":42:" + cid(-1);
+            return () -> {
+                // o parsing de processConfirmation, uma confirmação de cada peer
+                int sum = 0;
+                for (String body : bodies) {
+                    Libp2pLeader.Confirmation c = Libp2pLeader.Confirmation.parse(body);
+                    sum += c.peerId.length() + c.version + c.hash.length();
+                }
+                return sum;
+            };
+        });
+
+        // Maioria: votação de uma versão inteira no QuorumTracker (proposta e uma confirmação de cada peer,
+        // um peer em cada dez divergente), incluindo os votos que chegam depois da maioria
+        runner.add("quorum.round", "peers", new int[]{3, 15, 101}, n -> {
+            List<String> peers = new ArrayList<>();
+            String[] hashes = new String[n];
+            for (int i = 0; i < n; i++) {
+                peers.add("peer" + i);
+                hashes[i] = i % 10 == 9 ? cid(-2 - i) : cid(-1);
+            }
+            return () -> {
+                QuorumTracker quorum = new QuorumTracker(peers);
+                for (int i = 0; i < n; i++) quorum.vote(peers.get(i), hashes[i]);
+                return quorum.decision();
+            };
+        });
+
+        runner.run();
+    }
+
+    /** {@code n} distinct CIDs (hex SHA-256, like real ones), shared by the benchmarks of the same size. */
+    private static List<String> cids(int n) {
+        int size = Math.max(n, 256);
+        return cidsBySize.computeIfAbsent(size, s -> {
+            List<String> cids = new ArrayList<>(s);
+            for (int i = 0; i < s; i++) cids.add(cid(i));
+            return cids;
+        });
+    }
+
+    /** 1024 lookups: every other one a CID of the vector, the rest absent. */
+    private static String[] probes(int n) {
+        Random random = new Random(n);
+        String[] probes = new String[1024];
+        for (int i = 0; i < probes.length; i++) probes[i] = i % 2 == 0 ? cid(random.nextInt(n)) : cid(n + 1 + i);
+        return probes;
+    }
+
+    private static String cid(int i) {
+        try {
+            byte[] d = MessageDigest.getInstance("SHA-256").digest(String.valueOf(i).getBytes(StandardCharsets.UTF_8));
+            char[] hex = new char[d.length * 2];
+            for (int j = 0; j < d.length; j++) {
+                hex[2 * j] = Character.forDigit((d[j] >> 4) & 0xf, 16);
+                hex[2 * j + 1] = Character.forDigit(d[j] & 0xf, 16);
+            }
+            return new String(hex);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
\ No newline at end of file
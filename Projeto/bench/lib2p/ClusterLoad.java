@@ -0,0 +1,406 @@
+package lib2p;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * End-to-end load test of a local cluster: starts a leader and N peers on loopback, drives an upload workload
+ * against the leader and reports throughput and latency distributions.
+ *
+ * The nodes keep their state in static fields, so each one runs in its own JVM, in its own directory (state,
+ * uploads, log) and with its own ports, set through the lib2p.* system properties of LibP2pConfig. Other
+ * {@code -Dlib2p.NAME=value} arguments are passed on to every node (e.g. -Dlib2p.GROUP_COMMIT_WINDOW_MS=5).
+ *
+ * Faults: the first {@code -slow K} peers run with FAULT_DELAY_MS = {@code -delay ms} and FAULT_DROP_RATE =
+ * {@code -drop p}; the last {@code -crash K} peers are killed {@code -crashAfter s} seconds into the workload.
+ *
+ * Throughput is measured from the first upload until every accepted upload is committed. Upload latency is
+ * measured here; upload-to-commit, propose-to-majority and per-peer confirmation lag come from the leader's
+ * /api/metrics. Usage, after compiling src and bench into one directory:
+ * <pre>
+ *   java -cp out/bench lib2p.ClusterLoad -peers 5 -uploads 2000 -concurrency 16 -size 8192 -slow 1 -delay 50 [-csv load.csv]
+ * </pre>
+ */
+public class ClusterLoad {
+
+    private int peers = 3;
+    private int uploads = 500;
+    private int concurrency = 8;
+    private int size = 4096;
+    private double rate = 0;
+    private int slow = 0;
+    private long delayMs = 0;
+    private double dropRate = 0;
+    private int crash = 0;
+    private long crashAfterSec = 5;
+    private long drainTimeoutSec = 60;
+    private int leaderPort = 19091;
+    private int listenPort = 40333;
+    private int peerBasePort = 18090;
+    private Path dir;
+    private boolean keep;
+    private String csv;
+    private final List<String> nodeProps = new ArrayList<>();
+
+    private final List<Process> processes = new ArrayList<>();
+    private final List<Process> peerProcesses = new ArrayList<>();
+
+    public static void main(String[] args) throws Exception {
+        ClusterLoad load = new ClusterLoad(args);
+        Runtime.getRuntime().addShutdownHook(new Thread(load::stopAll));
+        try {
+            load.run();
+        } finally {
+            load.stopAll();
+            if (!load.keep) load.deleteDir();
+        }
+    }
+
+    private ClusterLoad(String[] args) throws IOException {
+        for (int i = 0; i < args.length; i++) {
+            String a = args[i];
+            if (a.startsWith("-D")) {
+                nodeProps.add(a);
+                continue;
+            }
+            switch (a) {
+                case "-peers": peers = Integer.parseInt(args[++i]); break;
+                case "-uploads": uploads = Integer.parseInt(args[++i]); break;
+                case "-concurrency": concurrency = Integer.parseInt(args[++i]); break;
+                case "-size": size = Integer.parseInt(args[++i]); break;
+                case "-rate": rate = Double.parseDouble(args[++i]); break;
+                case "-slow": slow = Integer.parseInt(args[++i]); break;
+                case "-delay": delayMs = Long.parseLong(args[++i]); break;
+                case "-drop": dropRate = Double.parseDouble(args[++i]); break;
+                case "-crash": crash = Integer.parseInt(args[++i]); break;
+                case "-crashAfter": crashAfterSec = Long.parseLong(args[++i]); break;
+                case "-drainTimeout": drainTimeoutSec = Long.parseLong(args[++i]); break;
+                case "-port": leaderPort = Integer.parseInt(args[++i]); break;
+                case "-listenPort": listenPort = Integer.parseInt(args[++i]); break;
+                case "-peerBasePort": peerBasePort = Integer.parseInt(args[++i]); break;
+                case "-dir": dir = Paths.get(args[++i]); break;
+                case "-keep": keep = true; break;
+                case "-csv": csv = args[++i]; break;
+                default: throw new IllegalArgumentException("Opção desconhecida: " + a);
+            }
+        }
+        if (slow + crash > peers) throw new IllegalArgumentException("-slow + -crash maior do que -peers");
+        if (dir == null) dir = Files.createTempDirectory("cluster-load");
+    }
+
+    private void run() throws Exception {
+        System.out.println("Cluster em " + dir + ": líder + " + peers + " peers (" + slow + " lentos, " + crash + " a falhar)");
+        List<String> common = new ArrayList<>(Arrays.asList(
+                "-Dlib2p.LEADER_HOST=127.0.0.1",
+                "-Dlib2p.LEADER_HTTP_PORT=" + leaderPort,
+                "-Dlib2p.LISTEN_PORT=" + listenPort,
+                "-Dlib2p.PEER_HOST=127.0.0.1"));
+        common.addAll(nodeProps);
+
+        processes.add(start("leader", common, "lib2p.Libp2pLeader"));
+        waitFor(() -> get("/api/peers") != null, 30, "líder não arrancou");
+        for (int i = 1; i <= peers; i++) {
+            List<String> props = new ArrayList<>(common);
+            if (i <= slow) {
+                props.add("-Dlib2p.FAULT_DELAY_MS=" + delayMs);
+                props.add("-Dlib2p.FAULT_DROP_RATE=" + dropRate);
+            }
+            Process p = start("peer" + i, props, "lib2p.Libp2pPeer", "peer" + i, String.valueOf(peerBasePort + i));
+            processes.add(p);
+            peerProcesses.add(p);
+        }
+        waitFor(() -> metric(metrics(), "lib2p_leader_peers") >= peers, 60, "os peers não se registaram");
+        Thread.sleep(2000); // ligações persistentes e vizinhos de gossip
+
+        Map<String, Double> before = metrics();
+        double cidsBefore = metric(before, "lib2p_leader_vector_cids");
+        double versionBefore = metric(before, "lib2p_leader_committed_version");
+
+        long[] latencies = new long[uploads];
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger accepted = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        AtomicInteger retries = new AtomicInteger();
+        ExecutorService workers = Executors.newFixedThreadPool(concurrency);
+        if (crash > 0) {
+            Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "crash");
+                t.setDaemon(true);
+                return t;
+            }).schedule(this::crashPeers, crashAfterSec, TimeUnit.SECONDS);
+        }
+
+        long start = System.nanoTime();
+        for (int w = 0; w < concurrency; w++) {
+            workers.execute(() -> {
+                int i;
+                while ((i = next.getAndIncrement()) < uploads) {
+                    if (rate > 0) pace(start, i);
+                    long t0 = System.nanoTime();
+                    int code = upload(i, retries);
+                    if (code == 200) {
+                        latencies[i] = System.nanoTime() - t0;
+                        accepted.incrementAndGet();
+                    } else {
+                        latencies[i] = -1;
+                        failed.incrementAndGet();
+                    }
+                }
+            });
+        }
+        workers.shutdown();
+        workers.awaitTermination(1, TimeUnit.DAYS);
+        long uploaded = System.nanoTime();
+
+        // esperar pelo commit de todos os uploads aceites
+        double target = cidsBefore + accepted.get();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(drainTimeoutSec);
+        Map<String, Double> after = metrics();
+        while (metric(after, "lib2p_leader_vector_cids") < target && System.nanoTime() < deadline) {
+            Thread.sleep(20);
+            after = metrics();
+        }
+        long end = System.nanoTime();
+        report(latencies, accepted.get(), failed.get(), retries.get(), start, uploaded, end,
+                metric(after, "lib2p_leader_vector_cids") - cidsBefore,
+                metric(after, "lib2p_leader_committed_version") - versionBefore, after);
+    }
+
+    /** Uploads document {@code i} (unique random content); retries while the embedding queue is full. */
+    private int upload(int i, AtomicInteger retries) {
+        byte[] data = new byte[size];
+        ThreadLocalRandom.current().nextBytes(data);
+        byte[] id = ("load-" + i + "-" + System.nanoTime() + "\n").getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(id, 0, data, 0, Math.min(id.length, data.length));
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try {
+                HttpURLConnection conn = (HttpURLConnection) new URL("http://127.0.0.1:" + leaderPort
+                        + "/api/files/upload?filename=load-" + i + ".bin").openConnection();
+                conn.setRequestMethod("POST");
+                conn.setDoOutput(true);
+                conn.setConnectTimeout(5000);
+                conn.setReadTimeout(30000);
+                try (OutputStream os = conn.getOutputStream()) {
+                    os.write(data);
+                }
+                int code = conn.getResponseCode();
+                drain(conn);
+                if (code != 503) return code;
+            } catch (IOException e) {
+                // líder sobrecarregado: tentar outra vez
+            }
+            retries.incrementAndGet();
+            sleep(100);
+        }
+        return -1;
+    }
+
+    /** Waits until upload {@code i} is due at the configured rate. */
+    private void pace(long start, int i) {
+        long due = start + (long) (i * 1e9 / rate);
+        long wait = due - System.nanoTime();
+        if (wait > 0) sleep(wait / 1_000_000);
+    }
+
+    private void crashPeers() {
+        for (int i = peers - crash; i < peers; i++) {
+            peerProcesses.get(i).destroyForcibly();
+            System.out.println("peer" + (i + 1) + " terminado (crash)");
+        }
+    }
+
+    private void report(long[] latencies, int accepted, int failed, int retries, long start, long uploaded, long end,
+                        double committedDocs, double committedVersions, Map<String, Double> m) throws IOException {
+        double uploadSec = (uploaded - start) / 1e9;
+        double totalSec = (end - start) / 1e9;
+        long[] ok = Arrays.stream(latencies).filter(l -> l >= 0).sorted().toArray();
+
+        System.out.println();
+        System.out.printf(Locale.ROOT, "Uploads: %d aceites, %d falhados, %d repetidos (503) em %.2f s -> %.1f uploads/s%n",
+                accepted, failed, retries, uploadSec, accepted / uploadSec);
+        System.out.printf(Locale.ROOT, "Commits: %.0f documentos em %.0f versões em %.2f s -> %.1f documentos/s, %.1f versões/s%s%n",
+                committedDocs, committedVersions, totalSec, committedDocs / totalSec, committedVersions / totalSec,
+                committedDocs < accepted ? " (INCOMPLETO: " + (accepted - (long) committedDocs) + " sem commit)" : "");
+        System.out.printf(Locale.ROOT, "%-36s %10s %10s %10s %10s%n", "Latência (ms)", "p50", "p90", "p99", "p99.9");
+        System.out.printf(Locale.ROOT, "%-36s %10.2f %10.2f %10.2f %10.2f%n", "upload (cliente)",
+                pct(ok, 0.5), pct(ok, 0.9), pct(ok, 0.99), pct(ok, 0.999));
+        row(m, "upload -> commit", "lib2p_leader_upload_to_commit_seconds", "");
+        row(m, "proposta -> maioria", "lib2p_leader_majority_seconds", "");
+        for (int i = 1; i <= peers; i++) {
+            row(m, "confirmação peer" + i + (i <= slow ? " (lento)" : i > peers - crash ? " (crash)" : ""),
+                    "lib2p_leader_confirmation_lag_seconds", "peer=\"peer" + i + "\",");
+        }
+
+        if (csv != null) {
+            Path path = Paths.get(csv);
+            boolean header = !Files.exists(path);
+            try (PrintWriter w = new PrintWriter(Files.newBufferedWriter(path, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND))) {
+                if (header) {
+                    w.println("peers,uploads,concurrency,size,rate,slow,delay_ms,drop,crash,accepted,failed,"
+                            + "docs_per_sec,versions_per_sec,upload_p50_ms,upload_p99_ms,commit_p50_ms,commit_p99_ms,commit_p999_ms");
+                }
+                String q = "lib2p_leader_upload_to_commit_seconds{quantile=\"";
+                w.println(String.format(Locale.ROOT, "%d,%d,%d,%d,%.1f,%d,%d,%.3f,%d,%d,%d,%.1f,%.1f,%.2f,%.2f,%.2f,%.2f,%.2f",
+                        peers, uploads, concurrency, size, rate, slow, delayMs, dropRate, crash, accepted, failed,
+                        committedDocs / totalSec, committedVersions / totalSec, pct(ok, 0.5), pct(ok, 0.99),
+                        1000 * metric(m, q + "0.5\"}"), 1000 * metric(m, q + "0.99\"}"), 1000 * metric(m, q + "0.999\"}")));
+            }
+            System.out.println("Resultados acrescentados a " + csv);
+        }
+    }
+
+    private static void row(Map<String, Double> m, String label, String name, String labels) {
+        String p = name + "{" + labels + "quantile=\"";
+        System.out.printf(Locale.ROOT, "%-36s %10.2f %10.2f %10.2f %10.2f%n", label, 1000 * metric(m, p + "0.5\"}"),
+                1000 * metric(m, p + "0.9\"}"), 1000 * metric(m, p + "0.99\"}"), 1000 * metric(m, p + "0.999\"}"));
+    }
+
+    private static double pct(long[] sortedNanos, double q) {
+        if (sortedNanos.length == 0) return Double.NaN;
+        return sortedNanos[(int) Math.min(sortedNanos.length - 1, Math.ceil(q * sortedNanos.length) - 1)] / 1e6;
+    }
+
+    // ---- nós ----
+
+    private Process start(String name, List<String> props, String... mainAndArgs) throws IOException {
+        Path nodeDir = dir.resolve(name);
+        Files.createDirectories(nodeDir);
+        List<String> cmd = new ArrayList<>();
+        cmd.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        cmd.add("-cp");
+        cmd.add(absoluteClasspath());
+        cmd.addAll(props);
+        cmd.addAll(Arrays.asList(mainAndArgs));
+        return new ProcessBuilder(cmd).directory(nodeDir.toFile()).redirectErrorStream(true)
+                .redirectOutput(nodeDir.resolve(name + ".log").toFile()).start();
+    }
+
+    private static String absoluteClasspath() {
+        StringBuilder sb = new StringBuilder();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            if (sb.length() > 0) sb.append(File.pathSeparator);
+            sb.append(Paths.get(entry).toAbsolutePath());
+        }
+        return sb.toString();
+    }
+
+    private void stopAll() {
+        synchronized (processes) {
+            for (Process p : processes) p.destroyForcibly();
+            for (Process p : processes) {
+                try {
+                    p.waitFor(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    private void deleteDir() {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        } catch (IOException e) {
+            System.err.println("Não foi possível apagar " + dir + ": " + e.getMessage());
+        }
+    }
+
+    // ---- HTTP e métricas do líder ----
+
+    /** The leader's /api/metrics as "name{labels}" -> value (empty if the leader does not answer). */
+    private Map<String, Double> metrics() {
+        Map<String, Double> m = new HashMap<>();
+        String body = get("/api/metrics");
+        if (body == null) return m;
+        for (String line : body.split("\n")) {
+            if (line.startsWith("#") || line.isEmpty()) continue;
+            int sep = line.lastIndexOf(' ');
+            try {
+                m.put(line.substring(0, sep), Double.parseDouble(line.substring(sep + 1)));
+            } catch (NumberFormatException e) {
+                // amostra inválida: ignorada
+            }
+        }
+        return m;
+    }
+
+    private static double metric(Map<String, Double> m, String key) {
+        return m.getOrDefault(key, Double.NaN);
+    }
+
+    private String get(String path) {
+        try {
+            HttpURLConnection conn = (HttpURLConnection) new URL("http://127.0.0.1:" + leaderPort + path).openConnection();
+            conn.setConnectTimeout(1000);
+            conn.setReadTimeout(5000);
+            if (conn.getResponseCode() != 200) return null;
+            try (InputStream in = conn.getInputStream()) {
+                return new String(readAll(in), StandardCharsets.UTF_8);
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static void drain(HttpURLConnection conn) throws IOException {
+        InputStream in = conn.getErrorStream() != null ? conn.getErrorStream() : conn.getInputStream();
+        if (in != null) {
+            try (InputStream s = in) {
+                readAll(s);
+            }
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) > 0) out.write(buf, 0, n);
+        return out.toByteArray();
+    }
+
+    private interface Condition {
+        boolean holds() throws Exception;
+    }
+
+    private static void waitFor(Condition c, long seconds, String error) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        while (!c.holds()) {
+            if (System.nanoTime() > deadline) throw new IllegalStateException(error);
+            Thread.sleep(100);
+        }
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
\ No newline at end of file
@@ -5,17 +5,22 @@ import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import java.io.*;
 import java.net.InetSocketAddress;
-import java.nio.file.Files;
 import java.nio.file.Paths;
+import lib2p.BlockStore;
+import lib2p.NameIndex;
 
 public class FileUploadServer {
 
     private static final int PORT = 9090;
     private static final String UPLOAD_DIR = "uploads";
+    // Conteúdo guardado uma vez, por CID, no mesmo BlockStore do líder; os nomes ficam em uploads/names.idx
+    private static BlockStore store;
+    private static NameIndex names;
 
     public static void main(String[] args) throws Exception {
-        // Criar diretório de uploads se não existir
-        Files.createDirectories(Paths.get(UPLOAD_DIR));
+        // Criar diretórios de uploads se não existirem
+        store = new BlockStore(Paths.get(UPLOAD_DIR));
+        names = new NameIndex(Paths.get(UPLOAD_DIR, "names.idx"));
 
         // Bindar em 0.0.0.0
         HttpServer server = HttpServer.create(new InetSocketAddress("0.0.0.0", PORT), 0);
@@ -54,18 +59,25 @@ public class FileUploadServer {
                         filename = "ficheiro_" + System.currentTimeMillis();
                     }
 
-                    // Ler conteúdo do ficheiro
-                    InputStream is = exchange.getRequestBody();
-                    String filepath = UPLOAD_DIR + "/" + sanitizeFilename(filename);
-
-                    // Escrever ficheiro no disco
-                    Files.copy(is, Paths.get(filepath));
+                    // Partir em chunks e calcular o CID (raiz Merkle) como o líder, para names.idx ter um só tipo de CID
+                    String name = sanitizeFilename(filename);
+                    String cid;
+                    try (InputStream in = exchange.getRequestBody()) {
+                        cid = store.put(in);
+                    }
+                    String previous = names.put(name, cid);
+                    String filepath = store.dagPath(cid).toString();
+                    long size = 0;
+                    for (BlockStore.Link link : store.links(cid)) size += link.size;
 
-                    System.out.println("Ficheiro recebido: " + filename);
+                    System.out.println("Ficheiro recebido: " + filename + " -> " + cid
+                            + (previous != null && !previous.equals(cid) ? " (antes " + previous + ")" : ""));
                     System.out.println("Caminho: " + filepath);
-                    System.out.println("Tamanho: " + new File(filepath).length() + " bytes");
+                    System.out.println("Tamanho: " + size + " bytes");
 
-                    String response = "{\"status\": \"Ficheiro " + filename + " enviado com sucesso\", \"path\": \"" + filepath + "\"}";
+                    String response = "{\"status\": \"Ficheiro " + filename + " enviado com sucesso\", \"cid\": \"" + cid
+                            + "\", \"path\": \"" + filepath + "\", \"anterior\": "
+                            + (previous == null ? "null" : "\"" + previous + "\"") + "}";
                     sendResponse(exchange, 200, response);
 
                 } catch (Exception e) {
@@ -0,0 +1,225 @@
+package lib2p;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Copies documents into a local {@link BlockStore} from the nodes that have them, block by block (bitswap-style).
+ *
+ * A document's manifest (GET /api/dag/{cid}) is fetched first and checked against the CID, which is the Merkle
+ * root of its block hashes. Then the blocks not already here are requested in parallel (GET /api/blocks/{hash}).
+ * Block i starts i sources after the one that served the manifest (which has every block: nodes write the
+ * manifest last) and moves to the next source on any failure, so the load spreads over every node holding the
+ * document. Each block is checked against its hash before it is stored, and the manifest is written last, once
+ * every block is in place. At most {@code concurrency} requests are in flight in total, and each source has its
+ * own byte-rate limit. A document left incomplete is tried again later, for as long as it is still wanted.
+ */
+public class BlockFetcher {
+
+    private static final Metrics.Counter documents = Metrics.counter("lib2p_replication_documents_total",
+            "Documentos replicados neste nó (todos os blocos verificados)");
+    private static final Metrics.Counter blocks = Metrics.counter("lib2p_replication_blocks_total", "Blocos obtidos de outros nós");
+    private static final Metrics.Counter bytes = Metrics.counter("lib2p_replication_bytes_total", "Bytes de blocos obtidos de outros nós");
+    private static final Metrics.Counter invalid = Metrics.counter("lib2p_replication_invalid_total",
+            "Blocos ou manifestos recusados por não corresponderem ao hash");
+    private static final Metrics.Counter retries = Metrics.counter("lib2p_replication_retries_total",
+            "Documentos incompletos, a tentar de novo mais tarde");
+
+    private final BlockStore store;
+    private final Function<String, List<String>> sourcesOf;
+    private final Predicate<String> wanted;
+    private final long bytesPerSecondPerSource;
+    private final long retryMs;
+    private final ScheduledThreadPoolExecutor pool;
+    private final Map<String, RateLimiter> limiters = new ConcurrentHashMap<>();
+    // documentos pedidos e ainda por completar (o mesmo CID nunca é pedido duas vezes em simultâneo)
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+
+    /** A document whose blocks are being fetched. */
+    private static final class Download {
+        final String cid;
+        final List<BlockStore.Link> links;
+        final List<String> sources;
+        final AtomicInteger remaining;
+        volatile boolean failed;
+
+        Download(String cid, List<BlockStore.Link> links, List<String> sources, int blocks) {
+            this.cid = cid;
+            this.links = links;
+            this.sources = sources;
+            this.remaining = new AtomicInteger(blocks);
+        }
+    }
+
+    /**
+     * @param sourcesOf "host:port" of the nodes to ask for a CID, in order of preference
+     * @param wanted    whether a CID should still be fetched (checked again before each retry)
+     */
+    public BlockFetcher(BlockStore store, int concurrency, long bytesPerSecondPerSource, long retryMs,
+                        Function<String, List<String>> sourcesOf, Predicate<String> wanted) {
+        this.store = store;
+        this.sourcesOf = sourcesOf;
+        this.wanted = wanted;
+        this.bytesPerSecondPerSource = bytesPerSecondPerSource;
+        this.retryMs = retryMs;
+        AtomicInteger n = new AtomicInteger();
+        this.pool = new ScheduledThreadPoolExecutor(Math.max(1, concurrency), r -> {
+            Thread t = new Thread(r, "blocks-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /** Queues {@code cid} unless it is stored already, being fetched, or not wanted. */
+    public void fetch(String cid) {
+        if (store.hasDocument(cid) || !wanted.test(cid) || !pending.add(cid)) return;
+        pool.execute(() -> fetchDag(cid));
+    }
+
+    /** Documents queued or being fetched. */
+    public int pending() {
+        return pending.size();
+    }
+
+    private void fetchDag(String cid) {
+        List<String> sources = sourcesOf.apply(cid);
+        List<BlockStore.Link> links = null;
+        int from = 0;
+        for (; from < sources.size(); from++) {
+            String source = sources.get(from);
+            try {
+                byte[] body = download(source, "/api/dag/" + cid);
+                if (body == null) continue;
+                List<BlockStore.Link> l = BlockStore.parseLinks(Arrays.asList(new String(body, StandardCharsets.UTF_8).split("\n")));
+                if (l.isEmpty() || !BlockStore.rootOf(l).equals(cid)) {
+                    invalid.inc();
+                    System.err.println("Manifesto de " + cid + " recebido de " + source + " não corresponde ao CID");
+                    continue;
+                }
+                links = l;
+                break;
+            } catch (IOException | RuntimeException e) {
+                // origem em baixo ou resposta inválida: tentar a próxima
+            }
+        }
+        if (links == null) {
+            retryLater(cid, "manifesto não encontrado");
+            return;
+        }
+
+        // Blocos em falta (um bloco repetido no documento só é pedido uma vez)
+        Map<String, BlockStore.Link> missing = new LinkedHashMap<>();
+        for (BlockStore.Link l : links) {
+            if (!store.hasBlock(l.hash)) missing.putIfAbsent(l.hash, l);
+        }
+        if (missing.isEmpty()) {
+            complete(cid, links);
+            return;
+        }
+        Download d = new Download(cid, links, sources, missing.size());
+        int i = from;
+        for (BlockStore.Link l : missing.values()) {
+            int first = i++;
+            pool.execute(() -> fetchBlock(d, l, first));
+        }
+    }
+
+    private void fetchBlock(Download d, BlockStore.Link link, int first) {
+        boolean ok = false;
+        int n = d.sources.size();
+        for (int k = 0; k < n && !ok && !d.failed; k++) {
+            String source = d.sources.get((first + k) % n);
+            try {
+                limiter(source).acquire(link.size);
+                byte[] data = download(source, "/api/blocks/" + link.hash);
+                if (data == null) continue; // esta origem ainda não tem o bloco
+                if (!store.putBlock(link.hash, data)) {
+                    invalid.inc();
+                    System.err.println("Bloco " + link.hash + " recebido de " + source + " não corresponde ao hash");
+                    continue;
+                }
+                blocks.inc();
+                bytes.add(data.length);
+                ok = true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception e) {
+                // origem em baixo: tentar a próxima
+            }
+        }
+        if (!ok) d.failed = true;
+        if (d.remaining.decrementAndGet() > 0) return;
+        if (d.failed) {
+            retryLater(d.cid, "blocos em falta em todas as origens");
+        } else {
+            complete(d.cid, d.links);
+        }
+    }
+
+    private void complete(String cid, List<BlockStore.Link> links) {
+        try {
+            if (store.putDag(cid, links)) documents.inc();
+            pending.remove(cid);
+        } catch (IOException e) {
+            retryLater(cid, e.getMessage());
+        }
+    }
+
+    private void retryLater(String cid, String reason) {
+        retries.inc();
+        System.err.println("Documento " + cid + " incompleto (" + reason + ") — nova tentativa dentro de " + retryMs + " ms");
+        pool.schedule(() -> {
+            pending.remove(cid);
+            fetch(cid);
+        }, retryMs, TimeUnit.MILLISECONDS);
+    }
+
+    private RateLimiter limiter(String source) {
+        RateLimiter limiter = limiters.get(source);
+        if (limiter != null) return limiter;
+        return limiters.computeIfAbsent(source, s -> new RateLimiter(bytesPerSecondPerSource));
+    }
+
+    /**
+     * Body of a GET, or null if the source does not have it (any status other than 200). The body is always read
+     * to the end and the connection is not closed, so the next request to the same source reuses it (keep-alive).
+     */
+    private static byte[] download(String hostPort, String path) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL("http://" + hostPort + path).openConnection();
+        conn.setConnectTimeout(2000);
+        conn.setReadTimeout(10000);
+        try {
+            int code = conn.getResponseCode();
+            int length = conn.getContentLength();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(length > 0 ? length : 256);
+            try (InputStream in = code == 200 ? conn.getInputStream() : conn.getErrorStream()) {
+                if (in != null) {
+                    byte[] buf = new byte[8192];
+                    int r;
+                    while ((r = in.read(buf)) > 0) out.write(buf, 0, r);
+                }
+            }
+            return code == 200 ? out.toByteArray() : null;
+        } catch (IOException e) {
+            conn.disconnect();
+            throw e;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,295 @@
+package lib2p;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Content-addressed block store.
+ *
+ * Uploads are split into content-defined chunks (gear rolling hash), each chunk is stored once
+ * under {@code blocks/<hash>} and the document CID is the Merkle root over the chunk hashes.
+ * The list of chunks of a document (its DAG links) is kept in {@code dag/<cid>}.
+ *
+ * Leaves and internal nodes of the tree are hashed with different prefixes ({@link MerkleAccumulator}), so a
+ * CID is never the hash of any content: not even a single-chunk document has CID = SHA-256 of its bytes.
+ */
+public class BlockStore {
+
+    // Limites dos chunks: min 16 KiB, média ~64 KiB, max 256 KiB
+    static final int MIN_CHUNK = 16 * 1024;
+    static final int MAX_CHUNK = 256 * 1024;
+    // 16 bits a zero -> fronteira em média a cada 64 KiB (depende dos últimos 64 bytes)
+    private static final long BOUNDARY_MASK = 0xFFFF000000000000L;
+
+    // Tabela gear fixa (seed constante) para que todos os nós cortem nos mesmos pontos
+    private static final long[] GEAR = new long[256];
+    static {
+        Random random = new Random(0x5D7_6B10CL);
+        for (int i = 0; i < GEAR.length; i++) GEAR[i] = random.nextLong();
+    }
+
+    // Buffer direto (fixo) por thread: guarda o chunk corrente, memória constante por upload
+    private static final ThreadLocal<ByteBuffer> CHUNK_BUFFER =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(MAX_CHUNK));
+
+    private final Path root;
+    private final Path blocksDir;
+    private final Path dagDir;
+
+    /** A DAG link: chunk hash and its size in bytes. */
+    public static class Link {
+        public final String hash;
+        public final int size;
+
+        public Link(String hash, int size) {
+            this.hash = hash;
+            this.size = size;
+        }
+    }
+
+    public BlockStore(Path root) throws IOException {
+        this.root = root;
+        this.blocksDir = root.resolve("blocks");
+        this.dagDir = root.resolve("dag");
+        Files.createDirectories(blocksDir);
+        Files.createDirectories(dagDir);
+    }
+
+    /**
+     * Streams {@code is} through the chunker, storing every chunk not yet present, and returns
+     * the document CID (Merkle root). Reads the input once; memory use is bounded by MAX_CHUNK plus
+     * the chunk list. Content already stored (same CID) causes no disk writes at all.
+     */
+    public String put(InputStream is) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        MerkleAccumulator merkle = new MerkleAccumulator();
+        ByteBuffer buffer = CHUNK_BUFFER.get();
+        buffer.clear();
+
+        // Lista de chunks em memória (~70 bytes por chunk de 64 KiB): só vai para disco se o CID for novo
+        StringBuilder manifest = new StringBuilder();
+        try (ReadableByteChannel in = Channels.newChannel(is)) {
+            boolean eof = false;
+            while (!eof || buffer.position() > 0) {
+                if (!eof && buffer.hasRemaining()) {
+                    eof = in.read(buffer) < 0;
+                    if (!eof && buffer.hasRemaining()) continue;
+                }
+
+                // buffer cheio (ou fim dos dados): procurar a fronteira do próximo chunk
+                int filled = buffer.position();
+                int cut = findBoundary(buffer, filled);
+
+                Link link = storeChunk(buffer, cut, digest);
+                merkle.add(fromHex(link.hash));
+                manifest.append(link.hash).append(' ').append(link.size).append('\n');
+
+                // mover o resto para o início do buffer
+                buffer.limit(filled).position(cut);
+                buffer.compact();
+            }
+        }
+
+        if (merkle.size() == 0) {
+            // ficheiro vazio: um único chunk vazio
+            Link link = storeChunk(buffer, 0, digest);
+            merkle.add(fromHex(link.hash));
+            manifest.append(link.hash).append(" 0\n");
+        }
+
+        String cid = toHex(merkle.root());
+        Path target = dagDir.resolve(cid);
+        if (!Files.exists(target)) {
+            Path tmpManifest = Files.createTempFile(root, "dag-", ".tmp");
+            try {
+                Files.write(tmpManifest, manifest.toString().getBytes(StandardCharsets.UTF_8));
+                moveIfAbsent(tmpManifest, target);
+            } finally {
+                Files.deleteIfExists(tmpManifest);
+            }
+        }
+        return cid;
+    }
+
+    /** Gear rolling hash over buffer[0, filled); returns the cut point (filled if no boundary found). */
+    private static int findBoundary(ByteBuffer buffer, int filled) {
+        long fp = 0;
+        for (int i = 0; i < filled; i++) {
+            fp = (fp << 1) + GEAR[buffer.get(i) & 0xff];
+            if (i + 1 >= MIN_CHUNK && (fp & BOUNDARY_MASK) == 0) {
+                return i + 1;
+            }
+        }
+        return filled; // chunk máximo atingido ou fim dos dados
+    }
+
+    /** Hashes buffer[0, len) and writes it to blocks/ unless a block with that hash already exists. */
+    private Link storeChunk(ByteBuffer buffer, int len, MessageDigest digest) throws IOException {
+        ByteBuffer chunk = buffer.duplicate();
+        chunk.position(0).limit(len);
+        digest.update(chunk.duplicate());
+        String hash = toHex(digest.digest());
+
+        Path target = blockPath(hash);
+        if (!Files.exists(target)) {
+            Files.createDirectories(target.getParent());
+            Path tmp = Files.createTempFile(target.getParent(), "blk-", ".tmp");
+            try {
+                try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                    while (chunk.hasRemaining()) out.write(chunk);
+                }
+                moveIfAbsent(tmp, target);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        }
+        return new Link(hash, len);
+    }
+
+    private static void moveIfAbsent(Path tmp, Path target) throws IOException {
+        if (Files.exists(target)) return; // mesmo conteúdo já guardado
+        try {
+            Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileAlreadyExistsException ignored) {
+            // outro upload guardou o mesmo conteúdo entretanto
+        }
+    }
+
+    /** Returns the chunk links of a document, in order, or null if the CID is unknown. */
+    public List<Link> links(String cid) throws IOException {
+        Path manifest = dagDir.resolve(cid);
+        if (!Files.exists(manifest)) return null;
+        return parseLinks(Files.readAllLines(manifest, StandardCharsets.UTF_8));
+    }
+
+    /** Links from manifest lines "hash size" (the format of dag/<cid> and of /api/dag/<cid>). */
+    public static List<Link> parseLinks(List<String> lines) {
+        List<Link> links = new ArrayList<>();
+        for (String line : lines) {
+            if (line.isEmpty()) continue;
+            String[] parts = line.split(" ");
+            links.add(new Link(parts[0], Integer.parseInt(parts[1])));
+        }
+        return links;
+    }
+
+    // ---- réplicas: blocos e DAGs obtidos de outros nós, verificados antes de guardar ----
+
+    /** The CID of a document with these links (the Merkle root of the chunk hashes). */
+    public static String rootOf(List<Link> links) {
+        MerkleAccumulator merkle = new MerkleAccumulator();
+        for (Link l : links) merkle.add(fromHex(l.hash));
+        return toHex(merkle.root());
+    }
+
+    /** Stores a block fetched from another node; false (nothing written) if {@code data} does not hash to {@code hash}. */
+    public boolean putBlock(String hash, byte[] data) throws Exception {
+        if (!toHex(MessageDigest.getInstance("SHA-256").digest(data)).equals(hash)) return false;
+        Path target = blockPath(hash);
+        if (Files.exists(target)) return true;
+        Files.createDirectories(target.getParent());
+        Path tmp = Files.createTempFile(target.getParent(), "blk-", ".tmp");
+        try {
+            Files.write(tmp, data);
+            moveIfAbsent(tmp, target);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        return true;
+    }
+
+    /**
+     * Stores the manifest of a document whose blocks are all here (written last, so hasDocument means the
+     * content is complete); false if the links' Merkle root is not {@code cid}.
+     */
+    public boolean putDag(String cid, List<Link> links) throws IOException {
+        if (links.isEmpty() || !rootOf(links).equals(cid)) return false;
+        StringBuilder manifest = new StringBuilder();
+        for (Link l : links) manifest.append(l.hash).append(' ').append(l.size).append('\n');
+        Path target = dagDir.resolve(cid);
+        if (Files.exists(target)) return true;
+        Path tmp = Files.createTempFile(root, "dag-", ".tmp");
+        try {
+            Files.write(tmp, manifest.toString().getBytes(StandardCharsets.UTF_8));
+            moveIfAbsent(tmp, target);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        return true;
+    }
+
+    /** Streams the content of a document (its chunks in order, each opened when reached), or null if the CID is unknown. */
+    public InputStream open(String cid) throws IOException {
+        List<Link> links = links(cid);
+        if (links == null) return null;
+        Iterator<Link> it = links.iterator();
+        return new SequenceInputStream(new Enumeration<InputStream>() {
+            @Override
+            public boolean hasMoreElements() {
+                return it.hasNext();
+            }
+
+            @Override
+            public InputStream nextElement() {
+                try {
+                    return Files.newInputStream(blockPath(it.next().hash));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        });
+    }
+
+    public boolean hasDocument(String cid) {
+        return Files.exists(dagDir.resolve(cid));
+    }
+
+    public boolean hasBlock(String hash) {
+        return Files.exists(blockPath(hash));
+    }
+
+    /** blocks/<2 primeiros hex>/<hash>, para não ter um diretório gigante */
+    public Path blockPath(String hash) {
+        return blocksDir.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    public Path dagPath(String cid) {
+        return dagDir.resolve(cid);
+    }
+
+    static String toHex(byte[] hash) {
+        StringBuilder hexString = new StringBuilder();
+        for (byte b : hash) {
+            String hex = Integer.toHexString(0xff & b);
+            if (hex.length() == 1) hexString.append('0');
+            hexString.append(hex);
+        }
+        return hexString.toString();
+    }
+
+    static byte[] fromHex(String hex) {
+        byte[] out = new byte[hex.length() / 2];
+        for (int i = 0; i < out.length; i++) {
+            out[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return out;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,194 @@
+package lib2p;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Ordered, append-only vector of CIDs with an O(1) membership index.
+ *
+ * CIDs are stored as raw 32-byte SHA-256 digests packed in one array (instead of 64-char hex Strings),
+ * indexed by an open-addressing hash table of row numbers. Writers are serialized on this object;
+ * readers take a {@link Snapshot}, which never changes and needs no lock.
+ */
+public class CidVector {
+
+    private static final int DIGEST_SIZE = 32;
+
+    private byte[] digests = new byte[DIGEST_SIZE * 64];
+    private int[] table = new int[128]; // slot -> row + 1 (0 = vazio)
+    private int size;
+    private volatile Snapshot snapshot = new Snapshot(digests, table, 0);
+
+    /** Immutable view of the vector at some point: the first {@code size} rows. */
+    public static final class Snapshot {
+        private final byte[] digests;
+        private final int[] table;
+        private final int size;
+
+        private Snapshot(byte[] digests, int[] table, int size) {
+            this.digests = digests;
+            this.table = table;
+            this.size = size;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /** Hex CID at row {@code i}. */
+        public String get(int i) {
+            if (i < 0 || i >= size) throw new IndexOutOfBoundsException("row " + i + ", size " + size);
+            return BlockStore.toHex(Arrays.copyOfRange(digests, i * DIGEST_SIZE, (i + 1) * DIGEST_SIZE));
+        }
+
+        /** Raw 32-byte digest at row {@code i} (a copy). */
+        public byte[] digest(int i) {
+            if (i < 0 || i >= size) throw new IndexOutOfBoundsException("row " + i + ", size " + size);
+            return Arrays.copyOfRange(digests, i * DIGEST_SIZE, (i + 1) * DIGEST_SIZE);
+        }
+
+        public boolean contains(String cid) {
+            return contains(digestOf(cid));
+        }
+
+        public boolean contains(byte[] digest) {
+            return indexOf(digest) >= 0;
+        }
+
+        /** Row of {@code cid}, or -1. */
+        public int indexOf(String cid) {
+            return indexOf(digestOf(cid));
+        }
+
+        /** Row of {@code digest}, or -1. */
+        public int indexOf(byte[] digest) {
+            int mask = table.length - 1;
+            for (int slot = hash(digest) & mask; ; slot = (slot + 1) & mask) {
+                int row = table[slot] - 1;
+                // vazio, ou uma linha acrescentada depois deste snapshot: não está no snapshot
+                if (row < 0 || row >= size) return -1;
+                if (equalsAt(digests, row, digest)) return row;
+            }
+        }
+
+        /** Hex CIDs of rows [from, to). */
+        public List<String> toList(int from, int to) {
+            List<String> out = new ArrayList<>(Math.max(0, to - from));
+            for (int i = from; i < to; i++) out.add(get(i));
+            return out;
+        }
+
+        public List<String> toList() {
+            return toList(0, size);
+        }
+    }
+
+    /** Lock-free view of the current contents. */
+    public Snapshot snapshot() {
+        return snapshot;
+    }
+
+    public int size() {
+        return snapshot.size;
+    }
+
+    public boolean contains(String cid) {
+        return snapshot.contains(cid);
+    }
+
+    /** Appends {@code cid} unless already present. Returns true if it was added. */
+    public synchronized boolean add(String cid) {
+        boolean added = append(digestOf(cid));
+        publish();
+        return added;
+    }
+
+    /** Appends every CID not yet present, in order, and publishes once. Returns how many were added. */
+    public synchronized int addAll(Collection<String> cids) {
+        int added = 0;
+        for (String cid : cids) {
+            if (append(digestOf(cid))) added++;
+        }
+        publish();
+        return added;
+    }
+
+    /** Replaces the whole contents (full transfer / recovery). */
+    public synchronized void resetTo(Collection<String> cids) {
+        digests = new byte[DIGEST_SIZE * Math.max(64, cids.size())];
+        table = new int[tableSizeFor(cids.size())];
+        size = 0;
+        for (String cid : cids) append(digestOf(cid));
+        publish();
+    }
+
+    private boolean append(byte[] digest) {
+        if (snapshotOfWriter().indexOf(digest) >= 0) return false;
+        if ((size + 1) * DIGEST_SIZE > digests.length) {
+            // novo array: snapshots antigos continuam a ler o anterior
+            digests = Arrays.copyOf(digests, digests.length * 2);
+        }
+        System.arraycopy(digest, 0, digests, size * DIGEST_SIZE, DIGEST_SIZE);
+        size++;
+        if (size * 2 > table.length) {
+            rehash(table.length * 2);
+        } else {
+            insert(table, size - 1);
+        }
+        return true;
+    }
+
+    /** Writer's own view (includes unpublished appends). */
+    private Snapshot snapshotOfWriter() {
+        return new Snapshot(digests, table, size);
+    }
+
+    private void publish() {
+        snapshot = new Snapshot(digests, table, size);
+    }
+
+    private void rehash(int capacity) {
+        int[] newTable = new int[capacity];
+        for (int row = 0; row < size; row++) insert(newTable, row);
+        table = newTable;
+    }
+
+    private void insert(int[] t, int row) {
+        int mask = t.length - 1;
+        int slot = hashAt(digests, row) & mask;
+        while (t[slot] != 0) slot = (slot + 1) & mask;
+        t[slot] = row + 1;
+    }
+
+    private static int tableSizeFor(int n) {
+        int cap = 128;
+        while (cap < n * 2 + 2) cap <<= 1;
+        return cap;
+    }
+
+    private static byte[] digestOf(String cid) {
+        byte[] d = BlockStore.fromHex(cid);
+        if (d.length != DIGEST_SIZE) throw new IllegalArgumentException("CID inválido: " + cid);
+        return d;
+    }
+
+    // Os digests são SHA-256: os primeiros 4 bytes já são uniformes
+    private static int hash(byte[] d) {
+        return (d[0] & 0xff) << 24 | (d[1] & 0xff) << 16 | (d[2] & 0xff) << 8 | (d[3] & 0xff);
+    }
+
+    private static int hashAt(byte[] data, int row) {
+        int o = row * DIGEST_SIZE;
+        return (data[o] & 0xff) << 24 | (data[o + 1] & 0xff) << 16 | (data[o + 2] & 0xff) << 8 | (data[o + 3] & 0xff);
+    }
+
+    private static boolean equalsAt(byte[] data, int row, byte[] digest) {
+        int o = row * DIGEST_SIZE;
+        for (int i = 0; i < DIGEST_SIZE; i++) {
+            if (data[o + i] != digest[i]) return false;
+        }
+        return true;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,228 @@
+package lib2p;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Serves the content of a document from a {@link BlockStore}: GET (and HEAD) /api/files/{cid}; and, for peers
+ * replicating documents ({@link BlockFetcher}), a document's manifest on /api/dag/{cid} and single blocks on
+ * /api/blocks/{hash}.
+ *
+ * A CID names immutable content, so the ETag is the CID itself and responses may be cached forever;
+ * If-None-Match answers 304 once the document's manifest is found (an unknown CID is still 404), without
+ * touching the blocks. A single "Range: bytes=..." is honoured with 206 (several ranges get the whole
+ * document, as RFC 7233 allows). The body is sent block by block with {@link FileChannel#transferTo}, with a
+ * fixed Content-Length, and only the blocks that overlap the requested range are opened. The JDK HttpServer
+ * does not expose its socket, so the target is {@link Channels#newChannel} over the response stream, which
+ * copies through a per-channel byte[] of at most 8 KiB: the heap cost per request is that buffer, not the
+ * block size, but it is not a zero-copy send.
+ */
+public class ContentServer {
+
+    private static final Metrics.Counter requests = Metrics.counter("lib2p_files_requests_total", "Pedidos GET /api/files/{cid}");
+    private static final Metrics.Counter notModified = Metrics.counter("lib2p_files_not_modified_total",
+            "Pedidos respondidos com 304 (ETag igual ao CID)");
+    private static final Metrics.Counter bytesSent = Metrics.counter("lib2p_files_sent_bytes_total", "Bytes de conteúdo enviados");
+    private static final Metrics.Histogram sendTime = Metrics.timer("lib2p_files_send_seconds",
+            "Tempo a enviar o conteúdo (ou intervalo) pedido");
+
+    private ContentServer() {
+    }
+
+    /** The CID (or block hash) at the end of {@code path} (".../files/<cid>"), or null if it is not a hex SHA-256. */
+    public static String cidOf(String path) {
+        String cid = path.substring(path.lastIndexOf('/') + 1);
+        if (cid.length() != 64) return null;
+        for (int i = 0; i < cid.length(); i++) {
+            if (Character.digit(cid.charAt(i), 16) < 0) return null;
+        }
+        return cid.toLowerCase();
+    }
+
+    /** Answers a GET or HEAD for {@code cid} from {@code store}; 404 if the store does not have the document. */
+    public static void serve(HttpExchange exchange, BlockStore store, String cid) throws IOException {
+        requests.inc();
+        Headers headers = exchange.getResponseHeaders();
+        List<BlockStore.Link> links = store.links(cid);
+        if (links == null) {
+            send(exchange, 404, "Conteúdo não disponível: " + cid);
+            return;
+        }
+
+        // só depois de saber que o documento existe: "*" ou um ETag antigo não podem dar 304 a um CID desconhecido
+        String etag = "\"" + cid + "\"";
+        String inm = exchange.getRequestHeaders().getFirst("If-None-Match");
+        if (inm != null && (inm.trim().equals("*") || inm.contains(etag))) {
+            notModified.inc();
+            headers.add("ETag", etag);
+            exchange.sendResponseHeaders(304, -1);
+            exchange.close();
+            return;
+        }
+        long size = 0;
+        for (BlockStore.Link l : links) size += l.size;
+
+        long from = 0;
+        long to = size - 1;
+        int status = 200;
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        if (range != null) {
+            long[] r = parseRange(range, size);
+            if (r == null) {
+                headers.add("Content-Range", "bytes */" + size);
+                send(exchange, 416, "Intervalo inválido para " + size + " bytes: " + range);
+                return;
+            }
+            if (r.length == 2) {
+                from = r[0];
+                to = r[1];
+                status = 206;
+                headers.add("Content-Range", "bytes " + from + "-" + to + "/" + size);
+            }
+        }
+        long length = to - from + 1;
+        if (!hasBlocks(store, links, from, to)) {
+            // DAG conhecido mas blocos ainda em falta (réplica incompleta num peer)
+            send(exchange, 404, "Conteúdo não disponível: " + cid);
+            return;
+        }
+
+        headers.add("ETag", etag);
+        headers.add("Cache-Control", "public, max-age=31536000, immutable");
+        headers.add("Accept-Ranges", "bytes");
+        headers.add("Content-Type", "application/octet-stream");
+        if ("HEAD".equalsIgnoreCase(exchange.getRequestMethod())) {
+            headers.add("Content-Length", String.valueOf(length));
+            exchange.sendResponseHeaders(status, -1);
+            exchange.close();
+            return;
+        }
+
+        long start = System.nanoTime();
+        // comprimento 0 (documento vazio) tem de ir como -1: 0 significaria chunked
+        exchange.sendResponseHeaders(status, length == 0 ? -1 : length);
+        try (OutputStream os = exchange.getResponseBody();
+             WritableByteChannel out = Channels.newChannel(os)) {
+            long offset = 0; // início do bloco corrente no documento
+            for (BlockStore.Link l : links) {
+                long blockEnd = offset + l.size;
+                if (blockEnd > from && offset <= to) {
+                    long pos = Math.max(from, offset) - offset;
+                    long count = Math.min(to + 1, blockEnd) - offset - pos;
+                    try (FileChannel block = FileChannel.open(store.blockPath(l.hash), StandardOpenOption.READ)) {
+                        while (count > 0) {
+                            long n = block.transferTo(pos, count, out);
+                            if (n <= 0) throw new IOException("Bloco " + l.hash + " mais curto do que o indicado no DAG");
+                            pos += n;
+                            count -= n;
+                        }
+                    }
+                }
+                if (blockEnd > to) break;
+                offset = blockEnd;
+            }
+        }
+        bytesSent.add(length);
+        sendTime.recordSince(start);
+    }
+
+    /** Manifest of {@code cid} ("hash size" per line, in order), or 404 if the store does not have it. */
+    public static void serveDag(HttpExchange exchange, BlockStore store, String cid) throws IOException {
+        if (!store.hasDocument(cid)) {
+            send(exchange, 404, "DAG não disponível: " + cid);
+            return;
+        }
+        byte[] bytes = Files.readAllBytes(store.dagPath(cid));
+        exchange.getResponseHeaders().add("Content-Type", "text/plain; charset=UTF-8");
+        exchange.getResponseHeaders().add("Cache-Control", "public, max-age=31536000, immutable");
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    /** One block by hash, sent with transferTo like document content; 404 if the store does not have it. */
+    public static void serveBlock(HttpExchange exchange, BlockStore store, String hash) throws IOException {
+        if (!store.hasBlock(hash)) {
+            send(exchange, 404, "Bloco não disponível: " + hash);
+            return;
+        }
+        exchange.getResponseHeaders().add("Content-Type", "application/octet-stream");
+        exchange.getResponseHeaders().add("ETag", "\"" + hash + "\"");
+        exchange.getResponseHeaders().add("Cache-Control", "public, max-age=31536000, immutable");
+        try (FileChannel block = FileChannel.open(store.blockPath(hash), StandardOpenOption.READ)) {
+            long size = block.size();
+            exchange.sendResponseHeaders(200, size == 0 ? -1 : size);
+            try (OutputStream os = exchange.getResponseBody();
+                 WritableByteChannel out = Channels.newChannel(os)) {
+                long pos = 0;
+                while (pos < size) {
+                    long n = block.transferTo(pos, size - pos, out);
+                    if (n <= 0) throw new IOException("Bloco " + hash + " truncado");
+                    pos += n;
+                }
+            }
+            bytesSent.add(size);
+        }
+    }
+
+    /**
+     * The byte range of a "bytes=a-b", "bytes=a-" or "bytes=-n" header as {from, to}; an empty array to send the
+     * whole document (several ranges, or a unit other than bytes); null if the range cannot be satisfied.
+     */
+    static long[] parseRange(String header, long size) {
+        String h = header.trim();
+        if (!h.startsWith("bytes=") || h.indexOf(',') >= 0) return new long[0];
+        String spec = h.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) return new long[0];
+        try {
+            long from;
+            long to;
+            if (dash == 0) {
+                long suffix = Long.parseLong(spec.substring(1).trim());
+                if (suffix <= 0) return null;
+                from = Math.max(0, size - suffix);
+                to = size - 1;
+            } else {
+                from = Long.parseLong(spec.substring(0, dash).trim());
+                String end = spec.substring(dash + 1).trim();
+                to = end.isEmpty() ? size - 1 : Math.min(size - 1, Long.parseLong(end));
+                if (to < from) return end.isEmpty() ? null : new long[0];
+            }
+            return from >= size ? null : new long[]{from, to};
+        } catch (NumberFormatException e) {
+            return new long[0]; // cabeçalho mal formado: ignorado
+        }
+    }
+
+    /** True if every block overlapping bytes [from, to] is in the store. */
+    private static boolean hasBlocks(BlockStore store, List<BlockStore.Link> links, long from, long to) {
+        long offset = 0;
+        for (BlockStore.Link l : links) {
+            if (offset > to) break;
+            if (offset + l.size > from && !store.hasBlock(l.hash)) return false;
+            offset += l.size;
+        }
+        return true;
+    }
+
+    private static void send(HttpExchange exchange, int statusCode, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "text/plain; charset=UTF-8");
+        exchange.sendResponseHeaders(statusCode, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+}
\ No newline at end of file
@@ -1,14 +1,45 @@
 package lib2p;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A tentative update proposed by the leader: one version carrying one or more (cid, embedding) entries.
+ *
+ * Wire format: "version;cid1:embedding1,cid2:embedding2,..." (embedding may be empty).
+ * The legacy single-document format "version;cid;embedding" is still accepted by {@link #fromMessage}.
+ */
 public class DocumentUpdate {
     private int version;
-    private String cid;
-    private String embedding;
+    private List<Entry> entries;
+
+    /** One document in the update */
+    public static class Entry {
+        private final String cid;
+        private final String embedding;
+
+        public Entry(String cid, String embedding) {
+            this.cid = cid;
+            this.embedding = embedding;
+        }
+
+        public String getCid() {
+            return cid;
+        }
+
+        public String getEmbedding() {
+            return embedding;
+        }
+    }
 
     public DocumentUpdate(int version, String cid, String embedding) {
+        this(version, Collections.singletonList(new Entry(cid, embedding)));
+    }
+
+    public DocumentUpdate(int version, List<Entry> entries) {
         this.version = version;
-        this.cid = cid;
-        this.embedding = embedding;
+        this.entries = entries;
     }
 
     // Getters and setters
@@ -20,20 +51,62 @@ public class DocumentUpdate {
         this.version = version;
     }
 
-    public String getCid() {
-        return cid;
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    public void setEntries(List<Entry> entries) {
+        this.entries = entries;
     }
 
-    public void setCid(String cid) {
-        this.cid = cid;
+    /** CID of the first entry (single-document updates) */
+    public String getCid() {
+        return entries.isEmpty() ? null : entries.get(0).getCid();
     }
 
+    /** Embedding of the first entry (single-document updates) */
     public String getEmbedding() {
-        return embedding;
+        return entries.isEmpty() ? null : entries.get(0).getEmbedding();
     }
 
-    public void setEmbedding(String embedding) {
-        this.embedding = embedding;
+    /** Serializes to "version;cid1:embedding1,cid2:embedding2,..." */
+    public String toMessage() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(version).append(';');
+        for (int i = 0; i < entries.size(); i++) {
+            Entry e = entries.get(i);
+            if (i > 0) sb.append(',');
+            sb.append(e.getCid()).append(':');
+            if (e.getEmbedding() != null) sb.append(e.getEmbedding());
+        }
+        return sb.toString();
+    }
+
+    /** Parses {@link #toMessage()} output (or the legacy "version;cid;embedding"). Throws on bad input. */
+    public static DocumentUpdate fromMessage(String message) {
+        String[] parts = message.trim().split(";", 3);
+        if (parts.length < 2) {
+            throw new IllegalArgumentException("Formato da mensagem de atualização inválido: " + message);
+        }
+        int version = Integer.parseInt(parts[0]);
+
+        List<Entry> entries = new ArrayList<>();
+        if (parts.length == 3) {
+            // formato antigo: version;cid;embedding
+            entries.add(new Entry(parts[1], parts[2].trim()));
+        } else {
+            for (String item : parts[1].split(",")) {
+                if (item.isEmpty()) continue;
+                int sep = item.indexOf(':');
+                if (sep < 0) {
+                    entries.add(new Entry(item, null));
+                } else {
+                    String embedding = item.substring(sep + 1);
+                    entries.add(new Entry(item.substring(0, sep), embedding.isEmpty() ? null : embedding));
+                }
+            }
+        }
+        return new DocumentUpdate(version, entries);
     }
 
     // toString() for easy printing
@@ -41,8 +114,8 @@ public class DocumentUpdate {
     public String toString() {
         return "DocumentUpdate{" +
                 "version=" + version +
-                ", cid='" + cid + '\'' +
-                ", embedding='" + embedding + '\'' +
+                ", entries=" + entries.size() +
+                ", firstCid='" + getCid() + '\'' +
                 '}';
     }
-}
+}
\ No newline at end of file
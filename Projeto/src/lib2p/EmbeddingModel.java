@@ -0,0 +1,127 @@
+package lib2p;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Deterministic local embedding model: feature hashing of the document's terms.
+ *
+ * The text is split into lower-case word tokens; every word and every pair of adjacent words is hashed
+ * (FNV-1a, 64 bits) to one of EMBEDDING_DIM coordinates with a hash-derived sign, weighted by
+ * 1 + ln(term frequency), and the vector is L2-normalised. Every node computes the same vector for the
+ * same bytes, so no external service is needed and embeddings can be checked anywhere.
+ *
+ * On the wire (DocumentUpdate, logs, snapshots) an embedding is the Base64 of its float32 values,
+ * little-endian, which never contains the separators of those formats.
+ */
+public final class EmbeddingModel {
+
+    public static final int DIM = LibP2pConfig.EMBEDDING_DIM;
+
+    private static final float BIGRAM_WEIGHT = 0.5f;
+
+    private EmbeddingModel() {
+    }
+
+    /** Embedding of the first EMBEDDING_MAX_BYTES of {@code in} (read as UTF-8). */
+    public static float[] embed(InputStream in) throws IOException {
+        byte[] buf = new byte[LibP2pConfig.EMBEDDING_MAX_BYTES];
+        int n = 0;
+        int r;
+        while (n < buf.length && (r = in.read(buf, n, buf.length - n)) > 0) n += r;
+        return embed(new String(buf, 0, n, StandardCharsets.UTF_8));
+    }
+
+    public static float[] embed(String text) {
+        Map<String, Integer> unigrams = new HashMap<>();
+        Map<String, Integer> bigrams = new HashMap<>();
+        String previous = null;
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean word = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (word && start < 0) start = i;
+            if (!word && start >= 0) {
+                if (i - start >= 2) {
+                    String token = text.substring(start, i).toLowerCase(Locale.ROOT);
+                    unigrams.merge(token, 1, Integer::sum);
+                    if (previous != null) bigrams.merge(previous + ' ' + token, 1, Integer::sum);
+                    previous = token;
+                }
+                start = -1;
+            }
+        }
+
+        float[] v = new float[DIM];
+        add(v, unigrams, 1f);
+        add(v, bigrams, BIGRAM_WEIGHT);
+        double norm = 0;
+        for (float x : v) norm += x * x;
+        if (norm > 0) {
+            float inv = (float) (1 / Math.sqrt(norm));
+            for (int i = 0; i < DIM; i++) v[i] *= inv;
+        }
+        return v;
+    }
+
+    private static void add(float[] v, Map<String, Integer> terms, float weight) {
+        for (Map.Entry<String, Integer> e : terms.entrySet()) {
+            long h = fnv1a(e.getKey());
+            int index = (int) ((h >>> 1) % DIM);
+            float sign = (h & 1) == 0 ? 1f : -1f;
+            v[index] += sign * weight * (float) (1 + Math.log(e.getValue()));
+        }
+    }
+
+    private static long fnv1a(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /** Base64 of the float32 values (little-endian). */
+    public static String encode(float[] v) {
+        ByteBuffer bb = ByteBuffer.allocate(v.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+        bb.asFloatBuffer().put(v);
+        return Base64.getEncoder().encodeToString(bb.array());
+    }
+
+    /** A query vector: DIM floats separated by commas/whitespace, or the Base64 wire format; null if neither. */
+    public static float[] parse(String body) {
+        if (body.isEmpty()) return null;
+        String[] parts = body.replace('[', ' ').replace(']', ' ').trim().split("[,\\s]+");
+        if (parts.length == 1) return decode(body);
+        if (parts.length != DIM) return null;
+        float[] v = new float[parts.length];
+        try {
+            for (int i = 0; i < parts.length; i++) v[i] = Float.parseFloat(parts[i]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return v;
+    }
+
+    /** Inverse of {@link #encode}; null if {@code s} is not an encoded DIM-dimensional vector. */
+    public static float[] decode(String s) {
+        if (s == null || s.isEmpty()) return null;
+        byte[] bytes;
+        try {
+            bytes = Base64.getDecoder().decode(s);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (bytes.length != DIM * 4) return null;
+        float[] v = new float[DIM];
+        ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(v);
+        return v;
+    }
+}
\ No newline at end of file
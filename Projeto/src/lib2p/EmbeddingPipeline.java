@@ -0,0 +1,105 @@
+package lib2p;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Computes document embeddings off the HTTP threads.
+ *
+ * Uploaded CIDs wait in a bounded queue; each worker takes up to {@code batchSize} of them at a time,
+ * reads and embeds them ({@link EmbeddingModel}) and hands the finished batch to {@code sink} in one call.
+ * When the queue is full {@link #submit} refuses the CID, so callers can push back instead of piling up work.
+ */
+public class EmbeddingPipeline {
+
+    /** Opens the content of a document, or returns null if it is unknown. */
+    public interface Loader {
+        InputStream open(String cid) throws IOException;
+    }
+
+    private final BlockingQueue<String> queue;
+    private final int batchSize;
+    private final Loader loader;
+    private final Consumer<List<DocumentUpdate.Entry>> sink;
+    private final AtomicInteger inProgress = new AtomicInteger();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    public EmbeddingPipeline(int workers, int capacity, int batchSize, Loader loader,
+                             Consumer<List<DocumentUpdate.Entry>> sink) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.batchSize = batchSize;
+        this.loader = loader;
+        this.sink = sink;
+        for (int i = 1; i <= workers; i++) {
+            Thread t = new Thread(this::work, "embedding-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /** Queues {@code cid}; false if the queue is full. */
+    public boolean submit(String cid) {
+        return queue.offer(cid);
+    }
+
+    /** Documents waiting for a worker. */
+    public int queueDepth() {
+        return queue.size();
+    }
+
+    /** Documents being embedded right now. */
+    public int inProgress() {
+        return inProgress.get();
+    }
+
+    public long completed() {
+        return completed.get();
+    }
+
+    public long failed() {
+        return failed.get();
+    }
+
+    private void work() {
+        List<String> cids = new ArrayList<>(batchSize);
+        while (true) {
+            try {
+                cids.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(cids, batchSize - 1);
+            inProgress.addAndGet(cids.size());
+            List<DocumentUpdate.Entry> entries = new ArrayList<>(cids.size());
+            for (String cid : cids) {
+                String embedding = null;
+                try (InputStream in = loader.open(cid)) {
+                    if (in == null) throw new IOException("documento desconhecido");
+                    embedding = EmbeddingModel.encode(EmbeddingModel.embed(in));
+                    completed.incrementAndGet();
+                } catch (IOException | RuntimeException e) {
+                    // o documento segue sem embedding: continua a entrar no vetor
+                    failed.incrementAndGet();
+                    System.err.println("Erro ao calcular embedding de " + cid + ": " + e.getMessage());
+                }
+                entries.add(new DocumentUpdate.Entry(cid, embedding));
+            }
+            try {
+                sink.accept(entries);
+            } catch (RuntimeException e) {
+                System.err.println("Erro ao entregar lote de embeddings: " + e.getMessage());
+            } finally {
+                inProgress.addAndGet(-cids.size());
+                cids.clear();
+            }
+        }
+    }
+}
\ No newline at end of file
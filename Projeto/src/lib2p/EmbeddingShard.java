@@ -0,0 +1,163 @@
+package lib2p;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * The embeddings a peer holds for one shard ({@link ShardRing}): the committed CIDs of the shard that have an
+ * embedding, each with a row of its own {@link EmbeddingStore} and an {@link HnswIndex} over those rows.
+ *
+ * Rows are in arrival order (commits, then embeddings fetched from other nodes when the shard is gained),
+ * so appending never moves a row and the index grows with the store. Mutations and {@link #view()} are
+ * made under the owner's vector lock; searches and indexing work on a {@link View} without locks.
+ */
+public class EmbeddingShard {
+
+    public final int id;
+    private final Path dir;
+    private final CidVector cids = new CidVector();
+    private final EmbeddingStore store;
+    private volatile HnswIndex index;
+    // falso até os embeddings em falta (shard novo, commit completo, arranque) terem sido pedidos
+    private volatile boolean ready;
+
+    /** CIDs and rows of the shard at one point: consistent with each other, never change. */
+    public static final class View {
+        public final CidVector.Snapshot cids;
+        public final EmbeddingStore.Rows rows;
+
+        View(CidVector.Snapshot cids, EmbeddingStore.Rows rows) {
+            this.cids = cids;
+            this.rows = rows;
+        }
+    }
+
+    public EmbeddingShard(int id, Path dir) throws IOException {
+        this.id = id;
+        this.dir = dir;
+        this.store = new EmbeddingStore(dir);
+    }
+
+    public View view() {
+        return new View(cids.snapshot(), store.rows());
+    }
+
+    public int size() {
+        return cids.size();
+    }
+
+    public boolean contains(String cid) {
+        return cids.contains(cid);
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    public void setReady(boolean ready) {
+        this.ready = ready;
+    }
+
+    /** Appends {@code cid} with its embedding; ignored if the CID is already here or the embedding is null. */
+    public void add(String cid, String embedding) {
+        if (embedding == null || embedding.isEmpty() || !cids.add(cid)) return;
+        store.put(cids.size() - 1, embedding);
+    }
+
+    /**
+     * Keeps only {@code vector}'s CIDs (full commit): each keeps its current embedding or takes the one in
+     * {@code embeddings}; CIDs with neither are left out (and fetched again by the next sync).
+     */
+    public void replace(Collection<String> vector, Function<String, String> embeddings) {
+        CidVector.Snapshot old = cids.snapshot();
+        List<String> kept = new ArrayList<>();
+        List<String> values = new ArrayList<>();
+        for (String cid : vector) {
+            String e = embeddings.apply(cid);
+            if ((e != null && !e.isEmpty()) || old.contains(cid)) {
+                kept.add(cid);
+                values.add(e);
+            }
+        }
+        try {
+            store.replace(kept.size(), values::get, i -> old.indexOf(kept.get(i)));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        cids.resetTo(kept);
+    }
+
+    /** Embedding of {@code cid} in the wire format, or null if the shard does not have it. */
+    public static String encoded(View v, String cid) {
+        int row = v.cids.indexOf(cid);
+        return row < 0 ? null : v.rows.encoded(row);
+    }
+
+    // ---- índice ----
+
+    /** Indexes the rows of {@code v} not indexed yet (a new generation of the store starts a new index). */
+    public void index(View v) {
+        HnswIndex idx = index;
+        if (idx == null || idx.rows() != v.rows) {
+            idx = new HnswIndex(v.rows, LibP2pConfig.HNSW_M, LibP2pConfig.HNSW_EF_CONSTRUCTION);
+            index = idx;
+        }
+        for (int row = idx.indexedRows(); row < v.cids.size(); row++) idx.insert(row);
+    }
+
+    /** Loads the saved index if it still matches the shard's rows. */
+    public void loadIndex() {
+        View v = view();
+        index = HnswIndex.load(indexPath(), v.rows, v.cids);
+    }
+
+    /** Saves the index (only if it belongs to the current generation of {@code v}). */
+    public void saveIndex(View v) throws IOException {
+        HnswIndex idx = index;
+        if (idx != null && idx.rows() == v.rows) idx.save(indexPath(), v.cids);
+    }
+
+    // ---- pesquisa ----
+
+    /**
+     * Top-k of {@code v} by similarity to {@code query} (rows of the view, best first). Cosine searches use the
+     * HNSW index plus an exact scan of the rows not indexed yet; {@code exact} or dot product scan every row.
+     */
+    public List<SimilaritySearch.Hit> search(View v, float[] query, int k, int ef, boolean cosine, boolean exact) {
+        HnswIndex idx = index;
+        if (!cosine || exact || idx == null || idx.rows() != v.rows) {
+            return SimilaritySearch.topK(v.rows, v.cids.size(), query, k, cosine);
+        }
+        int indexed = Math.min(idx.indexedRows(), v.cids.size());
+        List<SimilaritySearch.Hit> hits = new ArrayList<>();
+        for (SimilaritySearch.Hit hit : idx.search(query, k, ef)) {
+            if (hit.row < indexed) hits.add(hit); // indexadas depois desta leitura: entram pela parte exata
+        }
+        // linhas ainda por indexar: pesquisa exata só nessas
+        hits.addAll(SimilaritySearch.topK(v.rows, indexed, v.cids.size(), query, k, true));
+        hits.sort((a, b) -> Float.compare(b.score, a.score));
+        return hits.size() > k ? new ArrayList<>(hits.subList(0, k)) : hits;
+    }
+
+    /** Deletes the shard's files (the shard was assigned to other peers). */
+    public void delete() {
+        store.close();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path p : files) Files.deleteIfExists(p);
+            Files.deleteIfExists(dir);
+        } catch (IOException e) {
+            System.err.println("Não foi possível apagar " + dir + ": " + e.getMessage());
+        }
+    }
+
+    private Path indexPath() {
+        return dir.resolve("hnsw.bin");
+    }
+}
\ No newline at end of file
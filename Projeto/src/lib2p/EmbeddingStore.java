@@ -0,0 +1,194 @@
+package lib2p;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.function.IntFunction;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Off-heap embedding store: packed float32 rows (little-endian, EMBEDDING_DIM floats each) in a
+ * memory-mapped file, so vectors live in the OS page cache instead of the Java heap.
+ *
+ * Row {@code i} holds the embedding of row {@code i} of the committed {@link CidVector}, so the vector
+ * (packed digests plus its hash index) is also the CID -> row index. A row with no embedding is all zeros.
+ * Commits append rows; {@link #replace} (full commit) writes a new generation file and switches to it,
+ * so a {@link Rows} taken earlier (e.g. by a snapshot being written) keeps reading a stable mapping.
+ *
+ * The file is a cache of state that the snapshot and the log already hold: it is rebuilt on every start.
+ */
+public class EmbeddingStore {
+
+    public static final int ROW_BYTES = EmbeddingModel.DIM * 4;
+    // 65536 linhas por segmento mapeado (96 MiB com 384 dimensões): cada MappedByteBuffer fica abaixo de 2 GiB
+    static final int SEGMENT_ROWS = 1 << 16;
+    private static final long SEGMENT_BYTES = (long) SEGMENT_ROWS * ROW_BYTES;
+
+    private final Path dir;
+    private int generation;
+    private volatile Rows rows;
+
+    /** One generation of the file: rows are read through views of its mapped segments. */
+    public static final class Rows {
+        private final FileChannel channel;
+        private final List<MappedByteBuffer> segments = new ArrayList<>();
+
+        private Rows(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        /** Row {@code row} as a view over the mapping (no copy). Valid while this generation is referenced. */
+        public FloatBuffer view(int row) {
+            return slice(row).asFloatBuffer();
+        }
+
+        /**
+         * Float view of the whole segment {@code index} (rows [index * SEGMENT_ROWS, (index + 1) * SEGMENT_ROWS)),
+         * for scans that read many rows without creating a view per row.
+         */
+        FloatBuffer segmentView(int index) {
+            return segment(index).duplicate().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+        }
+
+        /** True if the row holds an embedding (is not all zeros). */
+        public boolean has(int row) {
+            ByteBuffer b = slice(row);
+            int i = 0;
+            for (; i + 8 <= ROW_BYTES; i += 8) {
+                if (b.getLong(i) != 0) return true;
+            }
+            // com DIM ímpar sobra um float no fim da linha
+            return i < ROW_BYTES && b.getInt(i) != 0;
+        }
+
+        /** Row {@code row} in the wire format of {@link EmbeddingModel#encode}, or null if it is empty. */
+        public String encoded(int row) {
+            if (!has(row)) return null;
+            byte[] bytes = new byte[ROW_BYTES];
+            slice(row).get(bytes);
+            return Base64.getEncoder().encodeToString(bytes);
+        }
+
+        private ByteBuffer slice(int row) {
+            ByteBuffer b = segment(row / SEGMENT_ROWS).duplicate();
+            b.position((row % SEGMENT_ROWS) * ROW_BYTES);
+            b.limit(b.position() + ROW_BYTES);
+            return b.slice().order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        private synchronized MappedByteBuffer segment(int index) {
+            try {
+                // mapear um segmento novo aumenta o ficheiro (esparso) até ao fim do segmento
+                while (segments.size() <= index) {
+                    segments.add(channel.map(FileChannel.MapMode.READ_WRITE, segments.size() * SEGMENT_BYTES, SEGMENT_BYTES));
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Não foi possível mapear o segmento " + index + " de embeddings", e);
+            }
+            return segments.get(index);
+        }
+
+        private void write(int row, byte[] bytes) {
+            slice(row).put(bytes);
+        }
+
+        private void copy(int row, Rows from, int fromRow) {
+            slice(row).put(from.slice(fromRow));
+        }
+
+        private void close() {
+            try {
+                channel.close(); // os segmentos já mapeados continuam válidos
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    public EmbeddingStore(Path dir) throws IOException {
+        this.dir = dir;
+        Files.createDirectories(dir);
+        try (DirectoryStream<Path> old = Files.newDirectoryStream(dir, "embeddings-*.bin")) {
+            for (Path p : old) deleteQuietly(p);
+        }
+        this.rows = open(++generation);
+    }
+
+    /** Current generation. */
+    public Rows rows() {
+        return rows;
+    }
+
+    /** Stores {@code encoded} ({@link EmbeddingModel#encode}) at {@code row}; anything else leaves the row empty. */
+    public synchronized void put(int row, String encoded) {
+        if (encoded == null) return;
+        byte[] bytes;
+        try {
+            bytes = Base64.getDecoder().decode(encoded);
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+        if (bytes.length == ROW_BYTES) rows.write(row, bytes);
+    }
+
+    /**
+     * Rewrites all rows for a new vector of {@code size} rows in a new generation: row {@code i} gets
+     * {@code embedding.apply(i)} if not null, otherwise old row {@code previousRow.applyAsInt(i)} (if >= 0).
+     */
+    public synchronized void replace(int size, IntFunction<String> embedding, IntUnaryOperator previousRow)
+            throws IOException {
+        Rows old = rows;
+        Rows next = open(generation + 1);
+        for (int i = 0; i < size; i++) {
+            String e = embedding.apply(i);
+            byte[] bytes = null;
+            if (e != null) {
+                try {
+                    bytes = Base64.getDecoder().decode(e);
+                } catch (IllegalArgumentException ignored) {
+                }
+            }
+            if (bytes != null && bytes.length == ROW_BYTES) {
+                next.write(i, bytes);
+            } else {
+                int from = previousRow.applyAsInt(i);
+                if (from >= 0 && old.has(from)) next.copy(i, old, from);
+            }
+        }
+        rows = next;
+        old.close();
+        deleteQuietly(file(generation));
+        generation++;
+    }
+
+    /** Closes the current file (its mapped segments stay readable until they are garbage collected). */
+    public synchronized void close() {
+        rows.close();
+    }
+
+    private Rows open(int gen) throws IOException {
+        return new Rows(FileChannel.open(file(gen), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE));
+    }
+
+    private Path file(int gen) {
+        return dir.resolve(String.format("embeddings-%08d.bin", gen));
+    }
+
+    private static void deleteQuietly(Path p) {
+        try {
+            Files.deleteIfExists(p);
+        } catch (IOException e) {
+            // Windows não apaga ficheiros ainda mapeados: fica para o próximo arranque
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,380 @@
+package lib2p;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Long-lived, length-framed, multiplexed connections between nodes (leader-peer and peer-peer), over NIO.
+ *
+ * Frame: [int length][byte type][long id][payload], where length covers type..payload.
+ *   HELLO    payload = UTF-8 id of the dialing node (first frame on a new connection)
+ *   REQUEST  payload = [short routeLength][route UTF-8][body UTF-8]
+ *   RESPONSE payload = [int status][body UTF-8], same id as the request
+ *
+ * Either side can send requests on the same connection. One selector thread does all socket I/O;
+ * requests run on a worker pool. Frames queued while the socket is busy are written together with a
+ * single gathering write, so many small updates and confirmations share one syscall.
+ */
+public class FrameTransport implements Closeable {
+
+    private static final byte HELLO = 1;
+    private static final byte REQUEST = 2;
+    private static final byte RESPONSE = 3;
+    private static final int HEADER = 4 + 1 + 8;
+    private static final int MAX_FRAME = 64 * 1024 * 1024;
+    private static final int MAX_GATHER = 256;
+
+    /** Handles a request from {@code from} on {@code route}; the response is sent when the future completes. */
+    public interface Handler {
+        CompletableFuture<Libp2pNode.Response> handle(String from, String route, String body) throws Exception;
+    }
+
+    private final String localId;
+    private final Handler handler;
+    private final Selector selector;
+    private final ExecutorService workers;
+    private final ScheduledThreadPoolExecutor timer;
+    private final Queue<Runnable> ioTasks = new ConcurrentLinkedQueue<>();
+    private final Map<String, Connection> connections = new ConcurrentHashMap<>();
+    private final AtomicLong nextId = new AtomicLong();
+    private final Thread ioThread;
+    private volatile boolean open = true;
+
+    private final class Connection {
+        final SocketChannel channel;
+        final boolean dialed;
+        volatile String remoteId;
+        volatile String retired; // motivo, depois de substituída
+        SelectionKey key;
+        ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+        final Queue<ByteBuffer> out = new ConcurrentLinkedQueue<>();
+        final ArrayDeque<ByteBuffer> writing = new ArrayDeque<>(); // só o thread de I/O
+        final AtomicBoolean flushScheduled = new AtomicBoolean();
+        final Map<Long, CompletableFuture<Libp2pNode.Response>> pending = new ConcurrentHashMap<>();
+
+        Connection(SocketChannel channel, String remoteId) {
+            this.channel = channel;
+            this.dialed = remoteId != null;
+            this.remoteId = remoteId;
+        }
+
+        /** Id of the node that opened this connection. */
+        String dialer() {
+            return dialed ? localId : remoteId;
+        }
+    }
+
+    public FrameTransport(String localId, int workerThreads, Handler handler) throws IOException {
+        this.localId = localId;
+        this.handler = handler;
+        this.selector = Selector.open();
+        this.workers = Executors.newFixedThreadPool(workerThreads, daemon("transport-worker"));
+        this.timer = new ScheduledThreadPoolExecutor(1, daemon("transport-timer"));
+        this.timer.setRemoveOnCancelPolicy(true);
+        this.ioThread = new Thread(this::ioLoop, "transport-io");
+        this.ioThread.setDaemon(true);
+        this.ioThread.start();
+    }
+
+    /** Accepts connections on {@code port}; the remote id comes from the HELLO frame. */
+    public void listen(int port) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        server.bind(new InetSocketAddress("0.0.0.0", port));
+        server.configureBlocking(false);
+        runOnIoThread(() -> {
+            try {
+                server.register(selector, SelectionKey.OP_ACCEPT);
+            } catch (ClosedChannelException e) {
+                System.err.println("Transporte: não foi possível escutar na porta " + port);
+            }
+        });
+    }
+
+    /** Opens a connection to {@code remoteId} at host:port (blocking connect) and introduces this node. */
+    public void connect(String remoteId, String host, int port) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        channel.socket().connect(new InetSocketAddress(host, port), 3000);
+        Connection conn = register(channel, remoteId);
+        send(conn, frame(HELLO, 0, localId.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    public boolean isConnected(String remoteId) {
+        Connection conn = connections.get(remoteId);
+        return conn != null && conn.channel.isOpen();
+    }
+
+    /** Ids of the nodes with an open connection (dialed or accepted). */
+    public Set<String> connectedIds() {
+        Set<String> ids = new HashSet<>();
+        for (Map.Entry<String, Connection> e : connections.entrySet()) {
+            if (e.getValue().channel.isOpen()) ids.add(e.getKey());
+        }
+        return ids;
+    }
+
+    /** Sends a request; the future completes with the response, or exceptionally on timeout / disconnect. */
+    public CompletableFuture<Libp2pNode.Response> request(String remoteId, String route, String body, long timeoutMs) {
+        CompletableFuture<Libp2pNode.Response> future = new CompletableFuture<>();
+        Connection conn = connections.get(remoteId);
+        if (conn == null) {
+            future.completeExceptionally(new IOException("Sem ligação a " + remoteId));
+            return future;
+        }
+        long id = nextId.incrementAndGet();
+        byte[] r = route.getBytes(StandardCharsets.UTF_8);
+        byte[] b = body.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(2 + r.length + b.length);
+        payload.putShort((short) r.length).put(r).put(b);
+
+        conn.pending.put(id, future);
+        ScheduledFuture<?> timeout = timer.schedule(() -> {
+            if (conn.pending.remove(id) != null) {
+                future.completeExceptionally(new TimeoutException("Sem resposta de " + remoteId + " em " + timeoutMs + " ms"));
+                closeIfDrained(conn);
+            }
+        }, timeoutMs, TimeUnit.MILLISECONDS);
+        future.whenComplete((resp, err) -> timeout.cancel(false));
+        send(conn, frame(REQUEST, id, payload.array()));
+        return future;
+    }
+
+    @Override
+    public void close() {
+        open = false;
+        selector.wakeup();
+        for (Connection conn : connections.values()) closeConnection(conn, "transporte parado");
+        workers.shutdown();
+        timer.shutdown();
+    }
+
+    // ---- I/O thread ----
+
+    private void ioLoop() {
+        while (open) {
+            try {
+                selector.select();
+                Runnable task;
+                while ((task = ioTasks.poll()) != null) task.run();
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) {
+                        SocketChannel channel = ((ServerSocketChannel) key.channel()).accept();
+                        if (channel != null) register(channel, null);
+                        continue;
+                    }
+                    Connection conn = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) read(conn);
+                        if (key.isValid() && key.isWritable()) flush(conn);
+                    } catch (IOException | RuntimeException e) {
+                        closeConnection(conn, e.getMessage());
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Transporte: erro no selector: " + e.getMessage());
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private Connection register(SocketChannel channel, String remoteId) throws IOException {
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+        Connection conn = new Connection(channel, remoteId);
+        if (remoteId != null) replace(remoteId, conn);
+        runOnIoThread(() -> {
+            try {
+                conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+            } catch (ClosedChannelException e) {
+                closeConnection(conn, "canal fechado");
+            }
+        });
+        return conn;
+    }
+
+    /**
+     * Makes {@code conn} the connection to {@code remoteId}. When two nodes dial each other at the same time each
+     * end sees two crossed connections; both keep the one dialed by the lower node id, so one link survives. The
+     * other is retired: no new requests go through it, and it closes once its pending requests are answered.
+     */
+    private void replace(String remoteId, Connection conn) {
+        Connection loser;
+        String reason;
+        synchronized (connections) {
+            Connection old = connections.get(remoteId);
+            if (old == conn) return;
+            if (old == null) {
+                connections.put(remoteId, conn);
+                return;
+            }
+            if (old.channel.isOpen() && old.dialed != conn.dialed) {
+                boolean keepOld = old.dialer().compareTo(conn.dialer()) < 0;
+                loser = keepOld ? conn : old;
+                reason = "ligação cruzada, mantida a aberta por " + (keepOld ? old : conn).dialer();
+            } else {
+                loser = old;
+                reason = "substituída por nova ligação";
+            }
+            if (loser == old) connections.put(remoteId, conn);
+        }
+        loser.retired = reason;
+        closeIfDrained(loser);
+    }
+
+    private void closeIfDrained(Connection conn) {
+        if (conn.retired != null && conn.pending.isEmpty()) closeConnection(conn, conn.retired);
+    }
+
+    private void read(Connection conn) throws IOException {
+        int n = conn.channel.read(conn.in);
+        if (n < 0) throw new IOException("ligação fechada pelo outro lado");
+        conn.in.flip();
+        while (conn.in.remaining() >= 4) {
+            int length = conn.in.getInt(conn.in.position());
+            if (length < 9 || length > MAX_FRAME) throw new IOException("frame inválido (" + length + " bytes)");
+            if (conn.in.remaining() < 4 + length) {
+                if (4 + length > conn.in.capacity()) {
+                    ByteBuffer bigger = ByteBuffer.allocate(4 + length);
+                    bigger.put(conn.in);
+                    conn.in = bigger;
+                    return; // já está em modo de escrita
+                }
+                break;
+            }
+            conn.in.getInt();
+            byte type = conn.in.get();
+            long id = conn.in.getLong();
+            byte[] payload = new byte[length - 9];
+            conn.in.get(payload);
+            dispatch(conn, type, id, payload);
+        }
+        conn.in.compact();
+    }
+
+    private void dispatch(Connection conn, byte type, long id, byte[] payload) {
+        if (type == HELLO) {
+            conn.remoteId = new String(payload, StandardCharsets.UTF_8);
+            replace(conn.remoteId, conn);
+            System.out.println("Transporte: ligação de " + conn.remoteId + " (" + conn.channel.socket().getRemoteSocketAddress() + ")");
+        } else if (type == RESPONSE) {
+            CompletableFuture<Libp2pNode.Response> future = conn.pending.remove(id);
+            if (future != null) {
+                ByteBuffer bb = ByteBuffer.wrap(payload);
+                int status = bb.getInt();
+                future.complete(new Libp2pNode.Response(status, new String(payload, 4, payload.length - 4, StandardCharsets.UTF_8)));
+                closeIfDrained(conn);
+            }
+        } else if (type == REQUEST) {
+            ByteBuffer bb = ByteBuffer.wrap(payload);
+            int routeLength = bb.getShort() & 0xFFFF;
+            String route = new String(payload, 2, routeLength, StandardCharsets.UTF_8);
+            String body = new String(payload, 2 + routeLength, payload.length - 2 - routeLength, StandardCharsets.UTF_8);
+            workers.execute(() -> {
+                CompletableFuture<Libp2pNode.Response> response;
+                try {
+                    response = handler.handle(conn.remoteId, route, body);
+                } catch (Exception e) {
+                    response = CompletableFuture.completedFuture(new Libp2pNode.Response(500, "Erro: " + e.getMessage()));
+                }
+                // uma resposta adiada é enviada por quem completar o future, sem ocupar o worker entretanto
+                response.whenComplete((r, err) -> {
+                    Libp2pNode.Response resp = err == null ? r : new Libp2pNode.Response(500, "Erro: " + err.getMessage());
+                    byte[] b = resp.body.getBytes(StandardCharsets.UTF_8);
+                    ByteBuffer out = ByteBuffer.allocate(4 + b.length);
+                    out.putInt(resp.code).put(b);
+                    send(conn, frame(RESPONSE, id, out.array()));
+                });
+            });
+        }
+    }
+
+    /** Queues a frame; the first frame queued on an idle connection schedules one flush on the I/O thread. */
+    private void send(Connection conn, ByteBuffer frame) {
+        conn.out.add(frame);
+        if (conn.flushScheduled.compareAndSet(false, true)) {
+            runOnIoThread(() -> {
+                try {
+                    flush(conn);
+                } catch (IOException e) {
+                    closeConnection(conn, e.getMessage());
+                }
+            });
+        }
+    }
+
+    // Junta tudo o que está na fila numa escrita "gathering"; o que não couber no socket fica para OP_WRITE
+    private void flush(Connection conn) throws IOException {
+        while (true) {
+            ByteBuffer b;
+            while (conn.writing.size() < MAX_GATHER && (b = conn.out.poll()) != null) conn.writing.add(b);
+            if (conn.writing.isEmpty()) {
+                conn.flushScheduled.set(false);
+                // um send() pode ter entrado entre o poll e o set(false)
+                if (conn.out.isEmpty() || !conn.flushScheduled.compareAndSet(false, true)) break;
+                continue;
+            }
+            ByteBuffer[] batch = conn.writing.toArray(new ByteBuffer[0]);
+            conn.channel.write(batch);
+            while (!conn.writing.isEmpty() && !conn.writing.peek().hasRemaining()) conn.writing.poll();
+            if (!conn.writing.isEmpty()) {
+                // socket cheio: continuar quando voltar a aceitar escrita
+                if (conn.key != null) conn.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+        }
+        if (conn.key != null && conn.key.isValid()) conn.key.interestOps(SelectionKey.OP_READ);
+    }
+
+    private void closeConnection(Connection conn, String reason) {
+        if (conn.key != null) conn.key.cancel();
+        try {
+            conn.channel.close();
+        } catch (IOException ignored) {
+        }
+        if (conn.remoteId != null && connections.remove(conn.remoteId, conn)) {
+            System.err.println("Transporte: ligação a " + conn.remoteId + " fechada (" + reason + ")");
+        }
+        for (Long id : new ArrayList<>(conn.pending.keySet())) {
+            CompletableFuture<Libp2pNode.Response> future = conn.pending.remove(id);
+            if (future != null) future.completeExceptionally(new IOException("ligação fechada: " + reason));
+        }
+    }
+
+    private void runOnIoThread(Runnable task) {
+        ioTasks.add(task);
+        selector.wakeup();
+    }
+
+    private static ByteBuffer frame(byte type, long id, byte[] payload) {
+        ByteBuffer frame = ByteBuffer.allocate(HEADER + payload.length);
+        frame.putInt(1 + 8 + payload.length).put(type).putLong(id).put(payload);
+        frame.flip();
+        return frame;
+    }
+
+    private static ThreadFactory daemon(String name) {
+        AtomicLong n = new AtomicLong();
+        return r -> {
+            Thread t = new Thread(r, name + "-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
\ No newline at end of file
@@ -0,0 +1,444 @@
+package lib2p;
+
+import java.io.*;
+import java.nio.FloatBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * HNSW (hierarchical navigable small world) graph over the rows of an {@link EmbeddingStore}, for
+ * approximate top-k search by cosine similarity.
+ *
+ * Nodes are committed rows; vectors are read from the store, the graph (levels, neighbour lists and the
+ * inverse norm of each row) lives here. Rows are inserted in order by a single writer; searches run
+ * concurrently without locks: every neighbour list is an immutable array replaced on update, and the
+ * volatile {@link #indexedRows} is written after each insert, so a search sees a consistent graph of at
+ * least the rows indexed when it started. {@code m} bounds the neighbours per node (2m on the bottom layer)
+ * and {@code efConstruction} / {@code ef} trade recall for insert / search time.
+ *
+ * The index can be saved and loaded; a saved index is only reused if the rows it covers still hold the
+ * same CIDs (checked with the Merkle root of that prefix of the vector).
+ */
+public class HnswIndex {
+
+    private static final int MAGIC = 0x484E5357; // "HNSW"
+    private static final int[] EMPTY = new int[0];
+
+    private final EmbeddingStore.Rows rows;
+    private final int m;
+    private final int efConstruction;
+    private final double levelMult;
+    private final int dim = EmbeddingModel.DIM;
+
+    // por linha: nível no grafo (-1 = fora do grafo, ex.: sem embedding), vizinhos por camada e 1/norma
+    private volatile int[] levels = new int[1024];
+    private volatile int[][][] links = new int[1024][][];
+    private volatile float[] invNorms = new float[1024];
+    private volatile int entryPoint = -1;
+    private volatile int indexedRows;
+
+    private static final ThreadLocal<Visited> VISITED = ThreadLocal.withInitial(Visited::new);
+
+    public HnswIndex(EmbeddingStore.Rows rows, int m, int efConstruction) {
+        this.rows = rows;
+        this.m = m;
+        this.efConstruction = efConstruction;
+        this.levelMult = 1 / Math.log(m);
+        Arrays.fill(levels, -1);
+    }
+
+    /** Generation of the store whose rows this index refers to. */
+    public EmbeddingStore.Rows rows() {
+        return rows;
+    }
+
+    /** Rows [0, indexedRows) have been inserted (rows without an embedding are skipped but counted). */
+    public int indexedRows() {
+        return indexedRows;
+    }
+
+    // ---- inserção (um só escritor) ----
+
+    /** Inserts {@code row}, which must be {@link #indexedRows()}. */
+    public synchronized void insert(int row) {
+        if (row != indexedRows) throw new IllegalArgumentException("linha " + row + " fora de ordem (esperada " + indexedRows + ")");
+        ensureCapacity(row + 1);
+        Reader reader = new Reader();
+        float[] q = new float[dim];
+        float norm = reader.load(row, q);
+        if (norm == 0) {
+            indexedRows = row + 1; // sem embedding: fica fora do grafo
+            return;
+        }
+        float inv = (float) (1 / Math.sqrt(norm));
+        for (int j = 0; j < dim; j++) q[j] *= inv;
+        invNorms[row] = inv;
+
+        int level = (int) (-Math.log(1 - ThreadLocalRandom.current().nextDouble()) * levelMult);
+        int[][] own = new int[level + 1][];
+        Arrays.fill(own, EMPTY);
+        links[row] = own;
+        levels[row] = level;
+
+        int ep = entryPoint;
+        if (ep < 0) {
+            entryPoint = row;
+            indexedRows = row + 1;
+            return;
+        }
+        int epLevel = levels[ep];
+        int cur = greedy(reader, q, ep, epLevel, level + 1);
+        for (int layer = Math.min(level, epLevel); layer >= 0; layer--) {
+            long[] found = searchLayer(reader, q, cur, efConstruction, layer, Integer.MAX_VALUE);
+            int[] selected = selectNeighbours(reader, found, layer == 0 ? 2 * m : m);
+            own[layer] = selected;
+            for (int n : selected) connect(reader, n, row, layer);
+            cur = rowOf(found[0]);
+        }
+        if (level > epLevel) entryPoint = row;
+        indexedRows = row + 1; // publica a inserção
+    }
+
+    // Acrescenta row aos vizinhos de n; se passar do limite, fica com os mais próximos de n (a heurística completa
+    // em cada ligação de volta triplicava o tempo de inserção sem ganho de recall medido)
+    private void connect(Reader reader, int n, int row, int layer) {
+        int[] current = links[n][layer];
+        int max = layer == 0 ? 2 * m : m;
+        int[] next = Arrays.copyOf(current, current.length + 1);
+        next[current.length] = row;
+        if (next.length > max) {
+            float[] nv = new float[dim];
+            reader.load(n, nv);
+            float inv = invNorms[n];
+            for (int j = 0; j < dim; j++) nv[j] *= inv;
+            long[] candidates = new long[next.length];
+            for (int i = 0; i < next.length; i++) candidates[i] = key(reader.similarity(nv, next[i]), next[i]);
+            Arrays.sort(candidates);
+            reverse(candidates);
+            next = new int[max];
+            for (int i = 0; i < max; i++) next[i] = rowOf(candidates[i]);
+        }
+        links[n][layer] = next;
+    }
+
+    /**
+     * Neighbour selection heuristic (HNSW paper, alg. 4): take candidates best first and keep one only if it is
+     * closer to the new node than to every neighbour already kept, which keeps edges in different directions;
+     * then fill up with the best of the discarded. {@code candidates} are keys sorted best first.
+     */
+    private int[] selectNeighbours(Reader reader, long[] candidates, int max) {
+        int[] selected = new int[Math.min(max, candidates.length)];
+        int n = 0;
+        boolean[] discarded = new boolean[candidates.length];
+        float[] cv = new float[dim];
+        for (int i = 0; i < candidates.length && n < selected.length; i++) {
+            int c = rowOf(candidates[i]);
+            float sim = simOf(candidates[i]);
+            reader.load(c, cv);
+            float inv = invNorms[c];
+            boolean keep = true;
+            for (int s = 0; s < n && keep; s++) {
+                if (reader.similarity(cv, selected[s]) * inv > sim) keep = false;
+            }
+            if (keep) selected[n++] = c;
+            else discarded[i] = true;
+        }
+        for (int i = 0; i < candidates.length && n < selected.length; i++) {
+            if (discarded[i]) selected[n++] = rowOf(candidates[i]);
+        }
+        return n == selected.length ? selected : Arrays.copyOf(selected, n);
+    }
+
+    // ---- pesquisa ----
+
+    /** Approximate top-k rows by cosine similarity to {@code query}, best first. {@code ef} >= k. */
+    public List<SimilaritySearch.Hit> search(float[] query, int k, int ef) {
+        int limit = indexedRows; // leitura volátil: vê o grafo até aqui
+        int ep = entryPoint;
+        List<SimilaritySearch.Hit> hits = new ArrayList<>();
+        if (ep < 0 || k <= 0) return hits;
+        double norm = 0;
+        for (float x : query) norm += x * x;
+        if (norm == 0) return hits;
+        float[] q = new float[dim];
+        float inv = (float) (1 / Math.sqrt(norm));
+        for (int j = 0; j < dim; j++) q[j] = query[j] * inv;
+
+        Reader reader = new Reader();
+        int cur = greedy(reader, q, ep, levels[ep], 1);
+        long[] found = searchLayer(reader, q, cur, Math.max(ef, k), 0, limit);
+        for (int i = 0; i < Math.min(k, found.length); i++) hits.add(new SimilaritySearch.Hit(rowOf(found[i]), simOf(found[i])));
+        return hits;
+    }
+
+    // Desce pelas camadas [toLayer, fromLayer] seguindo sempre o vizinho mais próximo
+    private int greedy(Reader reader, float[] q, int cur, int fromLayer, int toLayer) {
+        float best = reader.similarity(q, cur);
+        for (int layer = fromLayer; layer >= toLayer; layer--) {
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+                for (int n : neighbours(cur, layer)) {
+                    float s = reader.similarity(q, n);
+                    if (s > best) {
+                        best = s;
+                        cur = n;
+                        changed = true;
+                    }
+                }
+            }
+        }
+        return cur;
+    }
+
+    /** Best-first search of one layer from {@code ep}; returns up to {@code ef} keys, best first. */
+    private long[] searchLayer(Reader reader, float[] q, int ep, int ef, int layer, int limit) {
+        Visited visited = VISITED.get();
+        visited.reset(levels.length);
+        LongHeap candidates = new LongHeap(); // chave invertida: o topo é o candidato mais próximo
+        LongHeap results = new LongHeap();    // o topo é o pior dos resultados
+        long first = key(reader.similarity(q, ep), ep);
+        visited.mark(ep);
+        candidates.push(~first);
+        results.push(first);
+        while (candidates.size() > 0) {
+            long c = ~candidates.pop();
+            if (results.size() >= ef && simOf(c) < simOf(results.peek())) break;
+            for (int n : neighbours(rowOf(c), layer)) {
+                if (n >= limit || !visited.mark(n)) continue;
+                long k = key(reader.similarity(q, n), n);
+                if (results.size() < ef || simOf(k) > simOf(results.peek())) {
+                    candidates.push(~k);
+                    results.push(k);
+                    if (results.size() > ef) results.pop();
+                }
+            }
+        }
+        long[] out = new long[results.size()];
+        for (int i = out.length - 1; i >= 0; i--) out[i] = results.pop();
+        return out;
+    }
+
+    private int[] neighbours(int row, int layer) {
+        int[][] own = row < links.length ? links[row] : null;
+        return own == null || layer >= own.length ? EMPTY : own[layer];
+    }
+
+    private void ensureCapacity(int n) {
+        if (n <= levels.length) return;
+        int cap = Math.max(n, levels.length * 2);
+        int[] l = Arrays.copyOf(levels, cap);
+        Arrays.fill(l, levels.length, cap, -1);
+        invNorms = Arrays.copyOf(invNorms, cap);
+        links = Arrays.copyOf(links, cap);
+        levels = l;
+    }
+
+    // ---- persistência ----
+
+    /** Writes the index to {@code file} (tmp + rename). {@code cids} must be the vector the rows belong to. */
+    public synchronized void save(Path file, CidVector.Snapshot cids) throws IOException {
+        int n = indexedRows;
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(m);
+            out.writeInt(efConstruction);
+            out.writeInt(n);
+            out.writeInt(entryPoint);
+            out.writeUTF(prefixRoot(cids, n));
+            for (int row = 0; row < n; row++) {
+                out.writeInt(levels[row]);
+                if (levels[row] < 0) continue;
+                out.writeFloat(invNorms[row]);
+                for (int[] layer : links[row]) {
+                    out.writeInt(layer.length);
+                    for (int x : layer) out.writeInt(x);
+                }
+            }
+            out.flush();
+            fos.getFD().sync();
+        }
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /** Loads a saved index if it matches the first rows of {@code cids}; null if absent, unreadable or stale. */
+    public static HnswIndex load(Path file, EmbeddingStore.Rows rows, CidVector.Snapshot cids) {
+        if (!Files.exists(file)) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC) throw new IOException("formato desconhecido");
+            HnswIndex index = new HnswIndex(rows, in.readInt(), in.readInt());
+            int n = in.readInt();
+            int entry = in.readInt();
+            String root = in.readUTF();
+            if (n > cids.size() || !root.equals(prefixRoot(cids, n))) {
+                System.out.println("Índice HNSW guardado não corresponde ao vetor committed: a reconstruir");
+                return null;
+            }
+            index.ensureCapacity(n);
+            for (int row = 0; row < n; row++) {
+                int level = in.readInt();
+                index.levels[row] = level;
+                if (level < 0) continue;
+                index.invNorms[row] = in.readFloat();
+                int[][] own = new int[level + 1][];
+                for (int l = 0; l <= level; l++) {
+                    own[l] = new int[in.readInt()];
+                    for (int i = 0; i < own[l].length; i++) own[l][i] = in.readInt();
+                }
+                index.links[row] = own;
+            }
+            index.entryPoint = entry;
+            index.indexedRows = n;
+            return index;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Índice HNSW ilegível (" + e.getMessage() + "): a reconstruir");
+            return null;
+        }
+    }
+
+    private static String prefixRoot(CidVector.Snapshot cids, int n) {
+        MerkleAccumulator acc = new MerkleAccumulator();
+        for (int i = 0; i < n; i++) acc.add(cids.digest(i));
+        return acc.rootHex();
+    }
+
+    // ---- auxiliares ----
+
+    /** Reads rows of the store through per-segment views (one set per search or insert, none per candidate). */
+    private final class Reader {
+        private final FloatBuffer[] views = new FloatBuffer[8];
+        private final float[] tmp = new float[dim];
+
+        /** Copies row {@code row} into {@code dst}; returns its squared norm. */
+        float load(int row, float[] dst) {
+            FloatBuffer f = view(row / EmbeddingStore.SEGMENT_ROWS);
+            int base = (row % EmbeddingStore.SEGMENT_ROWS) * dim;
+            float norm = 0;
+            for (int j = 0; j < dim; j++) {
+                float x = f.get(base + j);
+                dst[j] = x;
+                norm += x * x;
+            }
+            return norm;
+        }
+
+        /** Cosine similarity between the unit vector {@code q} and row {@code row}. */
+        float similarity(float[] q, int row) {
+            FloatBuffer f = view(row / EmbeddingStore.SEGMENT_ROWS);
+            f.position((row % EmbeddingStore.SEGMENT_ROWS) * dim);
+            f.get(tmp, 0, dim);
+            float d0 = 0, d1 = 0, d2 = 0, d3 = 0;
+            int j = 0;
+            for (; j + 3 < dim; j += 4) {
+                d0 += q[j] * tmp[j];
+                d1 += q[j + 1] * tmp[j + 1];
+                d2 += q[j + 2] * tmp[j + 2];
+                d3 += q[j + 3] * tmp[j + 3];
+            }
+            for (; j < dim; j++) d0 += q[j] * tmp[j];
+            return ((d0 + d1) + (d2 + d3)) * invNorms[row];
+        }
+
+        private FloatBuffer view(int segment) {
+            if (segment >= views.length) return rows.segmentView(segment);
+            if (views[segment] == null) views[segment] = rows.segmentView(segment);
+            return views[segment];
+        }
+    }
+
+    // Chave ordenável (semelhança, linha) num long: bits da semelhança em ordem total nos 32 bits de cima
+    private static long key(float sim, int row) {
+        int bits = Float.floatToIntBits(sim);
+        bits ^= (bits >> 31) & 0x7fffffff;
+        return ((long) bits << 32) | (row & 0xffffffffL);
+    }
+
+    private static float simOf(long key) {
+        int bits = (int) (key >> 32);
+        bits ^= (bits >> 31) & 0x7fffffff;
+        return Float.intBitsToFloat(bits);
+    }
+
+    private static int rowOf(long key) {
+        return (int) key;
+    }
+
+    private static void reverse(long[] a) {
+        for (int i = 0, j = a.length - 1; i < j; i++, j--) {
+            long t = a[i];
+            a[i] = a[j];
+            a[j] = t;
+        }
+    }
+
+    /** Min-heap of longs. */
+    private static final class LongHeap {
+        private long[] heap = new long[64];
+        private int size;
+
+        int size() {
+            return size;
+        }
+
+        long peek() {
+            return heap[0];
+        }
+
+        void push(long v) {
+            if (size == heap.length) heap = Arrays.copyOf(heap, size * 2);
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (heap[parent] <= v) break;
+                heap[i] = heap[parent];
+                i = parent;
+            }
+            heap[i] = v;
+        }
+
+        long pop() {
+            long top = heap[0];
+            long last = heap[--size];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) break;
+                if (child + 1 < size && heap[child + 1] < heap[child]) child++;
+                if (heap[child] >= last) break;
+                heap[i] = heap[child];
+                i = child;
+            }
+            heap[i] = last;
+            return top;
+        }
+    }
+
+    /** Visited marks by generation, reused per thread. */
+    private static final class Visited {
+        private int[] marks = new int[0];
+        private int generation;
+
+        void reset(int capacity) {
+            if (marks.length < capacity) marks = new int[capacity];
+            if (++generation == 0) {
+                Arrays.fill(marks, 0);
+                generation = 1;
+            }
+        }
+
+        /** Marks {@code row}; false if it was already marked in this search. */
+        boolean mark(int row) {
+            if (row >= marks.length) marks = Arrays.copyOf(marks, Math.max(row + 1, marks.length * 2));
+            if (marks[row] == generation) return false;
+            marks[row] = generation;
+            return true;
+        }
+    }
+}
\ No newline at end of file
@@ -1,8 +1,102 @@
 package lib2p;
 
 public class LibP2pConfig {
-    public static final String PUBSUB_TOPIC = "peers/messages";
-    public static final int LISTEN_PORT = 30333;
-    public static final String LEADER_HOST = "127.0.0.1"; // Alterado para localhost
-    public static final int LEADER_HTTP_PORT = 9091;
-}
+    // Cada valor pode ser alterado no arranque com -Dlib2p.<NOME>=valor (p.ex. -Dlib2p.LEADER_HTTP_PORT=19091),
+    // o que permite correr vários nós e clusters na mesma máquina (ver ClusterLoad)
+    public static final String PUBSUB_TOPIC = stringProp("PUBSUB_TOPIC", "peers/messages");
+    public static final int LISTEN_PORT = intProp("LISTEN_PORT", 30333);
+    public static final String LEADER_HOST = stringProp("LEADER_HOST", "127.0.0.1"); // Alterado para localhost
+    public static final int LEADER_HTTP_PORT = intProp("LEADER_HTTP_PORT", 9091);
+
+    // Group commit: janela (ms) e tamanho máximo do lote de CIDs por versão (janela 0 = uma versão por upload)
+    public static final long GROUP_COMMIT_WINDOW_MS = longProp("GROUP_COMMIT_WINDOW_MS", 20);
+    public static final int GROUP_COMMIT_MAX_BATCH = intProp("GROUP_COMMIT_MAX_BATCH", 256);
+    // Tempo máximo à espera da maioria antes de abandonar uma versão proposta
+    public static final long PROPOSAL_TIMEOUT_MS = longProp("PROPOSAL_TIMEOUT_MS", 10000);
+
+    // Pipeline: número máximo de versões propostas sem commit (líder) e de versões fora de ordem em buffer (peer)
+    public static final int PIPELINE_DEPTH = intProp("PIPELINE_DEPTH", 8);
+    public static final int PEER_MAX_BUFFERED_VERSIONS = intProp("PEER_MAX_BUFFERED_VERSIONS", 64);
+
+    // Estado persistente (WAL + snapshots) em STATE_DIR/<nó>; nova snapshot a cada SNAPSHOT_INTERVAL_VERSIONS commits
+    public static final String STATE_DIR = stringProp("STATE_DIR", "data");
+    public static final int SNAPSHOT_INTERVAL_VERSIONS = intProp("SNAPSHOT_INTERVAL_VERSIONS", 1000);
+
+    // Catch-up de peers atrasados: linhas por pedido, débito máximo servido (bytes/s), transferências em simultâneo
+    // e número de versões committed cujo delta o líder guarda para reenviar
+    public static final int CATCHUP_CHUNK_ROWS = intProp("CATCHUP_CHUNK_ROWS", 1024);
+    public static final long CATCHUP_MAX_BYTES_PER_SEC = longProp("CATCHUP_MAX_BYTES_PER_SEC", 8L * 1024 * 1024);
+    public static final int CATCHUP_MAX_TRANSFERS = intProp("CATCHUP_MAX_TRANSFERS", 2);
+    public static final int CATCHUP_DELTA_HISTORY = intProp("CATCHUP_DELTA_HISTORY", 1024);
+
+    // Gossip do PUBSUB_TOPIC: vizinhos por mensagem (fanout), ligações mantidas por nó, vizinhos que recebem IHAVE
+    // por heartbeat, janela das mensagens anunciadas em IHAVE e validade da cache de ids já vistos.
+    // Os peers escutam o transporte na porta HTTP + GOSSIP_PORT_OFFSET.
+    public static final int GOSSIP_FANOUT = intProp("GOSSIP_FANOUT", 3);
+    public static final int GOSSIP_DEGREE = intProp("GOSSIP_DEGREE", 4);
+    public static final int GOSSIP_LAZY_PEERS = intProp("GOSSIP_LAZY_PEERS", 2);
+    public static final long GOSSIP_HEARTBEAT_MS = longProp("GOSSIP_HEARTBEAT_MS", 500);
+    public static final long GOSSIP_HISTORY_MS = longProp("GOSSIP_HISTORY_MS", 3000);
+    public static final long GOSSIP_SEEN_TTL_MS = longProp("GOSSIP_SEEN_TTL_MS", 120000);
+    public static final int GOSSIP_SEEN_MAX = intProp("GOSSIP_SEEN_MAX", 100000);
+    public static final long GOSSIP_TIMEOUT_MS = longProp("GOSSIP_TIMEOUT_MS", 3000);
+    public static final long GOSSIP_REDIAL_MS = longProp("GOSSIP_REDIAL_MS", 5000);
+    public static final int GOSSIP_PORT_OFFSET = intProp("GOSSIP_PORT_OFFSET", 20000);
+
+    // Embeddings: dimensão, workers, capacidade da fila (uploads além disto recebem 503), documentos por lote
+    // de cada worker e bytes lidos de cada documento
+    public static final int EMBEDDING_DIM = intProp("EMBEDDING_DIM", 384);
+    public static final int EMBEDDING_WORKERS = intProp("EMBEDDING_WORKERS", Runtime.getRuntime().availableProcessors());
+    public static final int EMBEDDING_QUEUE_CAPACITY = intProp("EMBEDDING_QUEUE_CAPACITY", 1024);
+    public static final int EMBEDDING_BATCH = intProp("EMBEDDING_BATCH", 16);
+    public static final int EMBEDDING_MAX_BYTES = intProp("EMBEDDING_MAX_BYTES", 1024 * 1024);
+
+    // Índice HNSW dos peers: vizinhos por nó (2*M na camada 0) e candidatos na inserção e na pesquisa
+    // (efSearch maior = melhor recall e pesquisa mais lenta; cada pedido pode indicar ?ef=)
+    public static final int HNSW_M = intProp("HNSW_M", 16);
+    public static final int HNSW_EF_CONSTRUCTION = intProp("HNSW_EF_CONSTRUCTION", 100);
+    public static final int HNSW_EF_SEARCH = intProp("HNSW_EF_SEARCH", 64);
+
+    // Embeddings repartidos por SHARD_COUNT shards (fixo: muda o shard de cada CID), cada um em SHARD_REPLICATION
+    // peers escolhidos por hashing consistente (SHARD_VNODES pontos por peer no anel). Um shard que deixa de estar
+    // atribuído a um peer só é apagado passados SHARD_DROP_DELAY_MS.
+    public static final int SHARD_COUNT = intProp("SHARD_COUNT", 16);
+    public static final int SHARD_REPLICATION = intProp("SHARD_REPLICATION", 2);
+    public static final int SHARD_VNODES = intProp("SHARD_VNODES", 64);
+    public static final long SHARD_DROP_DELAY_MS = longProp("SHARD_DROP_DELAY_MS", 60000);
+    // Pesquisa distribuída no líder: tempo máximo por pesquisa e atraso mínimo antes de repetir um pedido lento
+    // noutra réplica (o atraso normal é o percentil 95 das latências recentes)
+    public static final long SEARCH_TIMEOUT_MS = longProp("SEARCH_TIMEOUT_MS", 2000);
+    public static final long SEARCH_HEDGE_MIN_MS = longProp("SEARCH_HEDGE_MIN_MS", 20);
+
+    // Réplicas do conteúdo: cada peer guarda os documentos dos shards que lhe estão atribuídos, pedindo os blocos em
+    // falta ao líder ou a outros peers. Pedidos em simultâneo (total), débito máximo por origem (bytes/s) e intervalo
+    // até voltar a tentar um documento incompleto
+    public static final int BLOCK_FETCH_CONCURRENCY = intProp("BLOCK_FETCH_CONCURRENCY", 2);
+    public static final long BLOCK_FETCH_BYTES_PER_SEC = longProp("BLOCK_FETCH_BYTES_PER_SEC", 16L * 1024 * 1024);
+    public static final long BLOCK_FETCH_RETRY_MS = longProp("BLOCK_FETCH_RETRY_MS", 10000);
+
+    // Endereço que o peer anuncia ao líder (vazio = IP da interface de rede local)
+    public static final String PEER_HOST = stringProp("PEER_HOST", "");
+    // Injeção de falhas nos peers, para testes de carga: atraso antes de tratar cada tentativa ou commit do líder
+    // e probabilidade de ignorar uma tentativa, como se se tivesse perdido na rede
+    public static final long FAULT_DELAY_MS = longProp("FAULT_DELAY_MS", 0);
+    public static final double FAULT_DROP_RATE = doubleProp("FAULT_DROP_RATE", 0);
+
+    private static int intProp(String name, int value) {
+        return Integer.getInteger("lib2p." + name, value);
+    }
+
+    private static long longProp(String name, long value) {
+        return Long.getLong("lib2p." + name, value);
+    }
+
+    private static double doubleProp(String name, double value) {
+        String v = System.getProperty("lib2p." + name);
+        return v == null ? value : Double.parseDouble(v);
+    }
+
+    private static String stringProp(String name, String value) {
+        return System.getProperty("lib2p." + name, value);
+    }
+}
\ No newline at end of file
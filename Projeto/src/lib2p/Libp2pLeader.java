@@ -11,10 +11,19 @@ import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.security.MessageDigest;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * Libp2pLeader - HTTP API that accepts uploads, registers peers, propagates
@@ -26,29 +35,141 @@ public class Libp2pLeader {
     private static Libp2pNode leaderNode;
     // map peerId -> "ip:port"
     private static final Map<String, String> peerAddressMap = new ConcurrentHashMap<>();
+    // Shards de embeddings de cada peer (hashing consistente sobre os peers registados); nova época a cada peer novo
+    private static volatile ShardRing.Assignment shardAssignment =
+            new ShardRing(Collections.<String>emptyList(), LibP2pConfig.SHARD_VNODES).assign(0, LibP2pConfig.SHARD_REPLICATION);
+    // Pedidos de pesquisa por HTTP a peers sem ligação persistente
+    private static final ExecutorService searchExecutor = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "search-http");
+        t.setDaemon(true);
+        return t;
+    });
     private static final String UPLOAD_DIR = "uploads";
-
-    // Current committed vector of CIDs and its version
-    private static final List<String> currentDocumentCidVector = Collections.synchronizedList(new ArrayList<>());
+    // Blocos (chunks) endereçados por conteúdo + DAG de cada documento, em uploads/
+    private static BlockStore blockStore;
+    // Nome do ficheiro -> CID do último upload com esse nome (uploads/names.idx); o conteúdo fica só nos blocos
+    private static NameIndex nameIndex;
+    // Embeddings calculados por workers próprios (não nos threads do HttpServer)
+    private static EmbeddingPipeline embeddingPipeline;
+    // WAL + snapshots do estado de consenso (data/leader)
+    private static StateLog stateLog;
+
+    // Envio assíncrono e concorrente para os peers: no máximo 4 envios em curso e 64 em fila por peer
+    private static final PeerDispatcher dispatcher = new PeerDispatcher(4, 64);
+
+    // Group commit: CIDs recebidos dentro da janela são propostos juntos numa só versão
+    private static final Object batchLock = new Object();
+    private static List<DocumentUpdate.Entry> currentBatch = new ArrayList<>();
+    private static boolean retryScheduled = false;
+    private static final ScheduledExecutorService batchScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "group-commit");
+        t.setDaemon(true);
+        return t;
+    });
+    // Commit das versões com maioria (log, vetor local, envio aos peers) num thread próprio: as confirmações
+    // são respondidas logo, sem que um thread do HttpServer fique à espera do commit
+    private static final ThreadPoolExecutor commitStage = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<>(), r -> {
+                Thread t = new Thread(r, "commit");
+                t.setDaemon(true);
+                return t;
+            });
+
+    // Current committed vector of CIDs (digests + índice, leitura sem lock via snapshot) and its version
+    private static final CidVector currentDocumentCidVector = new CidVector();
     private static final AtomicInteger documentVectorVersion = new AtomicInteger(0);
-
-    // Pending vectors (version -> vector), pending embeddings (version -> cid -> embedding)
-    private static final Map<Integer, List<String>> pendingVectors = new ConcurrentHashMap<>();
-    private static final Map<Integer, Map<String, String>> pendingEmbeddings = new ConcurrentHashMap<>();
-
-    // Confirmations: version -> (peerId -> hash)
-    private static final Map<Integer, Map<String, String>> confirmationsByVersion = new ConcurrentHashMap<>();
+    // Última versão com o commit escrito no log; passa a documentVectorVersion quando o registo fica persistido
+    private static final AtomicInteger loggedVersion = new AtomicInteger(0);
+    // Erro de escrita de um commit no log: o líder deixa de fazer commits e recusa uploads até ser reiniciado
+    private static volatile String logFailure;
+    // Árvore Merkle do vetor committed, mantida incrementalmente (guarded by currentDocumentCidVector)
+    private static final VectorMerkleTree committedTree = new VectorMerkleTree();
+    // Embeddings dos documentos committed, fora do heap: linha i = linha i do vetor committed (guarded by
+    // currentDocumentCidVector para escrita), servidos aos peers em catch-up
+    private static EmbeddingStore documentEmbeddings;
+    // Últimas CATCHUP_DELTA_HISTORY versões committed (version -> primeira linha da versão no vetor committed), para
+    // peers atrasados as repetirem: o vetor só cresce, os CIDs e embeddings de cada versão são lidos das suas linhas
+    private static final ConcurrentSkipListMap<Integer, Integer> committedHistory = new ConcurrentSkipListMap<>();
+
+    // Pipeline: última versão atribuída; no máximo PIPELINE_DEPTH versões propostas ainda sem commit.
+    // Cada versão é construída sobre o vetor pendente da anterior.
+    private static final AtomicInteger lastProposedVersion = new AtomicInteger(0);
+    // Versões com maioria à espera do commit da anterior (os commits são sempre aplicados por ordem)
+    private static final Set<Integer> readyVersions = ConcurrentHashMap.newKeySet();
+    // Hash do vetor confirmado pela maioria (version -> hash), enviado no commit para os peers validarem o delta
+    private static final Map<Integer, String> majorityHashes = new ConcurrentHashMap<>();
+    private static final Object commitLock = new Object();
+
+    // Pending updates (version -> proposed entries, i.e. o delta sobre a versão anterior) and when they were proposed
+    private static final Map<Integer, DocumentUpdate> pendingUpdates = new ConcurrentHashMap<>();
+    private static final Map<Integer, Long> proposedAt = new ConcurrentHashMap<>();
+    // Hash esperado de cada versão pendente (calculado como nos peers) e o acumulador Merkle no fim do seu vetor
+    private static final Map<Integer, String> expectedHashes = new ConcurrentHashMap<>();
+    private static final Map<Integer, MerkleAccumulator> pendingAccumulators = new ConcurrentHashMap<>();
+    // CIDs propostos e ainda sem commit (cid -> versão), para ignorar repetidos sem copiar vetores
+    private static final Map<String, Integer> pendingCids = new ConcurrentHashMap<>();
+
+    // Votação de cada versão pendente, com os peers registados no momento da proposta
+    private static final Map<Integer, QuorumTracker> quorums = new ConcurrentHashMap<>();
+
+    // Métricas (/api/metrics): registar não bloqueia nem aloca. uploadedAt guarda a chegada de cada upload até ao commit;
+    // proposalNanos o instante de proposta das últimas versões (versão % tamanho), que sobrevive ao commit para
+    // as confirmações que chegam depois da maioria também contarem
+    private static final Map<String, Long> uploadedAt = new ConcurrentHashMap<>();
+    private static final AtomicLongArray proposalNanos = new AtomicLongArray(1024);
+    private static final Metrics.Counter uploads = Metrics.counter("lib2p_leader_uploads_total", "Uploads aceites");
+    private static final Metrics.Counter uploadsRejected = Metrics.counter("lib2p_leader_uploads_rejected_total",
+            "Uploads recusados com a fila de embeddings cheia");
+    private static final Metrics.Histogram uploadTime = Metrics.timer("lib2p_leader_upload_seconds",
+            "Tempo de um upload: receção, blocos e entrada na fila de embeddings");
+    private static final Metrics.Histogram uploadToCommit = Metrics.timer("lib2p_leader_upload_to_commit_seconds",
+            "Tempo desde a chegada de um upload até ao commit do documento");
+    private static final Metrics.Counter versionsProposed = Metrics.counter("lib2p_leader_versions_proposed_total", "Versões propostas");
+    private static final Metrics.Counter versionsAbandoned = Metrics.counter("lib2p_leader_versions_abandoned_total",
+            "Versões abandonadas por falta de maioria em PROPOSAL_TIMEOUT_MS");
+    private static final Metrics.Histogram versionDocuments = Metrics.histogram("lib2p_leader_version_documents",
+            "Documentos por versão proposta");
+    private static final Metrics.Histogram propagateTime = Metrics.timer("lib2p_leader_propagate_seconds",
+            "Tempo a publicar uma versão proposta para os peers");
+    private static final Metrics.Histogram confirmTime = Metrics.timer("lib2p_leader_confirm_seconds",
+            "Tempo a tratar uma confirmação (o commit, se houver maioria, segue no thread de commit)");
+    private static final Metrics.TimerFamily confirmationLag = Metrics.timers("lib2p_leader_confirmation_lag_seconds",
+            "Tempo desde a proposta de uma versão até à confirmação de cada peer", "peer");
+    private static final Metrics.Counter divergentConfirmations = Metrics.counter("lib2p_leader_divergent_confirmations_total",
+            "Confirmações com um hash diferente do esperado");
+    private static final Metrics.Histogram majorityTime = Metrics.timer("lib2p_leader_majority_seconds",
+            "Tempo desde a proposta de uma versão até à maioria");
+    private static final Metrics.Counter versionsCommitted = Metrics.counter("lib2p_leader_versions_committed_total", "Versões committed");
+    private static final Metrics.Histogram commitTime = Metrics.timer("lib2p_leader_commit_seconds",
+            "Tempo a fazer um commit no líder: escrita no log, fsync e aplicação local");
+    private static final Metrics.TimerFamily peerRtt = Metrics.timers("lib2p_leader_peer_rtt_seconds",
+            "Ida e volta de um commit enviado a cada peer", "peer");
 
     public static void main(String[] args) throws Exception {
         System.out.println("Iniciando Lider com libp2p...\n");
 
         // Criar diretório de uploads se não existir
         Files.createDirectories(Paths.get(UPLOAD_DIR));
+        blockStore = new BlockStore(Paths.get(UPLOAD_DIR));
+        nameIndex = new NameIndex(Paths.get(UPLOAD_DIR, "names.idx"));
+        embeddingPipeline = new EmbeddingPipeline(LibP2pConfig.EMBEDDING_WORKERS, LibP2pConfig.EMBEDDING_QUEUE_CAPACITY,
+                LibP2pConfig.EMBEDDING_BATCH, blockStore::open, Libp2pLeader::processNewDocumentsTentative);
+
+        // Recuperar o estado committed (snapshot + cauda do log) antes de aceitar pedidos
+        stateLog = new StateLog(Paths.get(LibP2pConfig.STATE_DIR, "leader"));
+        documentEmbeddings = new EmbeddingStore(Paths.get(LibP2pConfig.STATE_DIR, "leader", "embeddings"));
+        recoverState();
+        stateLog.open();
+        registerGauges();
 
         // Criar nó do líder
         leaderNode = new Libp2pNode("leader");
         leaderNode.start();
 
+        // Ligações persistentes dos peers: atualizações, commits e confirmações sem abrir uma ligação por mensagem
+        leaderNode.handle("/api/peers/confirm", (from, body) -> processConfirmation(body));
+        leaderNode.listen(LibP2pConfig.LISTEN_PORT);
+
         // Criar servidor HTTP para API
         HttpServer server = HttpServer.create(new InetSocketAddress("0.0.0.0", HTTP_PORT), 0);
 
@@ -64,10 +185,36 @@ public class Libp2pLeader {
         // Endpoint para upload de ficheiros
         server.createContext("/api/files/upload", new UploadHandler());
 
+        // Conteúdo de um documento por CID (/api/files/<cid>), com pedidos parciais e cache por ETag
+        server.createContext("/api/files/", new FilesHandler());
+
+        // Manifestos e blocos dos documentos, para os peers replicarem o conteúdo
+        server.createContext("/api/dag/", new BlocksHandler());
+        server.createContext("/api/blocks/", new BlocksHandler());
+
         // Endpoint para peers enviarem confirmações (peerId:version:hash)
         server.createContext("/api/peers/confirm", new ConfirmHandler());
 
-        server.setExecutor(java.util.concurrent.Executors.newFixedThreadPool(10));
+        // Estado da fila de embeddings (documentos à espera, em curso, concluídos)
+        server.createContext("/api/embeddings/status", new EmbeddingStatusHandler());
+
+        // Endpoint com hashes de subárvores do vetor committed (para localizar divergências)
+        server.createContext("/api/vector/tree", new VectorTreeHandler());
+
+        // Catch-up de peers atrasados: snapshot do vetor committed por blocos e deltas das versões recentes
+        server.createContext("/api/state/snapshot", new StateSnapshotHandler());
+        server.createContext("/api/state/deltas", new StateDeltasHandler());
+
+        // Shards de embeddings: atribuição aos peers, embeddings por CID (para peers preencherem shards novos)
+        // e pesquisa distribuída por todos os shards
+        server.createContext("/api/shards", new ShardsHandler());
+        server.createContext("/api/embeddings", new EmbeddingsHandler());
+        server.createContext("/api/search", new SearchHandler());
+
+        // Métricas em formato Prometheus (latências, contadores e estado do pipeline)
+        server.createContext("/api/metrics", new MetricsHandler());
+
+        server.setExecutor(Executors.newFixedThreadPool(10));
         server.start();
 
         System.out.println("API do Lider iniciada na porta " + HTTP_PORT);
@@ -75,9 +222,82 @@ public class Libp2pLeader {
         System.out.println("A espera de requisicoes...\n");
     }
 
-    private static void processNewDocument(String filepath) throws Exception {
-        // Delegate to the new tentative-processing method so existing calls continue to work
-        processNewDocumentTentative(filepath);
+    /**
+     * Restores the committed vector from the latest snapshot plus the log tail. Versions that were proposed
+     * but never committed are not resumed: their documents go back to the batch and are proposed again.
+     */
+    private static void recoverState() throws IOException {
+        long start = System.currentTimeMillis();
+        StateLog.Snapshot snapshot = stateLog.loadSnapshot((row, cid, embedding) -> documentEmbeddings.put(row, embedding));
+        if (snapshot != null) {
+            synchronized (currentDocumentCidVector) {
+                currentDocumentCidVector.resetTo(snapshot.cids);
+                for (String cid : snapshot.cids) committedTree.append(cid);
+                documentVectorVersion.set(snapshot.version);
+            }
+        }
+
+        TreeMap<Integer, DocumentUpdate> proposals = new TreeMap<>();
+        int records = stateLog.replay(r -> {
+            int committed = documentVectorVersion.get();
+            if (r.version <= committed) return;
+            if (r.type == StateLog.TENTATIVE) {
+                proposals.tailMap(r.version, true).clear(); // versão reproposta: as seguintes dependiam dela
+                proposals.put(r.version, DocumentUpdate.fromMessage(r.payload));
+            } else if (r.type == StateLog.COMMIT && r.version == committed + 1) {
+                List<String> delta = r.payload.isEmpty() ? new ArrayList<>() : Arrays.asList(r.payload.split(","));
+                DocumentUpdate proposal = proposals.get(r.version);
+                synchronized (currentDocumentCidVector) {
+                    int added = currentDocumentCidVector.addAll(delta);
+                    for (String cid : delta) committedTree.append(cid);
+                    recordCommitted(r.version, added, proposal);
+                    documentVectorVersion.set(r.version);
+                }
+                proposals.headMap(r.version, true).clear();
+            }
+        });
+
+        int committed = documentVectorVersion.get();
+        lastProposedVersion.set(committed);
+        loggedVersion.set(committed);
+        for (DocumentUpdate p : proposals.tailMap(committed, false).values()) currentBatch.addAll(p.getEntries());
+        if (!currentBatch.isEmpty()) {
+            batchScheduler.schedule(Libp2pLeader::flushBatch, LibP2pConfig.GROUP_COMMIT_WINDOW_MS, TimeUnit.MILLISECONDS);
+        }
+
+        System.out.println("Estado recuperado: versao " + committed + ", " + currentDocumentCidVector.size() + " CIDs"
+                + " (snapshot " + (snapshot == null ? "-" : String.valueOf(snapshot.version)) + " + " + records
+                + " registos, " + currentBatch.size() + " documento(s) a repropor) em "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /** Gauges read at scrape time: state of the consensus pipeline and of the embedding queue. */
+    private static void registerGauges() {
+        Metrics.gauge("lib2p_leader_committed_version", "Versão committed", documentVectorVersion::get);
+        Metrics.gauge("lib2p_leader_vector_cids", "CIDs no vetor committed", currentDocumentCidVector::size);
+        Metrics.gauge("lib2p_leader_pending_versions", "Versões propostas ainda sem commit",
+                () -> lastProposedVersion.get() - documentVectorVersion.get());
+        Metrics.gauge("lib2p_leader_commit_queue_depth", "Versões com maioria à espera do thread de commit",
+                () -> commitStage.getQueue().size());
+        Metrics.gauge("lib2p_leader_log_failed", "1 se um commit não pôde ser escrito no log (commits e uploads parados)",
+                () -> logFailure == null ? 0 : 1);
+        Metrics.gauge("lib2p_leader_batch_documents", "Documentos com embedding à espera de serem propostos", () -> {
+            synchronized (batchLock) {
+                return currentBatch.size();
+            }
+        });
+        Metrics.gauge("lib2p_leader_embedding_queue_depth", "Documentos na fila de embeddings", embeddingPipeline::queueDepth);
+        Metrics.gauge("lib2p_leader_embedding_in_progress", "Documentos a ser processados pelos workers de embeddings",
+                embeddingPipeline::inProgress);
+        Metrics.counter("lib2p_leader_embeddings_completed_total", "Embeddings calculados", embeddingPipeline::completed);
+        Metrics.counter("lib2p_leader_embeddings_failed_total", "Documentos sem embedding por erro", embeddingPipeline::failed);
+        Metrics.gauge("lib2p_leader_peers", "Peers registados", peerAddressMap::size);
+        Metrics.gauge("lib2p_leader_file_names", "Nomes de ficheiro no índice nome -> CID", nameIndex::size);
+    }
+
+    /** Queues the document for embedding; it is proposed once its embedding is ready. False if the queue is full. */
+    private static boolean processNewDocument(String cid) {
+        return embeddingPipeline.submit(cid);
     }
 
     /** Handler para upload de ficheiros */
@@ -96,7 +316,14 @@ public class Libp2pLeader {
                 sendResponse(exchange, 405, "Método não permitido");
                 return;
             }
+            if (logFailure != null) {
+                // nenhum upload voltaria a ter commit: recusar em vez de responder 200
+                uploadsRejected.inc();
+                sendResponse(exchange, 503, "Líder sem log persistente (" + logFailure + "): uploads suspensos até reiniciar o líder");
+                return;
+            }
 
+            long start = System.nanoTime();
             try {
                 // Obter nome do ficheiro do header ou query parameter
                 String filename = getFilename(exchange);
@@ -105,22 +332,32 @@ public class Libp2pLeader {
                 }
 
                 String sanitizedFilename = sanitizeFilename(filename);
-                // Usa resolve para maior segurança e portabilidade
-                java.nio.file.Path targetDir = Paths.get(UPLOAD_DIR);
-                Files.createDirectories(targetDir); // garante existência
-                java.nio.file.Path targetPath = targetDir.resolve(sanitizedFilename);
 
-                // Escrever ficheiro no disco, sobrescrevendo se já existir
+                // Partir em chunks, guardar só os blocos novos e calcular o CID (raiz Merkle) numa só passagem
+                String cid;
                 try (InputStream is = exchange.getRequestBody()) {
-                    Files.copy(is, targetPath, java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+                    cid = blockStore.put(is);
                 }
 
-                System.out.println("Ficheiro recebido: " + filename + " -> " + targetPath.toString());
-
-                // Lógica de atualização do vetor de documentos
-                processNewDocument(targetPath.toString());
+                // Conteúdo repetido não escreveu nada; o nome aponta para o CID (o anterior continua intacto)
+                String previous = nameIndex.put(sanitizedFilename, cid);
+                System.out.println("Ficheiro recebido: " + sanitizedFilename + " -> " + blockStore.dagPath(cid)
+                        + (previous != null && !previous.equals(cid) ? " (antes " + previous + ")" : ""));
+
+                // Lógica de atualização do vetor de documentos (embedding calculado fora deste thread)
+                Long arrival = start;
+                uploadedAt.putIfAbsent(cid, arrival);
+                if (!processNewDocument(cid)) {
+                    uploadedAt.remove(cid, arrival);
+                    uploadsRejected.inc();
+                    exchange.getResponseHeaders().add("Retry-After", "1");
+                    sendResponse(exchange, 503, "Fila de embeddings cheia, tente novamente (CID " + cid + ")");
+                    return;
+                }
 
-                String response = "Ficheiro " + filename + " enviado com sucesso e pendente de commit";
+                String response = "Ficheiro " + filename + " enviado com sucesso (CID " + cid + ") e pendente de commit";
+                uploads.inc();
+                uploadTime.recordSince(start);
                 sendResponse(exchange, 200, response);
 
             } catch (Exception e) {
@@ -153,66 +390,186 @@ public class Libp2pLeader {
     }
 
     /**
-     * Create a tentative/pending new version (current + new CID) and propagate the tentative update
-     * to all registered peers. The leader does NOT replace the current vector until majority confirmation.
+     * Queue documents whose embeddings are ready for the next tentative version. With group commit enabled,
+     * CIDs arriving within GROUP_COMMIT_WINDOW_MS (or until GROUP_COMMIT_MAX_BATCH is reached) are proposed
+     * together as one version. Called by the embedding workers, one call per finished batch.
      */
-    private static void processNewDocumentTentative(String filepath) throws Exception {
-        // 1. Gerar CID a partir do conteúdo do ficheiro
-        String cid = generateCid(filepath);
-
-        // 2. Determine new version id (tentative)
-        int newVersion = documentVectorVersion.get() + 1;
-
-        // 3. Build pending vector without mutating currentDocumentCidVector
-        List<String> newVector;
-        synchronized (currentDocumentCidVector) {
-            newVector = new ArrayList<>(currentDocumentCidVector);
-            if (!newVector.contains(cid)) {
-                newVector.add(cid);
+    private static void processNewDocumentsTentative(List<DocumentUpdate.Entry> entries) {
+        // Juntar ao lote corrente; o primeiro do lote agenda o flush, um lote cheio faz flush imediato
+        boolean flushNow;
+        synchronized (batchLock) {
+            boolean wasEmpty = currentBatch.isEmpty();
+            currentBatch.addAll(entries);
+            flushNow = LibP2pConfig.GROUP_COMMIT_WINDOW_MS <= 0
+                    || currentBatch.size() >= LibP2pConfig.GROUP_COMMIT_MAX_BATCH;
+            if (!flushNow && wasEmpty) {
+                batchScheduler.schedule(Libp2pLeader::flushBatch, LibP2pConfig.GROUP_COMMIT_WINDOW_MS, TimeUnit.MILLISECONDS);
             }
         }
-        pendingVectors.put(newVersion, newVector);
+        if (flushNow) flushBatch();
+    }
 
-        // 4. Generate embedding placeholder and store in pendingEmbeddings
-        String embedding = "embedding_for_" + cid.substring(0, Math.min(10, cid.length()));
-        Map<String, String> embMap = new ConcurrentHashMap<>();
-        embMap.put(cid, embedding);
-        pendingEmbeddings.put(newVersion, embMap);
+    /**
+     * Proposes the current batch as tentative versions while the pipeline has room
+     * (fewer than PIPELINE_DEPTH uncommitted versions). When the window is full, uploads keep
+     * accumulating in the batch; commitVersion flushes them as soon as a slot frees up.
+     */
+    private static void flushBatch() {
+        while (true) {
+            DocumentUpdate update;
+            synchronized (batchLock) {
+                if (currentBatch.isEmpty()) return;
+                if (!pipelineHasRoom()) return;
+
+                int n = Math.min(currentBatch.size(), LibP2pConfig.GROUP_COMMIT_MAX_BATCH);
+                List<DocumentUpdate.Entry> batch = new ArrayList<>(currentBatch.subList(0, n));
+                currentBatch = new ArrayList<>(currentBatch.subList(n, currentBatch.size()));
+
+                update = proposeVersion(lastProposedVersion.get() + 1, batch);
+                if (update == null) continue; // só CIDs repetidos: tentar o resto do lote
+            }
+            propagateUpdateToPeers(update);
+            QuorumTracker quorum = quorums.get(update.getVersion());
+            if (quorum != null && quorum.members() == 0) {
+                // Nenhum peer registado na proposta: ninguém vai confirmar, commit automático
+                int version = update.getVersion();
+                System.out.println("Nenhum peer registado — commit automático da versão " + version);
+                commitStage.execute(() -> {
+                    synchronized (commitLock) {
+                        if (quorums.get(version) == quorum) markReadyAndCommit(version, "");
+                    }
+                });
+            }
+        }
+    }
 
-        // Ensure confirmations storage initialized
-        confirmationsByVersion.putIfAbsent(newVersion, new ConcurrentHashMap<>());
+    /**
+     * True if another version can be proposed. If the window is full and its oldest version has waited
+     * more than PROPOSAL_TIMEOUT_MS, the whole window is abandoned and its documents go back to the batch.
+     * Caller holds batchLock.
+     */
+    private static boolean pipelineHasRoom() {
+        int committed = documentVectorVersion.get();
+        int last = lastProposedVersion.get();
+        if (last - committed < LibP2pConfig.PIPELINE_DEPTH) return true;
+
+        // Versões com o commit já no log nunca são abandonadas: só falta o fsync, e o commit volta a chamar flushBatch
+        int logged = loggedVersion.get();
+        if (logged >= last) return false;
+        Long oldest = proposedAt.get(logged + 1);
+        long waited = oldest == null ? 0 : System.currentTimeMillis() - oldest;
+        if (waited < LibP2pConfig.PROPOSAL_TIMEOUT_MS) {
+            // se o commit nunca chegar, voltar a tentar quando a versão mais antiga expirar
+            if (!retryScheduled) {
+                retryScheduled = true;
+                batchScheduler.schedule(() -> {
+                    synchronized (batchLock) {
+                        retryScheduled = false;
+                    }
+                    flushBatch();
+                }, LibP2pConfig.PROPOSAL_TIMEOUT_MS - waited, TimeUnit.MILLISECONDS);
+            }
+            return false;
+        }
 
-        // 5. Propagate tentative update to peers
-        DocumentUpdate update = new DocumentUpdate(newVersion, cid, embedding);
-        propagateUpdateToPeers(update);
-        System.out.println("Vetor pendente criado (versao " + newVersion + ") com CID " + cid);
+        // As versões seguintes foram construídas sobre a expirada: abandonar toda a janela e voltar a propor
+        synchronized (commitLock) {
+            logged = loggedVersion.get();
+            System.err.println("Versao " + (logged + 1) + " sem maioria apos " + LibP2pConfig.PROPOSAL_TIMEOUT_MS
+                    + " ms — abandonadas versoes " + (logged + 1) + ".." + last);
+            List<DocumentUpdate.Entry> requeue = new ArrayList<>();
+            for (int v = logged + 1; v <= last; v++) {
+                DocumentUpdate abandoned = pendingUpdates.remove(v);
+                if (abandoned != null) {
+                    requeue.addAll(abandoned.getEntries());
+                    for (DocumentUpdate.Entry e : abandoned.getEntries()) pendingCids.remove(e.getCid(), v);
+                }
+                proposedAt.remove(v);
+                expectedHashes.remove(v);
+                pendingAccumulators.remove(v);
+                quorums.remove(v);
+                readyVersions.remove(v);
+                majorityHashes.remove(v);
+            }
+            requeue.addAll(currentBatch);
+            currentBatch = requeue;
+            versionsAbandoned.add(Math.max(0, last - logged));
+            lastProposedVersion.set(logged);
+        }
+        return true;
     }
 
-    private static String generateCid(String filePath) throws Exception {
-        byte[] fileBytes = Files.readAllBytes(Paths.get(filePath));
-        MessageDigest digest = MessageDigest.getInstance("SHA-256");
-        byte[] hash = digest.digest(fileBytes);
-        StringBuilder hexString = new StringBuilder();
-        for (byte b : hash) {
-            String hex = Integer.toHexString(0xff & b);
-            if (hex.length() == 1) hexString.append('0');
-            hexString.append(hex);
+    /**
+     * Create a tentative/pending new version (predecessor's vector + new CIDs). The leader does NOT replace
+     * the current vector until majority confirmation; only the delta is kept. Returns null if the batch has
+     * no new CID. Caller holds batchLock, so versions are allocated and built strictly in order.
+     */
+    private static DocumentUpdate proposeVersion(int newVersion, List<DocumentUpdate.Entry> batch) {
+        // 1. Base = acumulador da versão anterior pendente; se já teve commit (ou não existe), o do vetor atual
+        MerkleAccumulator baseAcc = pendingAccumulators.get(newVersion - 1);
+        MerkleAccumulator acc;
+        if (baseAcc != null) {
+            acc = baseAcc.copy();
+        } else {
+            synchronized (currentDocumentCidVector) {
+                acc = committedTree.accumulator();
+            }
         }
-        return hexString.toString();
-    }
 
-    private static void propagateUpdateToPeers(DocumentUpdate update) {
-        // Format sent to peers: "version;cid;embedding"
-        String message = update.getVersion() + ";" + update.getCid();
-        if (update.getEmbedding() != null && !update.getEmbedding().isEmpty()) {
-            message += ";" + update.getEmbedding();
+        // 2. Keep only new CIDs: O(1) lookups in the committed index and in the pending CIDs
+        List<DocumentUpdate.Entry> entries = new ArrayList<>();
+        Set<String> inBatch = new HashSet<>();
+        for (DocumentUpdate.Entry e : batch) {
+            String cid = e.getCid();
+            if (pendingCids.containsKey(cid) || !inBatch.add(cid)) continue;
+            if (currentDocumentCidVector.contains(cid)) {
+                uploadedAt.remove(cid); // já committed: este upload não terá commit próprio
+                continue;
+            }
+            acc.add(BlockStore.fromHex(cid));
+            entries.add(e);
+        }
+        if (entries.isEmpty()) {
+            System.out.println("Lote sem CIDs novos (" + batch.size() + " repetidos) — nada a propor");
+            return null;
         }
-        System.out.println("A propagar atualização pendente para os peers: " + message);
 
-        List<String> peerIds = new ArrayList<>(peerAddressMap.keySet());
-        for (String peerId : peerIds) {
-            sendMessageToPeer(peerId, message);
+        // 3. Store pending update (with embeddings), then publish the new version id
+        DocumentUpdate update = new DocumentUpdate(newVersion, entries);
+        for (DocumentUpdate.Entry e : entries) pendingCids.put(e.getCid(), newVersion);
+        // Sem esperar pelo fsync: uma proposta perdida num crash volta simplesmente a ser proposta
+        stateLog.append(StateLog.TENTATIVE, newVersion, update.toMessage());
+        pendingUpdates.put(newVersion, update);
+        proposedAt.put(newVersion, System.currentTimeMillis());
+        expectedHashes.put(newVersion, acc.rootHex());
+        pendingAccumulators.put(newVersion, acc);
+
+        // A maioria fica fixada com os peers registados agora
+        quorums.put(newVersion, new QuorumTracker(peerAddressMap.keySet()));
+        lastProposedVersion.set(newVersion);
+        proposalNanos.set(newVersion % proposalNanos.length(), System.nanoTime());
+        versionsProposed.inc();
+        versionDocuments.record(entries.size());
+
+        System.out.println("Vetor pendente criado (versao " + newVersion + ") com " + entries.size() + " CID(s)");
+        return update;
+    }
+
+    private static void propagateUpdateToPeers(DocumentUpdate update) {
+        long start = System.nanoTime();
+        // Format sent to peers: "version;cid1:embedding1,cid2:embedding2,..."
+        String message = update.toMessage();
+        System.out.println("A propagar atualização pendente para os peers: versao " + update.getVersion()
+                + " (" + update.getEntries().size() + " documentos)");
+
+        // Gossip pelo PUBSUB_TOPIC: o líder só envia a GOSSIP_FANOUT peers e estes reencaminham.
+        // Peers sem ligação persistente não estão na rede de gossip: recebem por HTTP (as confirmações
+        // chegam via /api/peers/confirm em ambos os casos)
+        leaderNode.publish(LibP2pConfig.PUBSUB_TOPIC, message);
+        for (String peerId : peerAddressMap.keySet()) {
+            if (!leaderNode.isConnected(peerId)) dispatcher.submit(peerId, () -> sendMessageToPeer(peerId, message));
         }
+        propagateTime.recordSince(start);
     }
 
     /** Handler para enviar mensagens para todos os peers registados (broadcast) */
@@ -233,11 +590,19 @@ public class Libp2pLeader {
 
             System.out.println("Lider recebeu (broadcast): " + message);
 
+            // Enviar a todos em paralelo e esperar no máximo pelo timeout de um envio
+            List<CompletableFuture<Boolean>> results = new ArrayList<>();
+            for (String peerId : peerAddressMap.keySet()) {
+                results.add(dispatcher.submit(peerId, () -> sendMessageToPeer(peerId, message)));
+            }
+            try {
+                CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).get(4, TimeUnit.SECONDS);
+            } catch (Exception ignored) {
+                // peers lentos contam como não enviados
+            }
             int sent = 0;
-            List<String> peerIds = new ArrayList<>(peerAddressMap.keySet());
-            for (String peerId : peerIds) {
-                boolean ok = sendMessageToPeer(peerId, message);
-                if (ok) sent++;
+            for (CompletableFuture<Boolean> r : results) {
+                if (r.isDone() && !r.isCompletedExceptionally() && r.join()) sent++;
             }
 
             String response = "Mensagem enviada para " + sent + " de " + peerAddressMap.size() + " peers";
@@ -245,6 +610,201 @@ public class Libp2pLeader {
         }
     }
 
+    /** Handler com o estado da fila de embeddings */
+    static class EmbeddingStatusHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            addCors(exchange);
+            exchange.getResponseHeaders().add("Content-Type", "text/plain; charset=UTF-8");
+
+            String response = "Fila: " + embeddingPipeline.queueDepth() + "\n"
+                    + "Em curso: " + embeddingPipeline.inProgress() + "\n"
+                    + "Concluidos: " + embeddingPipeline.completed() + "\n"
+                    + "Falhados: " + embeddingPipeline.failed() + "\n";
+            sendResponse(exchange, 200, response);
+        }
+    }
+
+    /** Recomputes the shard assignment for the registered peers (new epoch). */
+    private static synchronized void updateShardAssignment() {
+        ShardRing.Assignment a = new ShardRing(peerAddressMap.keySet(), LibP2pConfig.SHARD_VNODES)
+                .assign(shardAssignment.epoch + 1, LibP2pConfig.SHARD_REPLICATION);
+        shardAssignment = a;
+        System.out.println("Atribuição de shards (época " + a.epoch + "): " + peerAddressMap.size() + " peers, "
+                + a.shards() + " shards, replicação " + Math.min(a.replication, peerAddressMap.size()));
+    }
+
+    /** GET /api/shards -> "epoch;replication;shards" then "shard;peer1,peer2,..." (see ShardRing.Assignment) */
+    static class ShardsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            addCors(exchange);
+            exchange.getResponseHeaders().add("Content-Type", "text/plain; charset=UTF-8");
+            sendResponse(exchange, 200, shardAssignment.encode());
+        }
+    }
+
+    /** POST /api/embeddings  body "cid1,cid2,..." -> "cid:embedding" per committed CID (the leader has every shard) */
+    static class EmbeddingsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            addCors(exchange);
+            CidVector.Snapshot cids;
+            EmbeddingStore.Rows rows;
+            synchronized (currentDocumentCidVector) {
+                cids = currentDocumentCidVector.snapshot();
+                rows = documentEmbeddings.rows();
+            }
+            StateTransfer.serveEmbeddings(exchange, cid -> {
+                int row = cids.indexOf(cid);
+                return row < 0 ? null : rows.encoded(row);
+            });
+        }
+    }
+
+    /**
+     * Search across all peers (see ShardedSearch), same parameters as the peers' /api/search:
+     * POST /api/search?k=10&metric=cosine|dot&ef=64&exact=false   body = query vector
+     * GET  /api/search?text=...&k=10
+     * Response: "version;rows;answered/shards" then one "cid;score" line per result, best first. Fewer shards
+     * answered than exist means the result is partial (no replica of the missing shards answered in time).
+     */
+    static class SearchHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            addCors(exchange);
+            exchange.getResponseHeaders().add("Content-Type", "text/plain; charset=UTF-8");
+            if ("OPTIONS".equalsIgnoreCase(exchange.getRequestMethod())) {
+                sendResponse(exchange, 204, "");
+                return;
+            }
+            Map<String, String> q = parseQuery(exchange.getRequestURI().getRawQuery());
+            float[] query;
+            if (q.containsKey("text")) {
+                query = EmbeddingModel.embed(java.net.URLDecoder.decode(q.get("text"), StandardCharsets.UTF_8.name()));
+            } else if ("POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+                query = EmbeddingModel.parse(readRequestBody(exchange).trim());
+            } else {
+                sendResponse(exchange, 400, "Indique o vetor no corpo (POST) ou o parametro text");
+                return;
+            }
+            if (query == null) {
+                sendResponse(exchange, 400, "Vetor de consulta invalido (esperados " + EmbeddingModel.DIM + " valores)");
+                return;
+            }
+            int k;
+            int ef = 0; // sem ef: cada peer usa HNSW_EF_SEARCH
+            try {
+                k = Math.min(1000, Integer.parseInt(q.getOrDefault("k", "10")));
+                if (q.containsKey("ef")) ef = Integer.parseInt(q.get("ef"));
+            } catch (NumberFormatException e) {
+                sendResponse(exchange, 400, "Parametros k/ef invalidos");
+                return;
+            }
+            if (k < 1 || (q.containsKey("ef") && ef < 1)) {
+                sendResponse(exchange, 400, "Parametros k/ef invalidos (k e ef têm de ser >= 1)");
+                return;
+            }
+            // os peers recebem os mesmos parâmetros, já validados (menos o texto, que já vai como vetor)
+            StringBuilder params = new StringBuilder("k=").append(k);
+            if (ef > 0) params.append("&ef=").append(ef);
+            for (String name : new String[]{"metric", "exact"}) {
+                if (q.containsKey(name)) params.append('&').append(name).append('=').append(q.get(name));
+            }
+
+            long start = System.nanoTime();
+            ShardedSearch.Result result;
+            try {
+                result = ShardedSearch.search(shardAssignment, Libp2pLeader::searchPeer, params.toString(), query, k);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                sendResponse(exchange, 503, "Pesquisa interrompida");
+                return;
+            }
+            StringBuilder sb = new StringBuilder();
+            sb.append(result.version).append(';').append(result.rows).append(';')
+                    .append(result.answered).append('/').append(result.shards);
+            for (Map.Entry<String, Float> hit : result.hits) {
+                sb.append('\n').append(hit.getKey()).append(';').append(hit.getValue());
+            }
+            System.out.println("Pesquisa distribuída top-" + k + ": " + result.answered + "/" + result.shards + " shards, "
+                    + result.rows + " documentos, " + result.hedged + " pedido(s) repetido(s), "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms");
+            sendResponse(exchange, 200, sb.toString());
+        }
+    }
+
+    /** Sends a shard search to a peer: over its persistent connection, or by HTTP if it has none. */
+    private static CompletableFuture<Libp2pNode.Response> searchPeer(String peerId, String params, String vector) {
+        if (leaderNode.isConnected(peerId)) {
+            return leaderNode.request(peerId, "/api/search", params + "\n" + vector, LibP2pConfig.SEARCH_TIMEOUT_MS);
+        }
+        String addr = peerAddressMap.get(peerId);
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return new Libp2pNode.Response(200, StateTransfer.post(addr, "/api/search?" + params, vector));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, searchExecutor);
+    }
+
+    /** GET /api/metrics -> histograms, counters and gauges of the leader (Prometheus text format, see Metrics) */
+    static class MetricsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            addCors(exchange);
+            exchange.getResponseHeaders().add("Content-Type", Metrics.CONTENT_TYPE);
+            sendResponse(exchange, 200, Metrics.scrape());
+        }
+    }
+
+    /** GET/HEAD /api/files/{cid}: content of a document, with Range, ETag and 304 (see ContentServer) */
+    static class FilesHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            addCors(exchange);
+            String method = exchange.getRequestMethod();
+            if ("OPTIONS".equalsIgnoreCase(method)) {
+                sendResponse(exchange, 204, "");
+                return;
+            }
+            if (!"GET".equalsIgnoreCase(method) && !"HEAD".equalsIgnoreCase(method)) {
+                sendResponse(exchange, 405, "Metodo nao permitido");
+                return;
+            }
+            String cid = ContentServer.cidOf(exchange.getRequestURI().getPath());
+            if (cid == null) {
+                sendResponse(exchange, 400, "CID inválido");
+                return;
+            }
+            ContentServer.serve(exchange, blockStore, cid);
+        }
+    }
+
+    /** GET /api/dag/{cid} and /api/blocks/{hash}: manifests and blocks for peers replicating documents */
+    static class BlocksHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            addCors(exchange);
+            if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+                sendResponse(exchange, 405, "Metodo nao permitido");
+                return;
+            }
+            String path = exchange.getRequestURI().getPath();
+            String hash = ContentServer.cidOf(path);
+            if (hash == null) {
+                sendResponse(exchange, 400, "Hash inválido");
+                return;
+            }
+            if (path.startsWith("/api/dag/")) {
+                ContentServer.serveDag(exchange, blockStore, hash);
+            } else {
+                ContentServer.serveBlock(exchange, blockStore, hash);
+            }
+        }
+    }
+
     /** Handler para listar peers e os seus endereços */
     static class ListPeersHandler implements HttpHandler {
         @Override
@@ -295,9 +855,10 @@ public class Libp2pLeader {
             String addr = ip + ":" + port;
 
             // armazenar
-            peerAddressMap.put(peerId, addr);
+            boolean newPeer = peerAddressMap.put(peerId, addr) == null;
             leaderNode.connectToPeer(peerId); // mantém comportamento anterior
             System.out.println("Peer " + peerId + " conectado em " + addr + "!");
+            if (newPeer) updateShardAssignment();
 
             sendResponse(exchange, 200, "Peer conectado: " + peerId);
         }
@@ -315,126 +876,288 @@ public class Libp2pLeader {
                 return;
             }
 
-            String body = readRequestBody(exchange);
-            if (body == null || body.trim().isEmpty()) {
-                sendResponse(exchange, 400, "Corpo vazio");
-                return;
-            }
-
-            String[] parts = body.trim().split(":");
-            if (parts.length < 3) {
-                sendResponse(exchange, 400, "Formato inválido. Use peerId:version:hash");
-                return;
-            }
-
-            String peerId = parts[0];
-            int version;
-            try {
-                version = Integer.parseInt(parts[1]);
-            } catch (NumberFormatException nfe) {
-                sendResponse(exchange, 400, "Versão inválida");
-                return;
-            }
-            String hash = parts[2];
-
-            confirmationsByVersion.putIfAbsent(version, new ConcurrentHashMap<>());
-            confirmationsByVersion.get(version).put(peerId, hash);
-            System.out.println("Confirmação recebida de " + peerId + " para versão " + version + " -> " + hash);
+            Libp2pNode.Response response = processConfirmation(readRequestBody(exchange));
+            sendResponse(exchange, response.code, response.body);
+        }
+    }
 
-            // check majority for this version
-            try {
-                checkAndCommitVersionIfMajority(version);
-            } catch (Exception e) {
-                System.err.println("Erro ao validar commits: " + e.getMessage());
-            }
+    /** A peer's confirmation of the vector hash it computed for a tentative version: "peerId:version:hash". */
+    static class Confirmation {
+        String peerId;
+        int version;
+        String hash;
 
-            sendResponse(exchange, 200, "Confirmacao recebida");
+        /** Throws IllegalArgumentException if a field is missing (NumberFormatException if the version is not a number). */
+        static Confirmation parse(String body) {
+            String[] parts = body.trim().split(":");
+            if (parts.length < 3) throw new IllegalArgumentException("Formato inválido. Use peerId:version:hash");
+            Confirmation c = new Confirmation();
+            c.peerId = parts[0];
+            c.version = Integer.parseInt(parts[1]);
+            c.hash = parts[2];
+            return c;
         }
     }
 
-    /** Checks confirmations for a version and commits if a majority agrees on same hash. */
-    private static void checkAndCommitVersionIfMajority(int version) throws Exception {
-        Map<String, String> confirmations = confirmationsByVersion.get(version);
-        if (confirmations == null) return;
+    /**
+     * Records a peer confirmation "peerId:version:hash" and answers at once: counting the vote does no I/O, and
+     * the commit of a version that reaches its majority runs on the commit thread. Shared by the HTTP endpoint
+     * and the transport.
+     */
+    static Libp2pNode.Response processConfirmation(String body) {
+        long start = System.nanoTime();
+        if (body == null || body.trim().isEmpty()) {
+            return new Libp2pNode.Response(400, "Corpo vazio");
+        }
 
-        int registeredPeers = peerAddressMap.size();
-        if (registeredPeers == 0) {
-            // If no peers registered, auto-commit
-            System.out.println("Nenhum peer registado — commit automático da versão " + version);
-            commitVersion(version);
-            return;
+        Confirmation confirmation;
+        try {
+            confirmation = Confirmation.parse(body);
+        } catch (NumberFormatException nfe) {
+            return new Libp2pNode.Response(400, "Versão inválida");
+        } catch (IllegalArgumentException e) {
+            return new Libp2pNode.Response(400, e.getMessage());
+        }
+        String peerId = confirmation.peerId;
+        int version = confirmation.version;
+        String hash = confirmation.hash;
+
+        long proposed = proposalNanos.get(Math.floorMod(version, proposalNanos.length()));
+        if (proposed != 0) confirmationLag.get(peerId).recordSince(proposed);
+        System.out.println("Confirmação recebida de " + peerId + " para versão " + version + " -> " + hash);
+
+        // Hash diferente do calculado pelo líder: localizar a divergência comparando subárvores
+        String expected = expectedHashes.get(version);
+        if (expected != null && !expected.equals(hash)) {
+            divergentConfirmations.inc();
+            System.err.println("Peer " + peerId + " divergente na versão " + version + " (esperado " + expected + ")");
+            dispatcher.submit(peerId, () -> locateDivergence(peerId));
         }
 
-        // Count occurrences of each hash
-        Map<String, Integer> hashCounts = new HashMap<>();
-        for (String hash : confirmations.values()) {
-            hashCounts.merge(hash, 1, Integer::sum);
+        // Sem votação (versão já committed ou abandonada): nada a contar
+        QuorumTracker quorum = quorums.get(version);
+        if (quorum != null) {
+            switch (quorum.vote(peerId, hash)) {
+                case MAJORITY:
+                    commitStage.execute(() -> commitOnMajority(version, hash, quorum));
+                    break;
+                case COUNTED:
+                    System.out.println("Ainda sem maioria para versao " + version + " (count=" + quorum.count(hash)
+                            + ", needed=" + quorum.majority() + ")");
+                    break;
+                case NOT_MEMBER:
+                    System.out.println("Peer " + peerId + " registado depois da proposta da versao " + version + " — voto não contado");
+                    break;
+                default:
+                    break; // repetido ou depois da maioria
+            }
         }
 
-        // Find top hash and count
-        String topHash = null;
-        int topCount = 0;
-        for (Map.Entry<String, Integer> e : hashCounts.entrySet()) {
-            if (e.getValue() > topCount) {
-                topHash = e.getKey();
-                topCount = e.getValue();
+        confirmTime.recordSince(start);
+        return new Libp2pNode.Response(200, "Confirmacao recebida");
+    }
+
+    /**
+     * Commits {@code version} once {@code hash} has a majority (queued once per version, by the vote that
+     * reached it), unless the hash differs from the one the leader computed. Runs on the commit thread.
+     * The window may have been abandoned (and the version proposed again) after the vote was queued, so the
+     * majority only counts if {@code quorum} is still the tracker of the version's current proposal.
+     */
+    private static void commitOnMajority(int version, String hash, QuorumTracker quorum) {
+        synchronized (commitLock) {
+            if (quorums.get(version) != quorum) {
+                System.out.println("Maioria para versao " + version + " numa proposta entretanto abandonada — sem commit");
+                return;
+            }
+            String expected = expectedHashes.get(version);
+            if (expected != null && !expected.equals(hash)) {
+                System.err.println("Maioria para versao " + version + " num hash diferente do esperado pelo líder (" + hash + " != " + expected + ") — sem commit");
+                return;
             }
+            System.out.println("Maioria atingida para versao " + version + " (hash " + hash + ", count=" + quorum.count(hash) + "). Efetuando commit.");
+            long proposed = proposalNanos.get(Math.floorMod(version, proposalNanos.length()));
+            if (proposed != 0) majorityTime.recordSince(proposed);
+            markReadyAndCommit(version, hash);
         }
+    }
 
-        int majority = (registeredPeers / 2) + 1;
-        if (topHash != null && topCount >= majority) {
-            System.out.println("Maioria atingida para versao " + version + " (hash " + topHash + ", count=" + topCount + "). Efetuando commit.");
-            commitVersion(version);
-        } else {
-            System.out.println("Ainda sem maioria para versao " + version + " (topCount=" + topCount + ", needed=" + majority + ")");
+    /**
+     * Marks a version as confirmed (with the hash sent in its commit) and commits every confirmed version that
+     * is next in sequence. Caller holds commitLock and has checked that the confirmed proposal is the current one.
+     */
+    private static void markReadyAndCommit(int version, String hash) {
+        majorityHashes.put(version, hash);
+        readyVersions.add(version);
+        int next = loggedVersion.get() + 1;
+        while (readyVersions.remove(next)) {
+            commitVersion(next);
+            next++;
+        }
+        if (!readyVersions.isEmpty()) {
+            System.out.println("Versao " + version + " com maioria, à espera do commit das versões anteriores");
         }
     }
 
-    /** Commits a pending version: send commit to all peers and apply locally. */
+    /**
+     * Commits a pending version: writes the commit to the log and, once it is on disk, applies it locally and
+     * sends it to the peers ({@link #applyCommitted}). Caller holds commitLock, on the commit thread. Nothing of
+     * the version is visible (search, vector tree, deltas) before the record is durable, so a crash never loses
+     * a version that was served. Records complete in log order on one thread, so versions are applied in order.
+     */
     private static void commitVersion(int version) {
-        List<String> vector = pendingVectors.get(version);
-        if (vector == null) {
+        long start = System.nanoTime();
+        DocumentUpdate update = pendingUpdates.get(version);
+        if (update == null) {
             System.err.println("Sem vetor pendente para commit na versao " + version);
             return;
         }
 
-        // Build payload to send to peers: "version;cid1,cid2,..."
-        String joined = String.join(",", vector);
-        String payload = version + ";" + joined;
+        // Build delta payload: only the CIDs added by this version
+        List<String> delta = new ArrayList<>();
+        for (DocumentUpdate.Entry e : update.getEntries()) delta.add(e.getCid());
+        CompletableFuture<Void> durable = stateLog.append(StateLog.COMMIT, version, String.join(",", delta));
+        loggedVersion.set(version);
+        durable.whenComplete((ok, err) -> {
+            if (err != null) {
+                failLog(version, err);
+                return;
+            }
+            commitStage.execute(() -> applyCommitted(version, update, delta, start));
+        });
+    }
 
-        // Send commit to all peers
-        List<String> peerIds = new ArrayList<>(peerAddressMap.keySet());
-        for (String peerId : peerIds) {
-            sendCommitToPeer(peerId, payload);
+    /**
+     * Stops commits after a commit record could not be written: nothing after it can be applied in order, so
+     * uploads are refused (503) from now on instead of being accepted with no commit ahead. A restart replays
+     * what did reach the disk and proposes again the documents of the tentative records.
+     */
+    private static void failLog(int version, Throwable err) {
+        Throwable cause = err instanceof CompletionException && err.getCause() != null ? err.getCause() : err;
+        logFailure = String.valueOf(cause.getMessage());
+        int waiting;
+        synchronized (batchLock) {
+            waiting = currentBatch.size();
+        }
+        System.err.println("Commit da versao " + version + " nao ficou persistido (" + logFailure + ") — o lider deixa de"
+                + " fazer commits e recusa uploads ate ser reiniciado; " + waiting + " documento(s) aceites ficam sem commit");
+    }
+
+    /**
+     * Applies a durable commit locally and sends it to the peers. Runs on the commit thread.
+     * Peers get only the delta against the parent version ("version;parent;hash;cid1,cid2,...");
+     * a peer whose base does not match answers 409 and then gets the full vector ("version;cid1,cid2,...").
+     */
+    private static void applyCommitted(int version, DocumentUpdate update, List<String> delta, long start) {
+        if (version != documentVectorVersion.get() + 1) {
+            // uma versão anterior falhou no log: esta já não pode ser aplicada por cima
+            System.err.println("Versao " + version + " persistida fora de ordem (committed " + documentVectorVersion.get() + ") — ignorada");
+            return;
         }
+        String hash = majorityHashes.getOrDefault(version, "");
+        String payload = version + ";" + (version - 1) + ";" + hash + ";" + String.join(",", delta);
 
-        // Apply locally
+        // Apply locally (in place: append the delta). Só depois sai de pendingCids, para nunca falhar a deteção de repetidos
+        int size;
+        CidVector.Snapshot snapshot = null;
+        EmbeddingStore.Rows embeddings = null;
         synchronized (currentDocumentCidVector) {
-            currentDocumentCidVector.clear();
-            currentDocumentCidVector.addAll(vector);
+            int added = currentDocumentCidVector.addAll(delta);
+            for (String cid : delta) committedTree.append(cid);
+            recordCommitted(version, added, update);
             documentVectorVersion.set(version);
+            size = currentDocumentCidVector.size();
+            // o snapshot entra no log a seguir a esta versão: só se nenhum commit posterior já lá estiver
+            if (stateLog.snapshotDue(version) && loggedVersion.get() == version) {
+                snapshot = currentDocumentCidVector.snapshot();
+                embeddings = documentEmbeddings.rows();
+            }
+        }
+        for (String cid : delta) {
+            pendingCids.remove(cid, version);
+            Long arrival = uploadedAt.remove(cid);
+            if (arrival != null) uploadToCommit.recordSince(arrival);
+        }
+        // O vetor e as linhas só crescem: as primeiras linhas já não mudam enquanto o snapshot é escrito
+        if (snapshot != null) stateLog.snapshot(version, snapshot, embeddings::encoded);
+
+        // Send commit to all peers (concurrently, without waiting); full vector only on base mismatch.
+        // O vetor só cresce: o da versão são as primeiras `size` linhas de qualquer snapshot posterior
+        for (String peerId : peerAddressMap.keySet()) {
+            dispatcher.submit(peerId, () -> {
+                int code = sendCommitToPeer(peerId, payload);
+                if (code == 409) {
+                    System.out.println("Peer " + peerId + " com base diferente — a enviar vetor completo da versao " + version);
+                    List<String> vector = currentDocumentCidVector.snapshot().toList(0, size);
+                    code = sendCommitToPeer(peerId, version + ";" + String.join(",", vector));
+                }
+                return code == 200;
+            });
         }
 
         // Remove pending and confirmations
-        pendingVectors.remove(version);
-        pendingEmbeddings.remove(version);
-        confirmationsByVersion.remove(version);
+        pendingUpdates.remove(version);
+        proposedAt.remove(version);
+        quorums.remove(version);
+        majorityHashes.remove(version);
+        expectedHashes.remove(version);
+        pendingAccumulators.remove(version);
+
+        // Abriu-se espaço no pipeline: propor o que se acumulou no lote
+        batchScheduler.execute(Libp2pLeader::flushBatch);
+
+        versionsCommitted.inc();
+        commitTime.recordSince(start);
+        System.out.println("Versao " + version + " committed localmente (+" + delta.size() + " CIDs, total " + size + ")");
+    }
 
-        System.out.println("Versao " + version + " committed localmente. Vector atual: " + currentDocumentCidVector);
+    /**
+     * Keeps a committed version's embeddings (in the rows of its CIDs; {@code update} may be null when replaying a
+     * commit whose proposal is not in the log) and where its rows start, for catch-up. Caller holds
+     * currentDocumentCidVector, with the version's {@code added} CIDs just appended to it.
+     */
+    private static void recordCommitted(int version, int added, DocumentUpdate update) {
+        CidVector.Snapshot cids = currentDocumentCidVector.snapshot();
+        if (update != null) {
+            for (DocumentUpdate.Entry e : update.getEntries()) {
+                int row = cids.indexOf(e.getCid());
+                if (row >= 0) documentEmbeddings.put(row, e.getEmbedding());
+            }
+        }
+        committedHistory.put(version, cids.size() - added);
+        while (committedHistory.size() > LibP2pConfig.CATCHUP_DELTA_HISTORY) committedHistory.pollFirstEntry();
     }
 
-    /** Envia commit para peerId usando o addr guardado em peerAddressMap (POST /api/peers/commit). */
-    private static boolean sendCommitToPeer(String peerId, String commitPayload) {
+    /**
+     * Envia commit para peerId pela ligação persistente; sem ligação, por HTTP usando o addr guardado em
+     * peerAddressMap (POST /api/peers/commit). Devolve o código da resposta (-1 se não foi possível enviar).
+     */
+    private static int sendCommitToPeer(String peerId, String commitPayload) {
+        long start = System.nanoTime();
+        if (leaderNode.isConnected(peerId)) {
+            try {
+                Libp2pNode.Response r = leaderNode.request(peerId, "/api/peers/commit", commitPayload, 4000)
+                        .get(4000, TimeUnit.MILLISECONDS);
+                peerRtt.get(peerId).recordSince(start);
+                if (r.code != 200 && r.code != 409) {
+                    System.err.println("Falha ao enviar commit para " + peerId + " (código: " + r.code + ")");
+                    System.err.println("Resposta do peer: " + r.body);
+                }
+                return r.code;
+            } catch (Exception e) {
+                System.err.println("Erro ao enviar commit para " + peerId + ": " + e.getMessage());
+                return -1;
+            }
+        }
         try {
             String addr = peerAddressMap.get(peerId);
             if (addr == null || addr.trim().isEmpty()) {
                 System.err.println("Sem endereco para " + peerId + " — salto envio.");
-                return false;
+                return -1;
             }
             String[] a = addr.split(":");
             if (a.length < 2) {
                 System.err.println("Endereco invalido para " + peerId + ": " + addr);
-                return false;
+                return -1;
             }
             String portStr = a[a.length - 1];
             int port = Integer.parseInt(portStr);
@@ -455,6 +1178,12 @@ public class Libp2pLeader {
             }
 
             int responseCode = conn.getResponseCode();
+            peerRtt.get(peerId).recordSince(start);
+            if (responseCode == 409) {
+                // base diferente: quem chamou envia o vetor completo
+                conn.disconnect();
+                return responseCode;
+            }
             if (responseCode != 200) {
                 System.err.println("Falha ao enviar commit para " + peerId + " (código: " + responseCode + ")");
                 // read error
@@ -467,20 +1196,219 @@ public class Libp2pLeader {
                     System.err.println("Resposta do peer: " + response.toString());
                 } catch (Exception ignored) {}
                 conn.disconnect();
-                return false;
+                return responseCode;
             }
 
             conn.disconnect();
-            return true;
+            return responseCode;
 
         } catch (Exception e) {
             System.err.println("Erro ao enviar commit para " + peerId + ": " + e.getMessage());
+            return -1;
+        }
+    }
+
+    /** GET /api/state/snapshot?offset=O&limit=N -> "version;size;root" then "cid:embedding" per row (see StateTransfer) */
+    static class StateSnapshotHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            addCors(exchange);
+            int version;
+            CidVector.Snapshot rows;
+            EmbeddingStore.Rows embeddings;
+            String root;
+            synchronized (currentDocumentCidVector) {
+                version = documentVectorVersion.get();
+                rows = currentDocumentCidVector.snapshot();
+                embeddings = documentEmbeddings.rows();
+                root = committedTree.rootHex();
+            }
+            StateTransfer.serveSnapshot(exchange, parseQuery(exchange.getRequestURI().getQuery()), version, rows, root,
+                    embeddings::encoded);
+        }
+    }
+
+    /**
+     * GET /api/state/deltas?from=V&limit=K -> committed version, then one DocumentUpdate message per committed
+     * version in [V, V+K). 410 if V is older than the kept history (the peer must fetch a snapshot instead).
+     */
+    static class StateDeltasHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            addCors(exchange);
+            exchange.getResponseHeaders().add("Content-Type", "text/plain; charset=UTF-8");
+            try {
+                Map<String, String> q = parseQuery(exchange.getRequestURI().getQuery());
+                int from = Integer.parseInt(q.getOrDefault("from", "1"));
+                int limit = Math.min(256, Integer.parseInt(q.getOrDefault("limit", "256")));
+                int committed;
+                CidVector.Snapshot cids;
+                EmbeddingStore.Rows rows;
+                NavigableMap<Integer, Integer> starts;
+                synchronized (currentDocumentCidVector) {
+                    committed = documentVectorVersion.get();
+                    cids = currentDocumentCidVector.snapshot();
+                    rows = documentEmbeddings.rows();
+                    // primeira linha das versões pedidas e da seguinte (onde acaba a última pedida)
+                    starts = new TreeMap<>(committedHistory.subMap(from, true, from + limit, true));
+                }
+                if (from <= committed && !starts.containsKey(from)) {
+                    sendResponse(exchange, 410, "Versao " + from + " fora do historico");
+                    return;
+                }
+                StringBuilder sb = new StringBuilder().append(committed);
+                int to = Math.min(committed, from + limit - 1);
+                for (int v = from; v <= to; v++) {
+                    Integer next = starts.get(v + 1);
+                    int end = next != null ? next : cids.size();
+                    List<DocumentUpdate.Entry> entries = new ArrayList<>();
+                    for (int row = starts.get(v); row < end; row++) {
+                        entries.add(new DocumentUpdate.Entry(cids.get(row), rows.encoded(row)));
+                    }
+                    sb.append('\n').append(new DocumentUpdate(v, entries).toMessage());
+                }
+                StateTransfer.throttle(sb.length());
+                sendResponse(exchange, 200, sb.toString());
+            } catch (NumberFormatException nfe) {
+                sendResponse(exchange, 400, "Parametros invalidos");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                sendResponse(exchange, 503, "Interrompido");
+            }
+        }
+    }
+
+    /**
+     * GET /api/vector/tree                          -> "version;size;root"
+     * GET /api/vector/tree?level=L&from=I&count=C   -> "version;size" then one node hash per line
+     */
+    static class VectorTreeHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            addCors(exchange);
+            exchange.getResponseHeaders().add("Content-Type", "text/plain; charset=UTF-8");
+            try {
+                Map<String, String> q = parseQuery(exchange.getRequestURI().getQuery());
+                StringBuilder sb = new StringBuilder();
+                synchronized (currentDocumentCidVector) {
+                    sb.append(documentVectorVersion.get()).append(';').append(committedTree.size());
+                    if (!q.containsKey("level")) {
+                        sb.append(';').append(committedTree.rootHex());
+                    } else {
+                        int level = Integer.parseInt(q.get("level"));
+                        long from = Long.parseLong(q.getOrDefault("from", "0"));
+                        int count = Math.min(1024, Integer.parseInt(q.getOrDefault("count", "1")));
+                        for (String h : committedTree.nodes(level, from, count)) sb.append('\n').append(h);
+                    }
+                }
+                sendResponse(exchange, 200, sb.toString());
+            } catch (NumberFormatException nfe) {
+                sendResponse(exchange, 400, "Parametros invalidos");
+            }
+        }
+    }
+
+    /**
+     * Compares our committed Merkle tree with the peer's (via its /api/vector/tree) and logs the first
+     * CID index where they differ. Only O(log N) subtree hashes are fetched.
+     */
+    private static boolean locateDivergence(String peerId) {
+        VectorMerkleTree.NodeSource local = new VectorMerkleTree.NodeSource() {
+            @Override
+            public long count(int level) {
+                synchronized (currentDocumentCidVector) {
+                    return committedTree.count(level);
+                }
+            }
+
+            @Override
+            public List<String> nodes(int level, long from, int n) {
+                synchronized (currentDocumentCidVector) {
+                    return committedTree.nodes(level, from, n);
+                }
+            }
+        };
+        VectorMerkleTree.NodeSource remote = new VectorMerkleTree.NodeSource() {
+            @Override
+            public long count(int level) throws Exception {
+                String[] header = getFromPeer(peerId, "/api/vector/tree").split(";");
+                return Long.parseLong(header[1]) >> level;
+            }
+
+            @Override
+            public List<String> nodes(int level, long from, int n) throws Exception {
+                String body = getFromPeer(peerId, "/api/vector/tree?level=" + level + "&from=" + from + "&count=" + n);
+                String[] lines = body.split("\n");
+                return new ArrayList<>(Arrays.asList(lines).subList(1, lines.length));
+            }
+        };
+        try {
+            long leaf = VectorMerkleTree.firstDivergentLeaf(local, remote);
+            if (leaf < 0) {
+                System.out.println("Vetor committed de " + peerId + " igual ao do líder — divergência só no vetor tentativo");
+            } else {
+                System.err.println("Vetor committed de " + peerId + " diverge do líder a partir do índice " + leaf);
+            }
+            return true;
+        } catch (Exception e) {
+            System.err.println("Erro ao comparar vetor com " + peerId + ": " + e.getMessage());
             return false;
         }
     }
 
-    /** Envia mensagem para peerId usando o addr guardado em peerAddressMap */
+    /** GET simples a um peer; devolve o corpo da resposta (erro se o código não for 200). */
+    private static String getFromPeer(String peerId, String pathAndQuery) throws IOException {
+        String addr = peerAddressMap.get(peerId);
+        if (addr == null) throw new IOException("Sem endereco para " + peerId);
+        URL url = new URL("http://" + addr + pathAndQuery);
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setConnectTimeout(3000);
+        conn.setReadTimeout(3000);
+        try {
+            if (conn.getResponseCode() != 200) throw new IOException("codigo " + conn.getResponseCode());
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(conn.getInputStream(), StandardCharsets.UTF_8))) {
+                StringBuilder sb = new StringBuilder();
+                String line;
+                while ((line = br.readLine()) != null) {
+                    if (sb.length() > 0) sb.append('\n');
+                    sb.append(line);
+                }
+                return sb.toString();
+            }
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    private static Map<String, String> parseQuery(String query) {
+        Map<String, String> params = new HashMap<>();
+        if (query == null) return params;
+        for (String kv : query.split("&")) {
+            int eq = kv.indexOf('=');
+            if (eq > 0) params.put(kv.substring(0, eq), kv.substring(eq + 1));
+        }
+        return params;
+    }
+
+    /**
+     * Envia mensagem para peerId pela ligação persistente; sem ligação, por HTTP usando o addr guardado em peerAddressMap.
+     * Um envio que falhe pela ligação não é repetido por HTTP (o peer pode já o ter recebido).
+     */
     private static boolean sendMessageToPeer(String peerId, String message) {
+        if (leaderNode.isConnected(peerId)) {
+            try {
+                Libp2pNode.Response r = leaderNode.request(peerId, "/api/messages/receive", message, 3000)
+                        .get(3000, TimeUnit.MILLISECONDS);
+                if (r.code != 200) {
+                    System.err.println("Falha ao enviar mensagem para " + peerId + " (código: " + r.code + ")");
+                    return false;
+                }
+                return true;
+            } catch (Exception e) {
+                System.err.println("Erro ao enviar mensagem para " + peerId + ": " + e.getMessage());
+                return false;
+            }
+        }
         try {
             String addr = peerAddressMap.get(peerId);
             if (addr == null || addr.trim().isEmpty()) {
@@ -1,20 +1,97 @@
 package lib2p;
 
+import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.util.*;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Node of the overlay: request/response routes over the persistent transport, plus topic pub/sub
+ * disseminated by gossip.
+ *
+ * Gossip: {@link #publish} sends a message to at most GOSSIP_FANOUT random neighbours; each node that
+ * sees it for the first time forwards it the same way and then delivers it to its subscribers, so a
+ * message reaches N nodes in O(log N) hops while each node sends O(fanout) copies. Message ids are kept
+ * for GOSSIP_SEEN_TTL_MS to drop duplicates. Every heartbeat a node announces the ids of its recent
+ * messages (IHAVE) to a few neighbours, which answer with the ones they missed (IWANT) and get them pushed.
+ */
 public class Libp2pNode {
 
+    private static final String GOSSIP_ROUTE = "/gossip/msg";
+    private static final String IHAVE_ROUTE = "/gossip/ihave";
+
     private String nodeId;
     private String peerId;
     private List<String> peers;
     private Map<String, List<MessageListener>> subscribers;
     private boolean isRunning;
 
+    // Transporte persistente (FrameTransport) e handlers por rota
+    private volatile FrameTransport transport;
+    private final Map<String, RequestHandler> routes = new ConcurrentHashMap<>();
+    private final Map<String, AsyncRequestHandler> asyncRoutes = new ConcurrentHashMap<>();
+
+    // Gossip: ids já vistos (id -> instante), mensagens recentes para IHAVE/IWANT e vizinhos conhecidos
+    private final LinkedHashMap<String, Long> seen = new LinkedHashMap<>();
+    private final LinkedHashMap<String, GossipMessage> recent = new LinkedHashMap<>();
+    private final AtomicLong nextMessageId = new AtomicLong();
+    private final Map<String, InetSocketAddress> neighbours = new ConcurrentHashMap<>();
+    private final Map<String, Long> redialAfter = new ConcurrentHashMap<>();
+    private final Set<String> dialing = ConcurrentHashMap.newKeySet();
+    private ScheduledExecutorService heartbeat;
+    private ExecutorService dialer;
+
     public interface MessageListener {
         void onMessageReceived(String message, String senderId);
     }
 
+    /** Handles a request received over the transport (same routes and bodies as the HTTP API). */
+    public interface RequestHandler {
+        Response handle(String senderId, String body) throws Exception;
+    }
+
+    /** Like {@link RequestHandler}, for routes that answer later: the transport worker is released meanwhile. */
+    public interface AsyncRequestHandler {
+        CompletableFuture<Response> handle(String senderId, String body) throws Exception;
+    }
+
+    /** Status code + body of a transport request. */
+    public static class Response {
+        public final int code;
+        public final String body;
+
+        public Response(int code, String body) {
+            this.code = code;
+            this.body = body == null ? "" : body;
+        }
+    }
+
+    /** A published message as forwarded between nodes: "id\norigin\ntopic\npayload". */
+    private static final class GossipMessage {
+        final String id;
+        final String origin;
+        final String topic;
+        final String payload;
+        final long receivedAt = System.currentTimeMillis();
+
+        GossipMessage(String id, String origin, String topic, String payload) {
+            this.id = id;
+            this.origin = origin;
+            this.topic = topic;
+            this.payload = payload;
+        }
+
+        String encode() {
+            return id + "\n" + origin + "\n" + topic + "\n" + payload;
+        }
+
+        static GossipMessage decode(String body) {
+            String[] parts = body.split("\n", 4);
+            return parts.length < 4 ? null : new GossipMessage(parts[0], parts[1], parts[2], parts[3]);
+        }
+    }
+
     /**
      * Construtor do nó libp2p
      */
@@ -22,8 +99,10 @@ public class Libp2pNode {
         this.nodeId = UUID.randomUUID().toString().substring(0, 8);
         this.peerId = peerId;
         this.peers = new CopyOnWriteArrayList<>();
-        this.subscribers = new HashMap<>();
+        this.subscribers = new ConcurrentHashMap<>();
         this.isRunning = false;
+        routes.put(GOSSIP_ROUTE, this::onGossip);
+        routes.put(IHAVE_ROUTE, this::onIHave);
     }
 
     /**
@@ -35,6 +114,19 @@ public class Libp2pNode {
         System.out.println("   ID do Nó: " + nodeId);
         System.out.println("   Peer ID: " + peerId);
         System.out.println("   Porta: " + LibP2pConfig.LISTEN_PORT);
+
+        heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "gossip-heartbeat");
+            t.setDaemon(true);
+            return t;
+        });
+        dialer = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "gossip-dial");
+            t.setDaemon(true);
+            return t;
+        });
+        heartbeat.scheduleWithFixedDelay(this::heartbeat, LibP2pConfig.GOSSIP_HEARTBEAT_MS,
+                LibP2pConfig.GOSSIP_HEARTBEAT_MS, TimeUnit.MILLISECONDS);
     }
 
     /**
@@ -56,6 +148,245 @@ public class Libp2pNode {
         System.out.println("Subscrito ao tópico: " + topic);
     }
 
+    /**
+     * Publicar uma mensagem num tópico (gossip). Devolve o número de vizinhos a quem foi enviada.
+     * O próprio nó não a entrega aos seus subscritores.
+     */
+    public int publish(String topic, String message) {
+        GossipMessage m = new GossipMessage(nodeId + "-" + nextMessageId.incrementAndGet(), peerId, topic, message);
+        markSeen(m);
+        return forward(m, null);
+    }
+
+    /**
+     * Definir os vizinhos de gossip (id -> endereço do transporte). O nó mantém ligação a até
+     * GOSSIP_DEGREE deles; as ligações aceites (ex.: o líder) também contam como vizinhos.
+     */
+    public void setNeighbours(Map<String, InetSocketAddress> addresses) {
+        neighbours.keySet().retainAll(addresses.keySet());
+        for (Map.Entry<String, InetSocketAddress> e : addresses.entrySet()) {
+            if (!e.getKey().equals(peerId)) neighbours.put(e.getKey(), e.getValue());
+        }
+    }
+
+    /**
+     * Registar handler para uma rota do transporte
+     */
+    public void handle(String route, RequestHandler handler) {
+        routes.put(route, handler);
+    }
+
+    /**
+     * Registar handler para uma rota do transporte que responde mais tarde (quando o future completar)
+     */
+    public void handleAsync(String route, AsyncRequestHandler handler) {
+        asyncRoutes.put(route, handler);
+    }
+
+    /**
+     * Escutar ligações de transporte (líder, e peers para o gossip)
+     */
+    public void listen(int port) throws IOException {
+        transport().listen(port);
+        System.out.println("Transporte à escuta na porta " + port);
+    }
+
+    /**
+     * Manter uma ligação de transporte a remoteId (peer -> líder); volta a ligar se cair
+     */
+    public void dial(String remoteId, String host, int port) {
+        Thread t = new Thread(() -> {
+            boolean warned = false;
+            while (isRunning) {
+                try {
+                    if (!transport().isConnected(remoteId)) {
+                        transport().connect(remoteId, host, port);
+                        System.out.println("Transporte ligado a " + remoteId + " (" + host + ":" + port + ")");
+                        warned = false;
+                    }
+                } catch (IOException e) {
+                    if (!warned) System.err.println("Transporte: sem ligação a " + remoteId + " (" + e.getMessage() + "), a tentar de novo");
+                    warned = true;
+                }
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "transport-dial-" + remoteId);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    public boolean isConnected(String remoteId) {
+        return transport != null && transport.isConnected(remoteId);
+    }
+
+    /**
+     * Pedido a remoteId pela ligação persistente (falha se não houver ligação)
+     */
+    public CompletableFuture<Response> request(String remoteId, String route, String body, long timeoutMs) {
+        try {
+            return transport().request(remoteId, route, body, timeoutMs);
+        } catch (IOException e) {
+            CompletableFuture<Response> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    // ---- gossip ----
+
+    private Response onGossip(String from, String body) {
+        GossipMessage m = GossipMessage.decode(body);
+        if (m == null) return new Response(400, "Mensagem gossip inválida");
+        if (!markSeen(m)) return new Response(200, "duplicada");
+        // reencaminhar antes de entregar: a entrega pode demorar (ex.: espera pelo log)
+        forward(m, from);
+        for (MessageListener listener : subscribers.getOrDefault(m.topic, Collections.emptyList())) {
+            try {
+                listener.onMessageReceived(m.payload, m.origin);
+            } catch (RuntimeException e) {
+                System.err.println("Erro no subscritor de " + m.topic + ": " + e.getMessage());
+            }
+        }
+        return new Response(200, "ok");
+    }
+
+    /** IHAVE: the body lists message ids; the response lists the ones this node has not seen (IWANT). */
+    private Response onIHave(String from, String body) {
+        StringBuilder wanted = new StringBuilder();
+        synchronized (seen) {
+            for (String id : body.split("\n")) {
+                if (id.isEmpty() || seen.containsKey(id)) continue;
+                if (wanted.length() > 0) wanted.append('\n');
+                wanted.append(id);
+            }
+        }
+        return new Response(200, wanted.toString());
+    }
+
+    /** Records {@code m} as seen. Returns false if it already was. */
+    private boolean markSeen(GossipMessage m) {
+        synchronized (seen) {
+            if (seen.containsKey(m.id)) return false;
+            seen.put(m.id, m.receivedAt);
+            recent.put(m.id, m);
+            return true;
+        }
+    }
+
+    /** Sends {@code m} to up to GOSSIP_FANOUT random neighbours other than {@code from} and its origin. */
+    private int forward(GossipMessage m, String from) {
+        List<String> targets = new ArrayList<>(connectedNeighbours());
+        targets.remove(from);
+        targets.remove(m.origin);
+        Collections.shuffle(targets, ThreadLocalRandom.current());
+        int n = Math.min(LibP2pConfig.GOSSIP_FANOUT, targets.size());
+        String body = m.encode();
+        // falhas não são repetidas aqui: o vizinho recupera a mensagem pelo IHAVE seguinte
+        for (String target : targets.subList(0, n)) {
+            request(target, GOSSIP_ROUTE, body, LibP2pConfig.GOSSIP_TIMEOUT_MS);
+        }
+        return n;
+    }
+
+    private Set<String> connectedNeighbours() {
+        FrameTransport t = transport;
+        return t == null ? Collections.emptySet() : t.connectedIds();
+    }
+
+    private void heartbeat() {
+        try {
+            expireGossip();
+            maintainNeighbours();
+            sendIHave();
+        } catch (RuntimeException e) {
+            System.err.println("Gossip: erro no heartbeat: " + e.getMessage());
+        }
+    }
+
+    private void expireGossip() {
+        long now = System.currentTimeMillis();
+        synchronized (seen) {
+            Iterator<Map.Entry<String, Long>> it = seen.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Long> e = it.next();
+                if (now - e.getValue() < LibP2pConfig.GOSSIP_SEEN_TTL_MS && seen.size() <= LibP2pConfig.GOSSIP_SEEN_MAX) break;
+                it.remove();
+            }
+            Iterator<GossipMessage> rt = recent.values().iterator();
+            while (rt.hasNext() && now - rt.next().receivedAt >= LibP2pConfig.GOSSIP_HISTORY_MS) rt.remove();
+        }
+    }
+
+    // Liga a vizinhos ao acaso até ter GOSSIP_DEGREE ligações (os endereços que falham só voltam a ser tentados mais tarde)
+    private void maintainNeighbours() {
+        if (neighbours.isEmpty() || !isRunning) return;
+        Set<String> connected = connectedNeighbours();
+        int have = 0;
+        List<String> candidates = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (String id : neighbours.keySet()) {
+            if (connected.contains(id)) have++;
+            else if (!dialing.contains(id) && redialAfter.getOrDefault(id, 0L) <= now) candidates.add(id);
+        }
+        Collections.shuffle(candidates, ThreadLocalRandom.current());
+        for (String id : candidates.subList(0, Math.max(0, Math.min(candidates.size(), LibP2pConfig.GOSSIP_DEGREE - have)))) {
+            InetSocketAddress addr = neighbours.get(id);
+            if (addr == null || !dialing.add(id)) continue;
+            dialer.execute(() -> {
+                try {
+                    transport().connect(id, addr.getHostString(), addr.getPort());
+                    redialAfter.remove(id);
+                    System.out.println("Gossip: ligado ao vizinho " + id + " (" + addr.getHostString() + ":" + addr.getPort() + ")");
+                } catch (IOException e) {
+                    if (redialAfter.put(id, System.currentTimeMillis() + LibP2pConfig.GOSSIP_REDIAL_MS) == null) {
+                        System.err.println("Gossip: sem ligação ao vizinho " + id + " (" + e.getMessage() + ")");
+                    }
+                } finally {
+                    dialing.remove(id);
+                }
+            });
+        }
+    }
+
+    private void sendIHave() {
+        String ids;
+        synchronized (seen) {
+            if (recent.isEmpty()) return;
+            ids = String.join("\n", recent.keySet());
+        }
+        List<String> targets = new ArrayList<>(connectedNeighbours());
+        Collections.shuffle(targets, ThreadLocalRandom.current());
+        for (String target : targets.subList(0, Math.min(LibP2pConfig.GOSSIP_LAZY_PEERS, targets.size()))) {
+            request(target, IHAVE_ROUTE, ids, LibP2pConfig.GOSSIP_TIMEOUT_MS).thenAccept(r -> {
+                if (r.code != 200 || r.body.isEmpty()) return;
+                for (String id : r.body.split("\n")) {
+                    GossipMessage m;
+                    synchronized (seen) {
+                        m = recent.get(id);
+                    }
+                    if (m != null) request(target, GOSSIP_ROUTE, m.encode(), LibP2pConfig.GOSSIP_TIMEOUT_MS);
+                }
+            });
+        }
+    }
+
+    private synchronized FrameTransport transport() throws IOException {
+        if (transport == null) {
+            transport = new FrameTransport(peerId, 4, (from, route, body) -> {
+                AsyncRequestHandler async = asyncRoutes.get(route);
+                if (async != null) return async.handle(from, body);
+                RequestHandler h = routes.get(route);
+                return CompletableFuture.completedFuture(h == null ? new Response(404, "Rota desconhecida: " + route)
+                        : h.handle(from, body));
+            });
+        }
+        return transport;
+    }
+
     /**
      * Obter lista de peers conectados
      */
@@ -69,6 +400,9 @@ public class Libp2pNode {
     public void stop() {
         this.isRunning = false;
         this.peers.clear();
+        if (heartbeat != null) heartbeat.shutdownNow();
+        if (dialer != null) dialer.shutdownNow();
+        if (transport != null) transport.close();
         System.out.println("Nó libp2p parado");
     }
 
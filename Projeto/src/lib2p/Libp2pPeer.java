@@ -7,11 +7,24 @@ import com.sun.net.httpserver.HttpHandler;
 import java.io.*;
 import java.net.*;
 import java.nio.charset.StandardCharsets;
-import java.security.MessageDigest;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
 
 public class Libp2pPeer {
 
@@ -20,16 +33,90 @@ public class Libp2pPeer {
     private static int peerPort;
     private static String localIp;
 
-    // Committed vector and its version
-    private static final List<String> documentCidVector = Collections.synchronizedList(new ArrayList<>());
+    // Committed vector (digests + índice, leitura sem lock via snapshot) and its version
+    private static final CidVector documentCidVector = new CidVector();
     private static final AtomicInteger documentVectorVersion = new AtomicInteger(0);
+    // Árvore Merkle do vetor committed, mantida incrementalmente (guarded by documentCidVector)
+    private static VectorMerkleTree committedTree = new VectorMerkleTree();
 
-    // Pending (tentative) vectors and embeddings: version -> vector; version -> (cid->embedding)
-    private static final Map<Integer, List<String>> pendingVectors = new ConcurrentHashMap<>();
+    // Pending (tentative) deltas and embeddings: version -> CIDs new in that version (in order); version -> (cid->embedding)
+    private static final Map<Integer, Set<String>> pendingDeltas = new ConcurrentHashMap<>();
     private static final Map<Integer, Map<String, String>> pendingEmbeddings = new ConcurrentHashMap<>();
-
-    // Armazenamento de embeddings por CID (após commit)
-    private static final Map<String, String> documentEmbeddings = new ConcurrentHashMap<>();
+    // Hash de cada vetor tentativo (version -> hash), para validar commits em delta sem recalcular,
+    // e o acumulador Merkle no fim de cada vetor tentativo (a versão seguinte continua a partir dele)
+    private static final Map<Integer, String> pendingHashes = new ConcurrentHashMap<>();
+    private static final Map<Integer, MerkleAccumulator> pendingAccumulators = new ConcurrentHashMap<>();
+
+    // Embeddings committed dos shards atribuídos a este peer (shard -> embeddings fora do heap + índice HNSW).
+    // O vetor de CIDs continua completo; só os embeddings são repartidos. Alterações sob documentCidVector.
+    private static final Map<Integer, EmbeddingShard> shards = new ConcurrentHashMap<>();
+    private static volatile ShardRing.Assignment shardAssignment;
+    private static final Set<Integer> droppingShards = ConcurrentHashMap.newKeySet();
+    // Atribuição de shards e preenchimento dos shards novos, um de cada vez
+    private static final ScheduledExecutorService shardExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "shards");
+        t.setDaemon(true);
+        return t;
+    });
+    // Atrasos injetados (FAULT_DELAY_MS) contados aqui, por mensagem, sem ocupar os workers partilhados do transporte
+    private static final ScheduledExecutorService faultTimer = Executors.newScheduledThreadPool(4, r -> {
+        Thread t = new Thread(r, "faults");
+        t.setDaemon(true);
+        return t;
+    });
+    // Índices HNSW dos shards, atualizados num thread próprio à medida que os commits são aplicados
+    private static volatile boolean indexingEnabled = false;
+    private static final AtomicBoolean indexScheduled = new AtomicBoolean(false);
+    private static final ExecutorService indexer = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "hnsw");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // Pipeline: tentativas e commits que chegaram fora de ordem, à espera que a lacuna seja preenchida.
+    // lastTentativeVersion = última versão tentativa processada em sequência (guarded by bufferedUpdates)
+    private static final TreeMap<Integer, DocumentUpdate> bufferedUpdates = new TreeMap<>();
+    private static int lastTentativeVersion = 0;
+    private static final TreeMap<Integer, CommitMessage> bufferedCommits = new TreeMap<>();
+    // Confirmações ao líder, por ordem, num thread próprio: a resposta à tentativa não espera pelo fsync nem pelo líder
+    private static final ThreadPoolExecutor confirmSender = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<>(), r -> {
+                Thread t = new Thread(r, "confirm");
+                t.setDaemon(true);
+                return t;
+            });
+
+    // WAL + snapshots do estado (data/<peerId>)
+    private static StateLog stateLog;
+    // Blocos e DAGs dos documentos guardados neste peer (data/<peerId>/files), servidos em /api/files/<cid>
+    private static BlockStore blockStore;
+    // Réplica do conteúdo dos documentos dos shards deste peer, pedido ao líder e aos outros peers; a lista de
+    // peers (peerId -> "ip:port") é atualizada com os vizinhos de gossip
+    private static BlockFetcher blockFetcher;
+    private static volatile Map<String, String> peerAddresses = Collections.emptyMap();
+
+    // Catch-up: no máximo uma recuperação de estado de cada vez, num thread próprio
+    private static final AtomicBoolean catchingUp = new AtomicBoolean(false);
+    private static final ExecutorService catchUpExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "catch-up");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // Métricas (/api/metrics): registar não bloqueia nem aloca
+    private static final Metrics.Counter updatesReceived = Metrics.counter("lib2p_peer_updates_total", "Versões tentativas recebidas");
+    private static final Metrics.Histogram updateTime = Metrics.timer("lib2p_peer_update_seconds",
+            "Tempo a tratar uma versão tentativa: aplicar e escrever no log (a confirmação segue à parte)");
+    private static final Metrics.Histogram confirmRtt = Metrics.timer("lib2p_peer_confirm_rtt_seconds",
+            "Ida e volta de uma confirmação enviada ao líder");
+    private static final Metrics.Counter commitsReceived = Metrics.counter("lib2p_peer_commits_total", "Commits recebidos do líder");
+    private static final Metrics.Counter commitConflicts = Metrics.counter("lib2p_peer_commit_conflicts_total",
+            "Commits em delta recusados com 409 (base diferente)");
+    private static final Metrics.Histogram commitTime = Metrics.timer("lib2p_peer_commit_seconds",
+            "Tempo a tratar um commit do líder, incluindo a escrita no log");
+    private static final Metrics.Counter catchUps = Metrics.counter("lib2p_peer_catchups_total", "Recuperações de estado iniciadas");
+    private static final Metrics.Histogram searchTime = Metrics.timer("lib2p_peer_search_seconds",
+            "Tempo de uma pesquisa top-k nos shards deste peer");
 
     public static void main(String[] args) throws Exception {
         if (args.length == 0) {
@@ -54,14 +141,40 @@ public class Libp2pPeer {
 
         System.out.println("Iniciando Peer com libp2p...");
 
+        // Recuperar estado (snapshot + cauda do log) antes de falar com o líder
+        stateLog = new StateLog(Paths.get(LibP2pConfig.STATE_DIR, peerId));
+        blockStore = new BlockStore(Paths.get(LibP2pConfig.STATE_DIR, peerId, "files"));
+        openShards();
+        recoverState();
+        stateLog.open();
+        registerGauges();
+
+        // Índices HNSW guardados (se ainda corresponderem aos shards recuperados); as linhas em falta são indexadas a seguir
+        for (EmbeddingShard shard : shards.values()) shard.loadIndex();
+        blockFetcher = new BlockFetcher(blockStore, LibP2pConfig.BLOCK_FETCH_CONCURRENCY, LibP2pConfig.BLOCK_FETCH_BYTES_PER_SEC,
+                LibP2pConfig.BLOCK_FETCH_RETRY_MS, Libp2pPeer::contentSources, Libp2pPeer::holdsContent);
+        indexingEnabled = true;
+        // embeddings e conteúdo em falta nos shards recuperados (p.ex. shard recebido depois da última snapshot)
+        for (EmbeddingShard shard : shards.values()) shardExecutor.execute(() -> syncShard(shard));
+
         peerNode = new Libp2pNode(peerId);
         peerNode.start();
 
+        // Mensagens do líder também pela ligação persistente (mesmas rotas e formatos que a API HTTP)
+        peerNode.handleAsync("/api/messages/receive", (from, body) -> withFaults(true, () -> ReceiveMessageHandler.receiveMessage(body)));
+        peerNode.handleAsync("/api/peers/commit", (from, body) -> withFaults(false, () -> processCommit(body)));
+        peerNode.handle("/api/search", (from, body) -> SearchHandler.search(body));
+        peerNode.dial("leader", LibP2pConfig.LEADER_HOST, LibP2pConfig.LISTEN_PORT);
+
+        // Atualizações tentative chegam por gossip; o peer também as reencaminha a outros peers
+        peerNode.subscribe(LibP2pConfig.PUBSUB_TOPIC, (message, sender) -> withFaults(true, () -> ReceiveMessageHandler.receiveMessage(message)));
+        peerNode.listen(peerPort + LibP2pConfig.GOSSIP_PORT_OFFSET);
+
         // Connect logically to leader
         peerNode.connectToPeer("leader");
 
-        // get local IP
-        localIp = getLocalIpAddress();
+        // get local IP (or the configured one)
+        localIp = LibP2pConfig.PEER_HOST.isEmpty() ? getLocalIpAddress() : LibP2pConfig.PEER_HOST;
         if (localIp == null) localIp = "127.0.0.1";
 
         // register with leader
@@ -76,12 +189,47 @@ public class Libp2pPeer {
         // Endpoint for leader commit
         server.createContext("/api/peers/commit", new CommitHandler());
 
+        // Endpoint com hashes de subárvores do vetor committed (para localizar divergências)
+        server.createContext("/api/vector/tree", new VectorTreeHandler());
+
+        // Snapshot do vetor committed por blocos (outros peers atrasados podem recuperar a partir deste)
+        server.createContext("/api/state/snapshot", new StateSnapshotHandler());
+
+        // Pesquisa top-k por semelhança sobre os embeddings committed dos shards deste peer
+        server.createContext("/api/search", new SearchHandler());
+
+        // Embeddings por CID, para outros peers preencherem shards que passaram a ter
+        server.createContext("/api/embeddings", new EmbeddingsHandler());
+
+        // Métricas em formato Prometheus (latências, contadores e estado do pipeline)
+        server.createContext("/api/metrics", new MetricsHandler());
+
+        // Conteúdo dos documentos guardados neste peer (/api/files/<cid>), com pedidos parciais e cache por ETag
+        server.createContext("/api/files/", new FilesHandler());
+
+        // Manifestos e blocos dos documentos, para os peers replicarem o conteúdo
+        server.createContext("/api/dag/", new BlocksHandler());
+        server.createContext("/api/blocks/", new BlocksHandler());
+
         server.setExecutor(Executors.newFixedThreadPool(4));
         server.start();
 
         System.out.println("Peer " + peerId + " pronto!");
         System.out.println("À escuta de mensagens do líder (ip: " + localIp + ", port: " + peerPort + ")\n");
 
+        // Se o líder já vai à frente (peer novo ou que esteve em baixo), recuperar o que falta
+        startCatchUp("arranque");
+
+        // Vizinhos de gossip: os outros peers registados no líder
+        Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "gossip-neighbours");
+            t.setDaemon(true);
+            return t;
+        }).scheduleWithFixedDelay(Libp2pPeer::refreshNeighbours, 0, 5, TimeUnit.SECONDS);
+
+        // Shards atribuídos pelo líder (mudam quando entram peers)
+        shardExecutor.scheduleWithFixedDelay(Libp2pPeer::refreshShards, 0, 5, TimeUnit.SECONDS);
+
         try {
             Thread.sleep(Long.MAX_VALUE);
         } catch (InterruptedException e) {
@@ -90,6 +238,87 @@ public class Libp2pPeer {
         }
     }
 
+    /**
+     * Restores the committed vector and embeddings from the latest snapshot plus the log tail, and
+     * re-applies the tentative versions logged after the last commit so their commits still validate.
+     */
+    private static void recoverState() throws Exception {
+        long start = System.currentTimeMillis();
+        StateLog.Snapshot snapshot = stateLog.loadSnapshot((row, cid, embedding) -> {
+            EmbeddingShard shard = shards.get(ShardRing.shardOf(cid));
+            if (shard != null) shard.add(cid, embedding);
+        });
+        if (snapshot != null) {
+            // os embeddings dos shards deste peer já foram escritos durante a leitura
+            synchronized (documentCidVector) {
+                documentCidVector.resetTo(snapshot.cids);
+                committedTree = VectorMerkleTree.of(snapshot.cids);
+                documentVectorVersion.set(snapshot.version);
+            }
+        }
+
+        TreeMap<Integer, DocumentUpdate> tentatives = new TreeMap<>();
+        int records = stateLog.replay(r -> {
+            int committed = documentVectorVersion.get();
+            if (r.version <= committed) return;
+            if (r.type == StateLog.TENTATIVE) {
+                tentatives.tailMap(r.version, true).clear(); // versão reproposta: as seguintes dependiam dela
+                tentatives.put(r.version, DocumentUpdate.fromMessage(r.payload));
+            } else if (r.type == StateLog.COMMIT || r.type == StateLog.FULL) {
+                List<String> cids = r.payload.isEmpty() ? new ArrayList<>() : Arrays.asList(r.payload.split(","));
+                DocumentUpdate t = tentatives.get(r.version);
+                Map<String, String> embMap = t == null ? Collections.emptyMap() : embeddingsOf(t);
+                if (r.type == StateLog.FULL) {
+                    replaceCommitted(r.version, cids, embMap);
+                } else if (r.version == committed + 1) {
+                    appendCommitted(r.version, cids, embMap);
+                }
+                tentatives.headMap(r.version, true).clear();
+            }
+        });
+
+        int committed = documentVectorVersion.get();
+        lastTentativeVersion = committed;
+        for (DocumentUpdate t : tentatives.tailMap(committed, false).values()) {
+            if (t.getVersion() != lastTentativeVersion + 1) break;
+            applyTentative(t);
+            lastTentativeVersion = t.getVersion();
+        }
+
+        System.out.println("Estado recuperado: versão " + committed + ", " + documentCidVector.size() + " CIDs, "
+                + (lastTentativeVersion - committed) + " tentativa(s) (snapshot "
+                + (snapshot == null ? "-" : String.valueOf(snapshot.version)) + " + " + records + " registos) em "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /** Gauges read at scrape time: committed and tentative state, buffers and shards. */
+    private static void registerGauges() {
+        Metrics.gauge("lib2p_peer_committed_version", "Versão committed", documentVectorVersion::get);
+        Metrics.gauge("lib2p_peer_vector_cids", "CIDs no vetor committed", documentCidVector::size);
+        Metrics.gauge("lib2p_peer_pending_versions", "Versões tentativas ainda sem commit", pendingDeltas::size);
+        Metrics.gauge("lib2p_peer_buffered_updates", "Tentativas fora de ordem em buffer", () -> {
+            synchronized (bufferedUpdates) {
+                return bufferedUpdates.size();
+            }
+        });
+        Metrics.gauge("lib2p_peer_buffered_commits", "Commits fora de ordem em buffer", () -> {
+            synchronized (bufferedCommits) {
+                return bufferedCommits.size();
+            }
+        });
+        Metrics.gauge("lib2p_peer_confirm_queue_depth", "Confirmações à espera de serem enviadas ao líder",
+                () -> confirmSender.getQueue().size());
+        Metrics.gauge("lib2p_peer_replication_pending", "Documentos à espera de réplica do conteúdo",
+                () -> blockFetcher.pending());
+        Metrics.gauge("lib2p_peer_catching_up", "1 durante uma recuperação de estado", () -> catchingUp.get() ? 1 : 0);
+        Metrics.gauge("lib2p_peer_shards", "Shards de embeddings neste peer", shards::size);
+        Metrics.gauge("lib2p_peer_shard_embeddings", "Embeddings nos shards deste peer", () -> {
+            long n = 0;
+            for (EmbeddingShard shard : shards.values()) n += shard.size();
+            return n;
+        });
+    }
+
     private static Integer extractTrailingNumber(String id) {
         String num = id.replaceAll("^.*?(\\d+)$", "$1");
         if (num.equals(id)) {
@@ -148,7 +377,7 @@ public class Libp2pPeer {
 
     /**
      * Handler para receber mensagens do líder (tentative updates)
-     * Expected format: "version;cid" or "version;cid;embedding..."
+     * Expected format: "version;cid1:embedding1,cid2:embedding2,..." (see DocumentUpdate)
      */
     static class ReceiveMessageHandler implements HttpHandler {
         @Override
@@ -159,17 +388,8 @@ public class Libp2pPeer {
             if ("POST".equalsIgnoreCase(exchange.getRequestMethod())) {
                 try {
                     String message = readRequestBody(exchange);
-
-                    if (message != null && !message.isEmpty()) {
-                        System.out.println("[" + peerId.toUpperCase() + "] Mensagem recebida:");
-                        System.out.println("   " + message + "\n");
-
-                        // Process the tentative update (store pending + send confirmation)
-                        handleDocumentUpdateTentative(message);
-                    }
-
-                    String response = "Mensagem recebida";
-                    sendResponse(exchange, 200, response);
+                    Libp2pNode.Response response = withFaults(true, () -> receiveMessage(message)).join();
+                    sendResponse(exchange, response.code, response.body);
 
                 } catch (Exception e) {
                     System.err.println("Erro ao processar mensagem: " + e.getMessage());
@@ -183,64 +403,97 @@ public class Libp2pPeer {
             }
         }
 
-        private void handleDocumentUpdateTentative(String message) {
-            try {
-                String[] parts = message.split(";");
-                if (parts.length < 2) {
-                    System.err.println("Formato da mensagem de atualização inválido: " + message);
-                    return;
-                }
+        /**
+         * Handles a message from the leader; shared by the HTTP endpoint and the transport. Returns once the
+         * tentative versions are applied: their confirmations are sent afterwards by the confirm thread.
+         */
+        static Libp2pNode.Response receiveMessage(String message) {
+            if (message != null && !message.isEmpty()) {
+                long start = System.nanoTime();
+                updatesReceived.inc();
+                System.out.println("[" + peerId.toUpperCase() + "] Mensagem recebida:");
+                // os embeddings tornam a mensagem longa: mostrar só o início
+                System.out.println("   " + (message.length() > 200 ? message.substring(0, 200) + "..." : message) + "\n");
+
+                // Process the tentative update (store pending + send confirmation)
+                handleDocumentUpdateTentative(message);
+                updateTime.recordSince(start);
+            }
+            return new Libp2pNode.Response(200, "Mensagem recebida");
+        }
 
-                int receivedVersion;
+        private static void handleDocumentUpdateTentative(String message) {
+            try {
+                DocumentUpdate update;
                 try {
-                    receivedVersion = Integer.parseInt(parts[0]);
+                    update = DocumentUpdate.fromMessage(message);
                 } catch (NumberFormatException nfe) {
-                    System.err.println("Versão inválida na mensagem: " + parts[0]);
+                    System.err.println("Versão inválida na mensagem: " + message);
+                    return;
+                } catch (IllegalArgumentException iae) {
+                    System.err.println(iae.getMessage());
                     return;
                 }
+                int receivedVersion = update.getVersion();
 
-                String cid = parts[1];
-
-                String embedding = null;
-                if (parts.length > 2) {
-                    StringBuilder sb = new StringBuilder();
-                    for (int i = 2; i < parts.length; i++) {
-                        if (i > 2) sb.append(";");
-                        sb.append(parts[i]);
-                    }
-                    embedding = sb.toString().trim();
-                }
-
-                System.out.println("Tentativa de atualização recebida: Versão=" + receivedVersion + ", CID=" + cid + (embedding != null ? ", embedding recebido" : ", sem embedding"));
+                System.out.println("Tentativa de atualização recebida: Versão=" + receivedVersion + ", " + update.getEntries().size() + " documento(s)");
 
-                // Check version continuity: expected = current + 1
-                int expected = documentVectorVersion.get() + 1;
-                if (receivedVersion != expected) {
-                    System.err.println("Conflito de versão: recebido " + receivedVersion + " esperado " + expected + ". Iniciando resolução (não implementado).");
-                    // In case of conflict, do not proceed (future resolution path)
-                    return;
-                }
+                // Guardar em buffer e processar em sequência tudo o que já não tem lacunas
+                List<String[]> confirmations = new ArrayList<>();
+                synchronized (bufferedUpdates) {
+                    int committed = documentVectorVersion.get();
+                    if (lastTentativeVersion < committed) lastTentativeVersion = committed;
 
-                // Build tentative vector (copy current + new cid if not present)
-                List<String> tentative;
-                synchronized (documentCidVector) {
-                    tentative = new ArrayList<>(documentCidVector);
-                    if (!tentative.contains(cid)) {
-                        tentative.add(cid);
+                    if (receivedVersion <= committed) {
+                        System.err.println("Versão " + receivedVersion + " já tem commit (atual " + committed + ") — ignorada");
+                        return;
+                    }
+                    if (receivedVersion <= lastTentativeVersion) {
+                        // líder voltou a propor a partir desta versão: descartar as tentativas que dependiam dela
+                        System.out.println("Versão " + receivedVersion + " reproposta pelo líder — a descartar tentativas " + receivedVersion + ".." + lastTentativeVersion);
+                        for (int v = receivedVersion; v <= lastTentativeVersion; v++) {
+                            pendingDeltas.remove(v);
+                            pendingEmbeddings.remove(v);
+                            pendingHashes.remove(v);
+                            pendingAccumulators.remove(v);
+                        }
+                        lastTentativeVersion = receivedVersion - 1;
+                    }
+                    if (receivedVersion > lastTentativeVersion + LibP2pConfig.PEER_MAX_BUFFERED_VERSIONS) {
+                        System.err.println("Versão " + receivedVersion + " demasiado à frente (última em sequência " + lastTentativeVersion + ") — descartada");
+                        startCatchUp("tentativa " + receivedVersion);
+                        return;
                     }
-                }
-                pendingVectors.put(receivedVersion, tentative);
 
-                // Store pending embedding
-                pendingEmbeddings.putIfAbsent(receivedVersion, new ConcurrentHashMap<>());
-                if (embedding != null && !embedding.isEmpty()) {
-                    pendingEmbeddings.get(receivedVersion).put(cid, embedding);
+                    bufferedUpdates.put(receivedVersion, update);
+                    DocumentUpdate next;
+                    while ((next = bufferedUpdates.remove(lastTentativeVersion + 1)) != null) {
+                        String hash = applyTentative(next);
+                        lastTentativeVersion = next.getVersion();
+                        if (hash == null) continue;
+                        stateLog.append(StateLog.TENTATIVE, next.getVersion(), next.toMessage());
+                        confirmations.add(new String[]{String.valueOf(next.getVersion()), hash});
+                    }
+                    if (!bufferedUpdates.isEmpty()) {
+                        System.out.println("Em buffer " + bufferedUpdates.size() + " versão(ões) à espera da versão " + (lastTentativeVersion + 1));
+                    }
                 }
 
-                // Compute hash of tentative vector and send confirmation to leader
-                String hash = computeVectorHash(tentative);
-                System.out.println("Hash do vetor tentativo (versao " + receivedVersion + "): " + hash);
-                sendConfirmationToLeader(peerId, receivedVersion, hash);
+                // Confirmar por ordem, fora do lock, só depois de as tentativas estarem em disco (um fsync para todas);
+                // o envio fica para o thread de confirmações e a mensagem do líder é respondida já
+                if (confirmations.isEmpty()) return;
+                CompletableFuture<Void> durable = stateLog.flush();
+                confirmSender.execute(() -> {
+                    try {
+                        durable.join();
+                    } catch (Exception e) {
+                        System.err.println("Tentativas não persistidas — sem confirmação: " + e.getMessage());
+                        return;
+                    }
+                    for (String[] c : confirmations) {
+                        sendConfirmationToLeader(peerId, Integer.parseInt(c[0]), c[1]);
+                    }
+                });
 
             } catch (Exception e) {
                 System.err.println("Falha ao processar a atualização do documento: " + e.getMessage());
@@ -248,22 +501,91 @@ public class Libp2pPeer {
         }
     }
 
-    /** Compute a SHA-256 hex of the joined CIDs (comma-separated) */
-    private static String computeVectorHash(List<String> vector) throws Exception {
-        String joined = String.join(",", vector);
-        MessageDigest digest = MessageDigest.getInstance("SHA-256");
-        byte[] hash = digest.digest(joined.getBytes(StandardCharsets.UTF_8));
-        StringBuilder sb = new StringBuilder();
-        for (byte b : hash) {
-            String hex = Integer.toHexString(0xff & b);
-            if (hex.length() == 1) sb.append('0');
-            sb.append(hex);
+    /**
+     * Builds the tentative vector of a version on top of its predecessor's pending vector
+     * (or the committed vector), stores its delta with the batch's embeddings and returns its hash
+     * (null if the version was committed meanwhile).
+     * The vector itself is never copied: membership is checked in the committed index and in the
+     * deltas of the pending versions it builds on.
+     */
+    private static String applyTentative(DocumentUpdate update) throws Exception {
+        int version = update.getVersion();
+        MerkleAccumulator baseAcc = pendingAccumulators.get(version - 1);
+
+        MerkleAccumulator acc;
+        List<Set<String>> baseDeltas = new ArrayList<>();
+        if (baseAcc != null) {
+            acc = baseAcc.copy();
+            for (int v = version - 1; pendingDeltas.containsKey(v); v--) baseDeltas.add(pendingDeltas.get(v));
+        } else {
+            synchronized (documentCidVector) {
+                acc = committedTree.accumulator();
+            }
+        }
+
+        // Delta = CIDs of the batch not yet in the base vector
+        Set<String> delta = new LinkedHashSet<>();
+        for (DocumentUpdate.Entry e : update.getEntries()) {
+            String cid = e.getCid();
+            if (!delta.contains(cid) && !documentCidVector.contains(cid) && !inAny(baseDeltas, cid)) {
+                delta.add(cid);
+                acc.add(BlockStore.fromHex(cid));
+            }
+        }
+        // Hash of tentative vector: only the new leaves are hashed (O(batch + log N))
+        String hash = acc.rootHex();
+
+        synchronized (documentCidVector) {
+            // o commit desta versão pode ter chegado entretanto (p.ex. durante um catch-up): a tentativa já não serve
+            if (documentVectorVersion.get() >= version) {
+                System.out.println("Versão " + version + " já committed — tentativa ignorada");
+                return null;
+            }
+            pendingDeltas.put(version, delta);
+            // Store pending embeddings (whole batch)
+            pendingEmbeddings.put(version, embeddingsOf(update));
+            pendingHashes.put(version, hash);
+            pendingAccumulators.put(version, acc);
+        }
+        System.out.println("Hash do vetor tentativo (versao " + version + "): " + hash);
+        return hash;
+    }
+
+    private static Map<String, String> embeddingsOf(DocumentUpdate update) {
+        Map<String, String> embMap = new ConcurrentHashMap<>();
+        for (DocumentUpdate.Entry e : update.getEntries()) {
+            if (e.getEmbedding() != null && !e.getEmbedding().isEmpty()) {
+                embMap.put(e.getCid(), e.getEmbedding());
+            }
         }
-        return sb.toString();
+        return embMap;
     }
 
-    /** Send confirmation to leader: body format peerId:version:hash */
+    private static boolean inAny(List<Set<String>> sets, String cid) {
+        for (Set<String> set : sets) {
+            if (set.contains(cid)) return true;
+        }
+        return false;
+    }
+
+    /** Send confirmation to leader: body format peerId:version:hash (persistent connection; HTTP if it is down) */
     private static void sendConfirmationToLeader(String peerId, int version, String hash) {
+        long start = System.nanoTime();
+        if (peerNode.isConnected("leader")) {
+            try {
+                Libp2pNode.Response r = peerNode.request("leader", "/api/peers/confirm", peerId + ":" + version + ":" + hash, 4000)
+                        .get(4000, TimeUnit.MILLISECONDS);
+                confirmRtt.recordSince(start);
+                if (r.code == 200) {
+                    System.out.println("Confirmacao enviada ao lider para versao " + version);
+                } else {
+                    System.err.println("Erro ao enviar confirmacao ao lider (codigo " + r.code + "): " + r.body);
+                }
+            } catch (Exception e) {
+                System.err.println("Falha ao enviar confirmacao ao lider: " + e.getMessage());
+            }
+            return;
+        }
         try {
             String leaderUrl = "http://" + LibP2pConfig.LEADER_HOST + ":" + LibP2pConfig.LEADER_HTTP_PORT + "/api/peers/confirm";
             URL url = new URL(leaderUrl);
@@ -281,6 +603,7 @@ public class Libp2pPeer {
             }
 
             int responseCode = conn.getResponseCode();
+            confirmRtt.recordSince(start);
             if (responseCode != 200) {
                 System.err.println("Erro ao enviar confirmacao ao lider (codigo " + responseCode + ")");
                 try (BufferedReader br = new BufferedReader(new InputStreamReader(conn.getErrorStream() != null ? conn.getErrorStream() : conn.getInputStream(), StandardCharsets.UTF_8))) {
@@ -300,8 +623,11 @@ public class Libp2pPeer {
 
     /** Handler para aplicar commit enviado pelo líder.
      *  Expected body formats:
-     *    1) "version;cid1,cid2,..." (leader includes full vector)
-     *    2) "version" (peer will fallback to its pendingVectors if present)
+     *    1) "version;parent;hash;cid1,cid2,..." (delta: CIDs added since parent, hash of the resulting vector)
+     *    2) "version;cid1,cid2,..." (leader includes full vector)
+     *    3) "version" (peer will fallback to its own tentative delta for that version, if present)
+     *  A delta whose parent is not our committed version (and cannot be buffered) or whose hash does not
+     *  match is answered with 409, and the leader resends the full vector.
      */
     static class CommitHandler implements HttpHandler {
         @Override
@@ -322,56 +648,870 @@ public class Libp2pPeer {
                 return;
             }
 
-            if (body == null || body.trim().isEmpty()) {
-                sendResponse(exchange, 400, "Corpo vazio");
-                return;
+            Libp2pNode.Response response = withFaults(false, () -> processCommit(body)).join();
+            sendResponse(exchange, response.code, response.body);
+        }
+    }
+
+    /** Applies a commit body (see CommitHandler); shared by the HTTP endpoint and the transport. */
+    static Libp2pNode.Response processCommit(String body) {
+        if (body == null || body.trim().isEmpty()) return new Libp2pNode.Response(400, "Corpo vazio");
+        long start = System.nanoTime();
+        commitsReceived.inc();
+        try {
+            CommitMessage commit = CommitMessage.parse(body.trim());
+            int version = commit.version;
+
+            if (commit.delta == null && commit.full == null) {
+                // fallback to our tentative delta, applied like a delta commit on the previous version
+                Set<String> pending = pendingDeltas.get(version);
+                if (pending == null) {
+                    return new Libp2pNode.Response(400, "Nenhum vetor pendente para a versão " + version);
+                }
+                commit.parent = version - 1;
+                commit.hash = "";
+                commit.delta = new ArrayList<>(pending);
+            }
+
+            // Commits são aplicados por ordem: um delta adiantado fica em buffer até a lacuna ser preenchida
+            boolean conflict = false;
+            boolean behind = false;
+            synchronized (bufferedCommits) {
+                int committed = documentVectorVersion.get();
+                if (version <= committed) {
+                    return new Libp2pNode.Response(200, "Commit já aplicado");
+                }
+
+                if (commit.full != null) {
+                    applyFullCommit(version, commit.full);
+                    bufferedCommits.headMap(version, true).clear();
+                } else if (commit.parent != committed) {
+                    // só pode faltar algo ainda em trânsito (no máximo PIPELINE_DEPTH versões); mais do que isso é atraso
+                    if (version - committed > LibP2pConfig.PIPELINE_DEPTH) {
+                        behind = true;
+                    } else {
+                        bufferedCommits.put(version, commit);
+                    }
+                } else if (!applyDeltaCommit(commit)) {
+                    conflict = true;
+                }
+
+                if (!conflict) conflict = drainBufferedCommits();
+            }
+
+            // Responder só depois de os commits aplicados estarem em disco
+            stateLog.flush().join();
+            if (behind) {
+                startCatchUp("commit " + version);
+                return new Libp2pNode.Response(202, "Peer atrasado (versão " + documentVectorVersion.get() + ") — a recuperar estado");
+            } else if (conflict) {
+                commitConflicts.inc();
+                System.err.println("Commit da versão " + version + " não aplicável sobre a versão " + documentVectorVersion.get() + " — a pedir vetor completo");
+                return new Libp2pNode.Response(409, "Base diferente: versão local " + documentVectorVersion.get());
+            } else if (documentVectorVersion.get() >= version) {
+                return new Libp2pNode.Response(200, "Commit aplicado");
+            } else {
+                return new Libp2pNode.Response(200, "Commit em buffer à espera da versão " + (documentVectorVersion.get() + 1));
+            }
+
+        } catch (NumberFormatException nfe) {
+            return new Libp2pNode.Response(400, "Versao invalida");
+        } catch (Exception e) {
+            System.err.println("Erro ao aplicar commit: " + e.getMessage());
+            return new Libp2pNode.Response(500, "Erro interno");
+        } finally {
+            commitTime.recordSince(start);
+        }
+    }
+
+    /** Applies buffered delta commits that are next in sequence. Caller holds bufferedCommits. Returns true on conflict. */
+    private static boolean drainBufferedCommits() throws Exception {
+        bufferedCommits.headMap(documentVectorVersion.get(), true).clear();
+        CommitMessage next;
+        while ((next = bufferedCommits.remove(documentVectorVersion.get() + 1)) != null) {
+            if (next.parent != documentVectorVersion.get() || !applyDeltaCommit(next)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Injected faults (FAULT_DELAY_MS, FAULT_DROP_RATE) for load tests: runs {@code work} on the fault timer once
+     * the configured delay has passed for this message, so no thread sleeps, or at once when there is no delay.
+     * A {@code droppable} message may instead be ignored as if it had been lost.
+     */
+    private static CompletableFuture<Libp2pNode.Response> withFaults(boolean droppable, Supplier<Libp2pNode.Response> work) {
+        boolean drop = droppable && LibP2pConfig.FAULT_DROP_RATE > 0
+                && ThreadLocalRandom.current().nextDouble() < LibP2pConfig.FAULT_DROP_RATE;
+        Supplier<Libp2pNode.Response> task = drop ? () -> new Libp2pNode.Response(200, "Mensagem recebida") : work;
+        if (LibP2pConfig.FAULT_DELAY_MS <= 0) return CompletableFuture.completedFuture(task.get());
+        CompletableFuture<Libp2pNode.Response> response = new CompletableFuture<>();
+        faultTimer.schedule(() -> {
+            try {
+                response.complete(task.get());
+            } catch (RuntimeException e) {
+                response.completeExceptionally(e);
             }
+        }, LibP2pConfig.FAULT_DELAY_MS, TimeUnit.MILLISECONDS);
+        return response;
+    }
 
-            // Parse
+    /** Starts a catch-up in the background unless one is already running. */
+    private static void startCatchUp(String reason) {
+        if (!catchingUp.compareAndSet(false, true)) return;
+        catchUps.inc();
+        catchUpExecutor.execute(() -> {
             try {
-                String[] parts = body.trim().split(";", 2);
-                int version = Integer.parseInt(parts[0]);
+                catchUp(reason);
+            } catch (Exception e) {
+                System.err.println("Catch-up falhou: " + e.getMessage());
+            } finally {
+                catchingUp.set(false);
+            }
+        });
+    }
+
+    /**
+     * Brings the committed vector up to the leader's: replays the versions still in the leader's delta history,
+     * or first installs a snapshot (from an up-to-date peer or the leader) when the gap is older than that.
+     * Live tentatives and commits keep flowing meanwhile; the peer confirms again once it is back in sequence.
+     */
+    private static void catchUp(String reason) throws Exception {
+        String leader = LibP2pConfig.LEADER_HOST + ":" + LibP2pConfig.LEADER_HTTP_PORT;
+        int leaderVersion = Integer.parseInt(StateTransfer.get(leader, "/api/vector/tree").split(";")[0]);
+        int start = documentVectorVersion.get();
+        if (leaderVersion <= start) return;
+        System.out.println("Catch-up (" + reason + "): versão local " + start + ", líder " + leaderVersion);
+        long t0 = System.currentTimeMillis();
+
+        boolean snapshotUsed = false;
+        if (leaderVersion - start > LibP2pConfig.CATCHUP_DELTA_HISTORY || !replayDeltas(leader)) {
+            installSnapshot(leader);
+            snapshotUsed = true;
+            replayDeltas(leader);
+        }
+
+        // voltar a aceitar tentativas em sequência a partir da versão committed
+        synchronized (bufferedUpdates) {
+            int committed = documentVectorVersion.get();
+            if (lastTentativeVersion < committed) lastTentativeVersion = committed;
+            bufferedUpdates.headMap(committed, true).clear();
+            for (Integer v : new ArrayList<>(pendingDeltas.keySet())) {
+                if (v <= committed) clearPending(v);
+            }
+        }
+        stateLog.flush().join();
+        System.out.println("Catch-up concluído: versão " + start + " -> " + documentVectorVersion.get()
+                + (snapshotUsed ? " (com snapshot)" : "") + " em " + (System.currentTimeMillis() - t0) + " ms");
+    }
+
+    /**
+     * Applies the leader's committed deltas after our version, then checks the vector against the leader's Merkle root
+     * (deltas carry no hash, unlike a snapshot). Returns false, so a snapshot is installed instead, if the versions are
+     * no longer in the leader's history, if a round brings nothing that applies, or if the roots differ.
+     */
+    private static boolean replayDeltas(String leader) throws Exception {
+        while (true) {
+            String body;
+            try {
+                body = StateTransfer.get(leader, "/api/state/deltas?from=" + (documentVectorVersion.get() + 1) + "&limit=256");
+            } catch (IOException e) {
+                if (e.getMessage() != null && e.getMessage().contains("410")) return false;
+                throw e;
+            }
+            String[] lines = body.split("\n");
+            int before = documentVectorVersion.get();
+            if (lines.length <= 1) {
+                if (Integer.parseInt(lines[0].trim()) > before) return false; // versões anunciadas mas não enviadas
+                String[] tree = StateTransfer.get(leader, "/api/vector/tree").split(";");
+                int version;
+                String root;
+                synchronized (documentCidVector) {
+                    version = documentVectorVersion.get();
+                    root = committedTree.rootHex();
+                }
+                int leaderVersion = Integer.parseInt(tree[0].trim());
+                if (leaderVersion > version) continue; // commits entretanto: repetir também esses
+                if (leaderVersion == version && !tree[2].trim().equals(root)) {
+                    System.err.println("Vetor depois dos deltas diverge do líder na versão " + version + " (" + root
+                            + " != " + tree[2].trim() + ")");
+                    return false;
+                }
+                return true;
+            }
+            synchronized (bufferedCommits) {
+                for (int i = 1; i < lines.length; i++) {
+                    DocumentUpdate u = DocumentUpdate.fromMessage(lines[i]);
+                    if (u.getVersion() != documentVectorVersion.get() + 1) continue; // já aplicada por um commit ao vivo
+                    List<String> delta = new ArrayList<>();
+                    for (DocumentUpdate.Entry e : u.getEntries()) delta.add(e.getCid());
+                    // a tentativa leva os embeddings, o commit só os CIDs (como no caminho normal)
+                    stateLog.append(StateLog.TENTATIVE, u.getVersion(), u.toMessage());
+                    stateLog.append(StateLog.COMMIT, u.getVersion(), String.join(",", delta));
+                    appendCommitted(u.getVersion(), delta, embeddingsOf(u));
+                    clearPending(u.getVersion());
+                }
+                drainBufferedCommits();
+            }
+            if (documentVectorVersion.get() == before) {
+                System.err.println("Deltas do líder sem a versão " + (before + 1) + " — nada aplicado");
+                return false;
+            }
+            maybeSnapshot();
+        }
+    }
+
+    /** The other peers registered with the leader: peerId -> "ip:port" (HTTP). */
+    private static Map<String, String> otherPeers(String leader) throws IOException {
+        Map<String, String> peers = new LinkedHashMap<>();
+        for (String line : StateTransfer.get(leader, "/api/peers").split("\n")) {
+            int id = line.indexOf("Peer ID: ");
+            int addr = line.indexOf(", Endereço: ");
+            if (id < 0 || addr < 0) continue;
+            if (line.substring(id + 9, addr).equals(peerId)) continue;
+            peers.put(line.substring(id + 9, addr), line.substring(addr + 12).trim());
+        }
+        return peers;
+    }
+
+    /** Gossip neighbours = the other registered peers, at their HTTP port + GOSSIP_PORT_OFFSET. */
+    private static void refreshNeighbours() {
+        try {
+            Map<String, InetSocketAddress> addresses = new HashMap<>();
+            Map<String, String> peers = otherPeers(LibP2pConfig.LEADER_HOST + ":" + LibP2pConfig.LEADER_HTTP_PORT);
+            peerAddresses = peers;
+            for (Map.Entry<String, String> e : peers.entrySet()) {
+                int sep = e.getValue().lastIndexOf(':');
+                if (sep < 0) continue;
+                int port = Integer.parseInt(e.getValue().substring(sep + 1)) + LibP2pConfig.GOSSIP_PORT_OFFSET;
+                addresses.put(e.getKey(), InetSocketAddress.createUnresolved(e.getValue().substring(0, sep), port));
+            }
+            peerNode.setNeighbours(addresses);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Não foi possível obter os vizinhos de gossip: " + e.getMessage());
+        }
+    }
+
+    /** Downloads the committed state from the other peers (leader last) and installs it if it is newer. */
+    private static void installSnapshot(String leader) throws Exception {
+        List<String> sources = new ArrayList<>(otherPeers(leader).values());
+        sources.add(leader);
+
+        StateTransfer.Snapshot snapshot = StateTransfer.downloadSnapshot(sources);
+        synchronized (bufferedCommits) {
+            if (snapshot.version <= documentVectorVersion.get()) return;
+            stateLog.append(StateLog.FULL, snapshot.version, String.join(",", snapshot.cids));
+            replaceCommitted(snapshot.version, snapshot.cids, snapshot.embeddings);
+            drainBufferedCommits();
+        }
+        // os embeddings só ficam persistidos na snapshot
+        int version;
+        CidVector.Snapshot cids;
+        Map<Integer, EmbeddingShard.View> views;
+        synchronized (documentCidVector) {
+            version = documentVectorVersion.get();
+            cids = documentCidVector.snapshot();
+            views = shardViews(false);
+        }
+        stateLog.snapshot(version, cids, embeddingOfRow(cids, views));
+        System.out.println("Snapshot instalada: versão " + snapshot.version + ", " + snapshot.cids.size() + " CIDs");
+    }
+
+    /** A commit from the leader: a delta against {@code parent}, a full vector, or just the version. */
+    static class CommitMessage {
+        int version;
+        int parent;
+        String hash;
+        List<String> delta;
+        List<String> full;
+
+        static CommitMessage parse(String body) {
+            CommitMessage c = new CommitMessage();
+            String[] parts = body.split(";", 4);
+            c.version = Integer.parseInt(parts[0]);
+            if (parts.length == 4) {
+                c.parent = Integer.parseInt(parts[1]);
+                c.hash = parts[2];
+                c.delta = parts[3].isEmpty() ? new ArrayList<>() : Arrays.asList(parts[3].split(","));
+            } else if (parts.length >= 2 && !parts[1].isEmpty()) {
+                c.full = new ArrayList<>(Arrays.asList(parts[1].split(",")));
+            }
+            return c;
+        }
+    }
+
+    /**
+     * Applies a delta commit in place (append the new CIDs). The resulting vector must match the leader's
+     * hash: normally checked against the hash of our own tentative vector for that version, recomputed only
+     * when we never saw the tentative update. Returns false (nothing applied) on mismatch.
+     */
+    private static boolean applyDeltaCommit(CommitMessage commit) throws Exception {
+        int version = commit.version;
+        boolean ok = commit.hash.isEmpty() || commit.hash.equals(pendingHashes.get(version));
+        if (!ok) {
+            MerkleAccumulator acc;
+            synchronized (documentCidVector) {
+                acc = committedTree.accumulator();
+            }
+            for (String cid : commit.delta) acc.add(BlockStore.fromHex(cid));
+            ok = commit.hash.equals(acc.rootHex());
+        }
+        if (!ok) return false;
+
+        Map<String, String> embMap = pendingEmbeddings.getOrDefault(version, Collections.emptyMap());
+        stateLog.append(StateLog.COMMIT, version, String.join(",", commit.delta));
+        int size = appendCommitted(version, commit.delta, embMap);
+        clearPending(version);
+        maybeSnapshot();
+
+        System.out.println("Commit aplicado localmente: versão " + version + " (+" + commit.delta.size() + " CIDs, total " + size + ")");
+        return true;
+    }
+
+    /**
+     * POST /api/search?k=10&metric=cosine|dot   body = query vector (EMBEDDING_DIM floats separated by commas, or Base64)
+     * GET  /api/search?text=...&k=10             query = embedding of the text (same local model as the leader)
+     * &shards=1,5,... limits the search to those shards (default: every shard of this peer); a shard this peer
+     * does not have, or is still filling, is answered with 409. Cosine searches go through the HNSW index
+     * (&ef=N overrides HNSW_EF_SEARCH: higher = better recall, slower) plus an exact scan of the rows not
+     * indexed yet; &exact=true or metric=dot scans every row.
+     * Response: "version;rows;shard:rows,..." then one "cid;score" line per result, best first.
+     * Over the transport the body is the query string, a newline and the vector.
+     */
+    static class SearchHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            addCors(exchange);
+            exchange.getResponseHeaders().add("Content-Type", "text/plain; charset=UTF-8");
+            if ("OPTIONS".equalsIgnoreCase(exchange.getRequestMethod())) {
+                sendResponse(exchange, 204, "");
+                return;
+            }
+            Map<String, String> q = parseQuery(exchange.getRequestURI().getRawQuery());
+            float[] query;
+            if (q.containsKey("text")) {
+                query = EmbeddingModel.embed(URLDecoder.decode(q.get("text"), StandardCharsets.UTF_8.name()));
+            } else if ("POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+                query = EmbeddingModel.parse(readRequestBody(exchange).trim());
+            } else {
+                sendResponse(exchange, 400, "Indique o vetor no corpo (POST) ou o parametro text");
+                return;
+            }
+            Libp2pNode.Response r = search(q, query);
+            sendResponse(exchange, r.code, r.body);
+        }
+
+        /** Search request from the leader over the transport: "query string\nvector". */
+        static Libp2pNode.Response search(String body) {
+            int nl = body.indexOf('\n');
+            if (nl < 0) return new Libp2pNode.Response(400, "Pedido de pesquisa invalido");
+            return search(parseQuery(body.substring(0, nl)), EmbeddingModel.parse(body.substring(nl + 1).trim()));
+        }
 
-                List<String> committedVector = null;
-                if (parts.length == 2 && parts[1] != null && !parts[1].isEmpty()) {
-                    String[] cids = parts[1].split(",");
-                    committedVector = new ArrayList<>(Arrays.asList(cids));
+        static Libp2pNode.Response search(Map<String, String> q, float[] query) {
+            if (query == null) {
+                return new Libp2pNode.Response(400, "Vetor de consulta invalido (esperados " + EmbeddingModel.DIM + " valores)");
+            }
+            int k;
+            int ef;
+            try {
+                k = Math.min(1000, Integer.parseInt(q.getOrDefault("k", "10")));
+                ef = Integer.parseInt(q.getOrDefault("ef", String.valueOf(LibP2pConfig.HNSW_EF_SEARCH)));
+            } catch (NumberFormatException e) {
+                return new Libp2pNode.Response(400, "Parametros k/ef invalidos");
+            }
+            if (k < 1 || ef < 1) return new Libp2pNode.Response(400, "Parametros k/ef invalidos (k e ef têm de ser >= 1)");
+            boolean cosine = !"dot".equalsIgnoreCase(q.get("metric"));
+            boolean exact = "true".equalsIgnoreCase(q.get("exact"));
+
+            int version;
+            Map<Integer, EmbeddingShard.View> views = new TreeMap<>();
+            synchronized (documentCidVector) {
+                version = documentVectorVersion.get();
+                Map<Integer, EmbeddingShard.View> ready = shardViews(true);
+                if (!q.containsKey("shards")) {
+                    views.putAll(ready);
                 } else {
-                    // fallback to pendingVectors
-                    committedVector = pendingVectors.get(version);
+                    for (String id : q.get("shards").split(",")) {
+                        EmbeddingShard.View v;
+                        try {
+                            v = ready.get(Integer.parseInt(id.trim()));
+                        } catch (NumberFormatException e) {
+                            return new Libp2pNode.Response(400, "Parametro shards invalido");
+                        }
+                        if (v == null) return new Libp2pNode.Response(409, "Shard " + id + " não disponível neste peer");
+                        views.put(Integer.parseInt(id.trim()), v);
+                    }
                 }
+            }
 
-                if (committedVector == null) {
-                    sendResponse(exchange, 400, "Nenhum vetor pendente para a versão " + version);
-                    return;
+            long start = System.nanoTime();
+            List<Map.Entry<String, Float>> hits = new ArrayList<>();
+            StringBuilder sizes = new StringBuilder();
+            int rows = 0;
+            for (Map.Entry<Integer, EmbeddingShard.View> e : views.entrySet()) {
+                EmbeddingShard.View v = e.getValue();
+                for (SimilaritySearch.Hit hit : shards.get(e.getKey()).search(v, query, k, ef, cosine, exact)) {
+                    hits.add(new AbstractMap.SimpleEntry<>(v.cids.get(hit.row), hit.score));
+                }
+                rows += v.cids.size();
+                sizes.append(sizes.length() == 0 ? "" : ",").append(e.getKey()).append(':').append(v.cids.size());
+            }
+            hits.sort((a, b) -> Float.compare(b.getValue(), a.getValue()));
+            StringBuilder sb = new StringBuilder();
+            sb.append(version).append(';').append(rows).append(';').append(sizes);
+            for (int i = 0; i < Math.min(k, hits.size()); i++) {
+                sb.append('\n').append(hits.get(i).getKey()).append(';').append(hits.get(i).getValue());
+            }
+            searchTime.recordSince(start);
+            System.out.println("Pesquisa top-" + k + (cosine && !exact ? " (HNSW)" : " (exata)") + " em " + views.size()
+                    + " shard(s), " + rows + " documentos: " + (System.nanoTime() - start) / 1_000_000 + " ms");
+            return new Libp2pNode.Response(200, sb.toString());
+        }
+    }
+
+    /** GET /api/metrics -> histograms, counters and gauges of this peer (Prometheus text format, see Metrics) */
+    static class MetricsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            addCors(exchange);
+            exchange.getResponseHeaders().add("Content-Type", Metrics.CONTENT_TYPE);
+            sendResponse(exchange, 200, Metrics.scrape());
+        }
+    }
+
+    /** GET/HEAD /api/files/{cid}: content of a document, with Range, ETag and 304 (see ContentServer) */
+    static class FilesHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            addCors(exchange);
+            String method = exchange.getRequestMethod();
+            if ("OPTIONS".equalsIgnoreCase(method)) {
+                sendResponse(exchange, 204, "");
+                return;
+            }
+            if (!"GET".equalsIgnoreCase(method) && !"HEAD".equalsIgnoreCase(method)) {
+                sendResponse(exchange, 405, "Metodo nao permitido");
+                return;
+            }
+            String cid = ContentServer.cidOf(exchange.getRequestURI().getPath());
+            if (cid == null) {
+                sendResponse(exchange, 400, "CID inválido");
+                return;
+            }
+            ContentServer.serve(exchange, blockStore, cid);
+        }
+    }
+
+    /** GET /api/dag/{cid} and /api/blocks/{hash}: manifests and blocks for peers replicating documents */
+    static class BlocksHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            addCors(exchange);
+            if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+                sendResponse(exchange, 405, "Metodo nao permitido");
+                return;
+            }
+            String path = exchange.getRequestURI().getPath();
+            String hash = ContentServer.cidOf(path);
+            if (hash == null) {
+                sendResponse(exchange, 400, "Hash inválido");
+                return;
+            }
+            if (path.startsWith("/api/dag/")) {
+                ContentServer.serveDag(exchange, blockStore, hash);
+            } else {
+                ContentServer.serveBlock(exchange, blockStore, hash);
+            }
+        }
+    }
+
+    /** POST /api/embeddings  body "cid1,cid2,..." -> "cid:embedding" for the CIDs of this peer's shards */
+    static class EmbeddingsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            addCors(exchange);
+            Map<Integer, EmbeddingShard.View> views;
+            synchronized (documentCidVector) {
+                views = shardViews(false);
+            }
+            StateTransfer.serveEmbeddings(exchange, cid -> {
+                EmbeddingShard.View v = views.get(ShardRing.shardOf(cid));
+                return v == null ? null : EmbeddingShard.encoded(v, cid);
+            });
+        }
+    }
+
+    /** GET /api/state/snapshot?offset=O&limit=N -> "version;size;root" then "cid:embedding" per row (see StateTransfer) */
+    static class StateSnapshotHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            addCors(exchange);
+            int version;
+            CidVector.Snapshot rows;
+            String root;
+            Map<Integer, EmbeddingShard.View> views;
+            synchronized (documentCidVector) {
+                version = documentVectorVersion.get();
+                rows = documentCidVector.snapshot();
+                root = committedTree.rootHex();
+                views = shardViews(false);
+            }
+            // só há embeddings dos shards deste peer: quem os recebe vai buscar os restantes aos outros nós
+            StateTransfer.serveSnapshot(exchange, parseQuery(exchange.getRequestURI().getQuery()), version, rows, root,
+                    embeddingOfRow(rows, views));
+        }
+    }
+
+    /**
+     * GET /api/vector/tree                          -> "version;size;root"
+     * GET /api/vector/tree?level=L&from=I&count=C   -> "version;size" then one node hash per line
+     */
+    static class VectorTreeHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            addCors(exchange);
+            exchange.getResponseHeaders().add("Content-Type", "text/plain; charset=UTF-8");
+            try {
+                Map<String, String> q = parseQuery(exchange.getRequestURI().getQuery());
+                StringBuilder sb = new StringBuilder();
+                synchronized (documentCidVector) {
+                    sb.append(documentVectorVersion.get()).append(';').append(committedTree.size());
+                    if (!q.containsKey("level")) {
+                        sb.append(';').append(committedTree.rootHex());
+                    } else {
+                        int level = Integer.parseInt(q.get("level"));
+                        long from = Long.parseLong(q.getOrDefault("from", "0"));
+                        int count = Math.min(1024, Integer.parseInt(q.getOrDefault("count", "1")));
+                        for (String h : committedTree.nodes(level, from, count)) sb.append('\n').append(h);
+                    }
+                }
+                sendResponse(exchange, 200, sb.toString());
+            } catch (NumberFormatException nfe) {
+                sendResponse(exchange, 400, "Parametros invalidos");
+            }
+        }
+    }
+
+    private static Map<String, String> parseQuery(String query) {
+        Map<String, String> params = new HashMap<>();
+        if (query == null) return params;
+        for (String kv : query.split("&")) {
+            int eq = kv.indexOf('=');
+            if (eq > 0) params.put(kv.substring(0, eq), kv.substring(eq + 1));
+        }
+        return params;
+    }
+
+    /** Apply a full-vector commit atomically: replace current vector and move the batch's pending embeddings. */
+    private static void applyFullCommit(int version, List<String> committedVector) {
+        Map<String, String> embMap = pendingEmbeddings.getOrDefault(version, Collections.emptyMap());
+        stateLog.append(StateLog.FULL, version, String.join(",", committedVector));
+        replaceCommitted(version, committedVector, embMap);
+        // tentativas até esta versão ficaram obsoletas
+        for (Integer v : new ArrayList<>(pendingDeltas.keySet())) {
+            if (v <= version) clearPending(v);
+        }
+        maybeSnapshot();
+
+        System.out.println("Commit completo aplicado localmente: versão " + version + ", " + committedVector.size() + " CIDs");
+    }
+
+    /** Appends a committed delta and keeps the embeddings of the CIDs in this peer's shards. Returns the new vector size. */
+    private static int appendCommitted(int version, List<String> delta, Map<String, String> embMap) {
+        int size;
+        synchronized (documentCidVector) {
+            documentCidVector.addAll(delta);
+            for (String cid : delta) committedTree.append(cid);
+            for (String cid : delta) {
+                EmbeddingShard shard = shards.get(ShardRing.shardOf(cid));
+                if (shard != null) shard.add(cid, embMap.get(cid));
+            }
+            documentVectorVersion.set(version);
+            size = documentCidVector.size();
+        }
+        scheduleIndexing();
+        // conteúdo dos novos documentos dos shards deste peer (a recuperação no arranque fica para syncShard)
+        if (blockFetcher != null) {
+            for (String cid : delta) blockFetcher.fetch(cid);
+        }
+        return size;
+    }
+
+    /**
+     * Replaces the committed vector; CIDs already committed keep their embeddings. Embeddings of this peer's
+     * shards that are still missing afterwards are fetched by a shard sync.
+     */
+    private static void replaceCommitted(int version, List<String> vector, Map<String, String> embMap) {
+        synchronized (documentCidVector) {
+            Map<Integer, List<String>> byShard = new HashMap<>();
+            for (String cid : vector) {
+                int s = ShardRing.shardOf(cid);
+                if (shards.containsKey(s)) byShard.computeIfAbsent(s, x -> new ArrayList<>()).add(cid);
+            }
+            for (EmbeddingShard shard : shards.values()) {
+                shard.replace(byShard.getOrDefault(shard.id, Collections.emptyList()), embMap::get);
+            }
+            documentCidVector.resetTo(vector);
+            committedTree = VectorMerkleTree.of(vector);
+            documentVectorVersion.set(version);
+        }
+        if (indexingEnabled) {
+            for (EmbeddingShard shard : shards.values()) shardExecutor.execute(() -> syncShard(shard));
+        }
+        scheduleIndexing();
+    }
+
+    /** Every SNAPSHOT_INTERVAL_VERSIONS commits, hands a consistent copy of committed state to the log. */
+    private static void maybeSnapshot() {
+        int version;
+        CidVector.Snapshot cids;
+        Map<Integer, EmbeddingShard.View> views;
+        synchronized (documentCidVector) {
+            version = documentVectorVersion.get();
+            if (!stateLog.snapshotDue(version)) return;
+            cids = documentCidVector.snapshot();
+            views = shardViews(false);
+        }
+        stateLog.snapshot(version, cids, embeddingOfRow(cids, views));
+        saveIndexes();
+    }
+
+    /** Views of the shards (only those ready for search if {@code readyOnly}). Caller holds documentCidVector. */
+    private static Map<Integer, EmbeddingShard.View> shardViews(boolean readyOnly) {
+        Map<Integer, EmbeddingShard.View> views = new HashMap<>();
+        for (EmbeddingShard shard : shards.values()) {
+            if (!readyOnly || shard.isReady()) views.put(shard.id, shard.view());
+        }
+        return views;
+    }
+
+    /** Embedding of each row of {@code cids}, from the shard views captured with it (null for other shards). */
+    private static IntFunction<String> embeddingOfRow(CidVector.Snapshot cids, Map<Integer, EmbeddingShard.View> views) {
+        return row -> {
+            String cid = cids.get(row);
+            EmbeddingShard.View v = views.get(ShardRing.shardOf(cid));
+            return v == null ? null : EmbeddingShard.encoded(v, cid);
+        };
+    }
+
+    /** Indexes the rows committed since the last run on the indexer thread (at most one run queued). */
+    private static void scheduleIndexing() {
+        if (indexingEnabled && indexScheduled.compareAndSet(false, true)) indexer.execute(Libp2pPeer::indexCommitted);
+    }
+
+    private static void indexCommitted() {
+        indexScheduled.set(false);
+        Map<Integer, EmbeddingShard.View> views;
+        synchronized (documentCidVector) {
+            views = shardViews(true);
+        }
+        // sem índice, ou houve um commit completo (linhas novas): o shard recomeça; entretanto as pesquisas são exatas
+        for (Map.Entry<Integer, EmbeddingShard.View> e : views.entrySet()) {
+            EmbeddingShard shard = shards.get(e.getKey());
+            try {
+                if (shard != null) shard.index(e.getValue());
+            } catch (RuntimeException ex) {
+                System.err.println("Erro ao indexar embeddings do shard " + e.getKey() + ": " + ex.getMessage());
+            }
+        }
+    }
+
+    /** Saves the shard indexes next to the snapshot, on the indexer thread so it never races with inserts. */
+    private static void saveIndexes() {
+        indexer.execute(() -> {
+            Map<Integer, EmbeddingShard.View> views;
+            synchronized (documentCidVector) {
+                views = shardViews(true);
+            }
+            long start = System.currentTimeMillis();
+            int rows = 0;
+            for (Map.Entry<Integer, EmbeddingShard.View> e : views.entrySet()) {
+                EmbeddingShard shard = shards.get(e.getKey());
+                try {
+                    if (shard != null) shard.saveIndex(e.getValue());
+                    rows += e.getValue().cids.size();
+                } catch (IOException ex) {
+                    System.err.println("Falha ao guardar o índice HNSW do shard " + e.getKey() + ": " + ex.getMessage());
                 }
+            }
+            System.out.println("Índices HNSW guardados: " + views.size() + " shard(s), " + rows + " linhas em "
+                    + (System.currentTimeMillis() - start) + " ms");
+        });
+    }
+
+    // ---- shards ----
+
+    /** Opens the shards this peer held when it stopped (all of them on a first start, until the leader assigns). */
+    private static void openShards() throws IOException {
+        Set<Integer> held = new TreeSet<>();
+        Path file = Paths.get(LibP2pConfig.STATE_DIR, peerId, "shards");
+        if (Files.exists(file)) {
+            String text = new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim();
+            for (String id : text.isEmpty() ? new String[0] : text.split(",")) held.add(Integer.parseInt(id.trim()));
+        } else {
+            for (int s = 0; s < LibP2pConfig.SHARD_COUNT; s++) held.add(s);
+        }
+        for (int s : held) shards.put(s, new EmbeddingShard(s, shardDir(s)));
+    }
+
+    private static Path shardDir(int shard) {
+        return Paths.get(LibP2pConfig.STATE_DIR, peerId, String.format("shard-%02d", shard));
+    }
 
-                // Apply commit: replace current vector and move pending embeddings
+    private static void saveHeldShards() {
+        try {
+            Path file = Paths.get(LibP2pConfig.STATE_DIR, peerId, "shards");
+            Path tmp = file.resolveSibling("shards.tmp");
+            Files.write(tmp, String.join(",", new TreeSet<>(shards.keySet()).stream().map(String::valueOf)
+                    .toArray(String[]::new)).getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Não foi possível guardar os shards deste peer: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Follows the leader's shard assignment: shards newly assigned to this peer are created and filled from the
+     * other nodes; shards assigned elsewhere are deleted after SHARD_DROP_DELAY_MS (unless they come back).
+     */
+    private static void refreshShards() {
+        ShardRing.Assignment assignment;
+        try {
+            assignment = ShardRing.Assignment.parse(StateTransfer.get(
+                    LibP2pConfig.LEADER_HOST + ":" + LibP2pConfig.LEADER_HTTP_PORT, "/api/shards"));
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Não foi possível obter a atribuição de shards: " + e.getMessage());
+            return;
+        }
+        Set<Integer> assigned = assignment.shardsOf(peerId);
+        if (assigned.isEmpty()) return; // o líder ainda não conta com este peer
+        ShardRing.Assignment previous = shardAssignment;
+        shardAssignment = assignment;
+        if (previous != null && previous.encode().equals(assignment.encode())) return;
+
+        boolean changed = false;
+        for (int s : assigned) {
+            droppingShards.remove(s);
+            if (shards.containsKey(s)) continue;
+            try {
+                EmbeddingShard shard = new EmbeddingShard(s, shardDir(s));
                 synchronized (documentCidVector) {
-                    documentCidVector.clear();
-                    documentCidVector.addAll(committedVector);
-                    documentVectorVersion.set(version);
+                    shards.put(s, shard);
                 }
+                changed = true;
+                shardExecutor.execute(() -> syncShard(shard));
+            } catch (IOException e) {
+                System.err.println("Não foi possível criar o shard " + s + ": " + e.getMessage());
+            }
+        }
+        for (int s : shards.keySet()) {
+            if (!assigned.contains(s) && droppingShards.add(s)) {
+                shardExecutor.schedule(() -> dropShard(s), LibP2pConfig.SHARD_DROP_DELAY_MS, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (changed) saveHeldShards();
+        System.out.println("Atribuição de shards (época " + assignment.epoch + "): " + assigned.size() + " de "
+                + assignment.shards() + " shards, replicação " + assignment.replication + " " + assigned);
+    }
+
+    private static void dropShard(int s) {
+        ShardRing.Assignment assignment = shardAssignment;
+        if (!droppingShards.remove(s) || assignment == null || assignment.shardsOf(peerId).contains(s)) return;
+        EmbeddingShard shard;
+        synchronized (documentCidVector) {
+            shard = shards.remove(s);
+        }
+        if (shard == null) return;
+        saveHeldShards();
+        // os ficheiros são apagados no thread do índice, que pode estar a usá-los
+        indexer.execute(shard::delete);
+        System.out.println("Shard " + s + " atribuído a outros peers: " + shard.size() + " embeddings apagados");
+    }
 
-                Map<String, String> embMap = pendingEmbeddings.getOrDefault(version, Collections.emptyMap());
-                for (Map.Entry<String, String> e : embMap.entrySet()) {
-                    documentEmbeddings.put(e.getKey(), e.getValue());
+    /**
+     * Fetches the embeddings of committed CIDs of {@code shard} that it does not have yet, from the other peers
+     * (leader last), and then opens the shard to searches. CIDs nobody has (no embedding) are simply left out.
+     */
+    private static void syncShard(EmbeddingShard shard) {
+        List<String> missing = new ArrayList<>();
+        synchronized (documentCidVector) {
+            if (shards.get(shard.id) != shard) return;
+            CidVector.Snapshot all = documentCidVector.snapshot();
+            for (int i = 0; i < all.size(); i++) {
+                String cid = all.get(i);
+                if (ShardRing.shardOf(cid) == shard.id && !shard.contains(cid)) missing.add(cid);
+            }
+        }
+        if (!missing.isEmpty()) {
+            long start = System.currentTimeMillis();
+            String leader = LibP2pConfig.LEADER_HOST + ":" + LibP2pConfig.LEADER_HTTP_PORT;
+            List<String> sources = new ArrayList<>();
+            try {
+                ShardRing.Assignment assignment = shardAssignment;
+                Map<String, String> peers = otherPeers(leader);
+                // primeiro as réplicas do shard, depois os restantes peers e por fim o líder (tem todos)
+                if (assignment != null) {
+                    for (String p : assignment.replicas(shard.id)) {
+                        if (peers.containsKey(p)) sources.add(peers.get(p));
+                    }
                 }
+                for (String addr : peers.values()) {
+                    if (!sources.contains(addr)) sources.add(addr);
+                }
+            } catch (IOException e) {
+                System.err.println("Não foi possível obter a lista de peers: " + e.getMessage());
+            }
+            sources.add(leader);
+            int found = StateTransfer.fetchEmbeddings(sources, missing, (cid, embedding) -> {
+                synchronized (documentCidVector) {
+                    if (shards.get(shard.id) == shard && documentCidVector.contains(cid)) shard.add(cid, embedding);
+                }
+            });
+            System.out.println("Shard " + shard.id + ": " + found + " de " + missing.size() + " embeddings em falta obtidos em "
+                    + (System.currentTimeMillis() - start) + " ms");
+        }
+        if (!shard.isReady()) {
+            shard.setReady(true);
+            System.out.println("Shard " + shard.id + " pronto: " + shard.size() + " embeddings");
+        }
+        scheduleIndexing();
 
-                // cleanup pending
-                pendingVectors.remove(version);
-                pendingEmbeddings.remove(version);
+        // Conteúdo dos documentos do shard que ainda não está neste peer (blocos pedidos em paralelo, em fundo)
+        CidVector.Snapshot all = documentCidVector.snapshot();
+        for (int i = 0; i < all.size(); i++) {
+            String cid = all.get(i);
+            if (ShardRing.shardOf(cid) == shard.id) blockFetcher.fetch(cid);
+        }
+    }
 
-                System.out.println("Commit aplicado localmente: versão " + version + ", vector: " + documentCidVector);
-                sendResponse(exchange, 200, "Commit aplicado");
+    /** Whether this peer keeps the content of {@code cid}: a committed document of one of its shards. */
+    private static boolean holdsContent(String cid) {
+        return shards.containsKey(ShardRing.shardOf(cid)) && documentCidVector.contains(cid);
+    }
 
-            } catch (NumberFormatException nfe) {
-                sendResponse(exchange, 400, "Versao invalida");
-            } catch (Exception e) {
-                System.err.println("Erro ao aplicar commit: " + e.getMessage());
-                sendResponse(exchange, 500, "Erro interno");
+    /**
+     * Nodes to ask for the blocks of {@code cid}: the leader, which has every document as soon as it is committed
+     * (the other replicas are usually fetching it at the same time), then the other replicas of its shard.
+     */
+    private static List<String> contentSources(String cid) {
+        List<String> sources = new ArrayList<>();
+        sources.add(LibP2pConfig.LEADER_HOST + ":" + LibP2pConfig.LEADER_HTTP_PORT);
+        ShardRing.Assignment assignment = shardAssignment;
+        Map<String, String> peers = peerAddresses;
+        if (assignment != null) {
+            for (String p : assignment.replicas(ShardRing.shardOf(cid))) {
+                String addr = peers.get(p);
+                if (addr != null && !p.equals(peerId)) sources.add(addr);
             }
         }
+        return sources;
+    }
+
+    private static void clearPending(int version) {
+        pendingDeltas.remove(version);
+        pendingEmbeddings.remove(version);
+        pendingHashes.remove(version);
+        pendingAccumulators.remove(version);
     }
 
     private static String getLocalIpAddress() {
@@ -0,0 +1,92 @@
+package lib2p;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Append-only binary Merkle tree over 32-byte SHA-256 leaves.
+ * Keeps only the roots of the complete subtrees seen so far (at most log2(N) of them),
+ * so leaves can be streamed in with constant memory.
+ *
+ * Leaves and internal nodes are hashed apart, as in RFC 6962: a leaf is SHA-256(0x00 || leaf) and an internal
+ * node SHA-256(0x01 || left || right). Without the prefixes the root of two leaves would be the hash of their
+ * 64 bytes, so a 64-byte document made of two chunk hashes would get the CID of the two-chunk document.
+ */
+public class MerkleAccumulator {
+
+    static final byte LEAF_PREFIX = 0x00;
+    static final byte NODE_PREFIX = 0x01;
+
+    // peaks.get(i) = root of a complete subtree; heights.get(i) = its height (strictly decreasing)
+    private final List<byte[]> peaks = new ArrayList<>();
+    private final List<Integer> heights = new ArrayList<>();
+    private final MessageDigest digest;
+    private long size;
+
+    public MerkleAccumulator() {
+        try {
+            this.digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Starts from existing peaks (ordered by decreasing height) covering {@code size} leaves. */
+    public MerkleAccumulator(List<byte[]> peaks, List<Integer> heights, long size) {
+        this();
+        this.peaks.addAll(peaks);
+        this.heights.addAll(heights);
+        this.size = size;
+    }
+
+    /** Independent copy: adding to the copy does not change this accumulator. */
+    public MerkleAccumulator copy() {
+        return new MerkleAccumulator(peaks, heights, size);
+    }
+
+    /** Appends a leaf digest, merging equal-height peaks. */
+    public void add(byte[] leaf) {
+        digest.update(LEAF_PREFIX);
+        digest.update(leaf);
+        byte[] node = digest.digest();
+        int height = 0;
+        while (!heights.isEmpty() && heights.get(heights.size() - 1) == height) {
+            byte[] left = peaks.remove(peaks.size() - 1);
+            heights.remove(heights.size() - 1);
+            node = hashPair(left, node);
+            height++;
+        }
+        peaks.add(node);
+        heights.add(height);
+        size++;
+    }
+
+    /** Root over all leaves added so far (null when empty). Peaks are folded right-to-left. */
+    public byte[] root() {
+        if (peaks.isEmpty()) return null;
+        byte[] acc = peaks.get(peaks.size() - 1);
+        for (int i = peaks.size() - 2; i >= 0; i--) {
+            acc = hashPair(peaks.get(i), acc);
+        }
+        return acc;
+    }
+
+    /** Root as hex; an empty accumulator has the all-zero hash. */
+    public String rootHex() {
+        byte[] root = root();
+        return root == null ? VectorMerkleTree.EMPTY_ROOT : BlockStore.toHex(root);
+    }
+
+    public long size() {
+        return size;
+    }
+
+    private byte[] hashPair(byte[] left, byte[] right) {
+        digest.update(NODE_PREFIX);
+        digest.update(left);
+        digest.update(right);
+        return digest.digest();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,276 @@
+package lib2p;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+
+/**
+ * In-process metrics of the leader and peers, served on /api/metrics in the Prometheus text format.
+ *
+ * Histograms are HDR-style: a value falls into one of 2^SUB_BITS linear sub-buckets of its power of two,
+ * so it is kept with a relative error under 1/2^SUB_BITS (about 3%) from 1 up to 2^MAX_MSB. Recording
+ * computes the bucket from the leading zeros and bumps a few atomics: no lock and no allocation, so it can
+ * sit on the request paths. Quantiles are worked out from the buckets only when the metrics are read and
+ * exported as Prometheus summaries. Timers record microseconds and are exported in seconds.
+ *
+ * Counters are atomic longs; gauges and function counters are read when the metrics are scraped.
+ */
+public final class Metrics {
+
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final int SUB_BITS = 5;
+    private static final int SUB = 1 << SUB_BITS;
+    // maior valor distinguido: 2^40 (µs: ~12 dias); acima disso fica no último bucket
+    private static final int MAX_MSB = 40;
+    private static final int BUCKETS = SUB + (MAX_MSB - SUB_BITS + 1) * SUB;
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private static final List<Metric> registry = new CopyOnWriteArrayList<>();
+
+    private Metrics() {
+    }
+
+    private abstract static class Metric {
+        final String name;
+        final String help;
+
+        Metric(String name, String help) {
+            this.name = name;
+            this.help = help;
+        }
+
+        abstract String type();
+
+        abstract void write(StringBuilder sb);
+    }
+
+    // ---- registo ----
+
+    public static Counter counter(String name, String help) {
+        return register(new Counter(name, help));
+    }
+
+    /** A counter kept elsewhere (e.g. by EmbeddingPipeline), read at scrape time. */
+    public static void counter(String name, String help, LongSupplier value) {
+        register(new FunctionMetric(name, help, "counter", value));
+    }
+
+    public static void gauge(String name, String help, LongSupplier value) {
+        register(new FunctionMetric(name, help, "gauge", value));
+    }
+
+    /** Latency histogram: record microseconds (see {@link Histogram#recordSince}), exported in seconds. */
+    public static Histogram timer(String name, String help) {
+        return register(new Histogram(name, help, 1e6));
+    }
+
+    /** Histogram of plain values (sizes, counts), exported as recorded. */
+    public static Histogram histogram(String name, String help) {
+        return register(new Histogram(name, help, 1));
+    }
+
+    /** Latency histograms by the value of one label (e.g. one per peer), created on first use. */
+    public static TimerFamily timers(String name, String help, String label) {
+        return register(new TimerFamily(name, help, label));
+    }
+
+    private static <T extends Metric> T register(T metric) {
+        registry.add(metric);
+        return metric;
+    }
+
+    /** Every registered metric in the Prometheus text exposition format (version 0.0.4). */
+    public static String scrape() {
+        StringBuilder sb = new StringBuilder(4096);
+        for (Metric m : registry) {
+            sb.append("# HELP ").append(m.name).append(' ').append(m.help.replace("\\", "\\\\").replace("\n", "\\n")).append('\n');
+            sb.append("# TYPE ").append(m.name).append(' ').append(m.type()).append('\n');
+            m.write(sb);
+        }
+        return sb.toString();
+    }
+
+    // ---- tipos ----
+
+    public static final class Counter extends Metric {
+        private final AtomicLong value = new AtomicLong();
+
+        Counter(String name, String help) {
+            super(name, help);
+        }
+
+        public void inc() {
+            value.incrementAndGet();
+        }
+
+        public void add(long n) {
+            value.addAndGet(n);
+        }
+
+        public long get() {
+            return value.get();
+        }
+
+        @Override
+        String type() {
+            return "counter";
+        }
+
+        @Override
+        void write(StringBuilder sb) {
+            sb.append(name).append(' ').append(value.get()).append('\n');
+        }
+    }
+
+    private static final class FunctionMetric extends Metric {
+        private final String type;
+        private final LongSupplier value;
+
+        FunctionMetric(String name, String help, String type, LongSupplier value) {
+            super(name, help);
+            this.type = type;
+            this.value = value;
+        }
+
+        @Override
+        String type() {
+            return type;
+        }
+
+        @Override
+        void write(StringBuilder sb) {
+            long v;
+            try {
+                v = value.getAsLong();
+            } catch (RuntimeException e) {
+                return; // ainda não inicializado: sem amostra
+            }
+            sb.append(name).append(' ').append(v).append('\n');
+        }
+    }
+
+    /** Lock-free log-linear histogram of non-negative values. */
+    public static final class Histogram extends Metric {
+        private final double scale;
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        Histogram(String name, String help, double scale) {
+            super(name, help);
+            this.scale = scale;
+        }
+
+        public void record(long value) {
+            if (value < 0) value = 0;
+            counts.incrementAndGet(bucket(value));
+            sum.addAndGet(value);
+            long m;
+            while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+                // outro thread registou um máximo entretanto: voltar a comparar
+            }
+        }
+
+        /** Records the microseconds elapsed since {@code startNanos} (a {@link System#nanoTime()}). */
+        public void recordSince(long startNanos) {
+            record((System.nanoTime() - startNanos) / 1000);
+        }
+
+        @Override
+        String type() {
+            return "summary";
+        }
+
+        @Override
+        void write(StringBuilder sb) {
+            write(sb, "");
+        }
+
+        /** Quantiles, sum and count; {@code labels} is empty or "name=\"value\"," (before the quantile label). */
+        void write(StringBuilder sb, String labels) {
+            long[] snapshot = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = counts.get(i);
+                total += snapshot[i];
+            }
+            long highest = max.get();
+            for (double q : QUANTILES) {
+                sb.append(name).append("{").append(labels).append("quantile=\"").append(q).append("\"} ");
+                sb.append(total == 0 ? "NaN" : format(Math.min(valueAt(snapshot, total, q), highest))).append('\n');
+            }
+            String plain = labels.isEmpty() ? "" : "{" + labels.substring(0, labels.length() - 1) + "}";
+            sb.append(name).append("_sum").append(plain).append(' ').append(format(sum.get())).append('\n');
+            sb.append(name).append("_count").append(plain).append(' ').append(total).append('\n');
+        }
+
+        private String format(long value) {
+            return scale == 1 ? Long.toString(value) : Double.toString(value / scale);
+        }
+    }
+
+    /** Histograms of one latency by label value; {@link #get} does not allocate once the label has been seen. */
+    public static final class TimerFamily extends Metric {
+        private final String label;
+        private final ConcurrentHashMap<String, Histogram> byValue = new ConcurrentHashMap<>();
+
+        TimerFamily(String name, String help, String label) {
+            super(name, help);
+            this.label = label;
+        }
+
+        public Histogram get(String value) {
+            Histogram h = byValue.get(value);
+            if (h != null) return h;
+            return byValue.computeIfAbsent(value, v -> new Histogram(name, help, 1e6));
+        }
+
+        @Override
+        String type() {
+            return "summary";
+        }
+
+        @Override
+        void write(StringBuilder sb) {
+            for (Map.Entry<String, Histogram> e : new TreeMap<>(byValue).entrySet()) {
+                String v = e.getKey().replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+                e.getValue().write(sb, label + "=\"" + v + "\",");
+            }
+        }
+    }
+
+    // ---- buckets ----
+
+    static int bucket(long value) {
+        if (value < SUB) return (int) value;
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        if (msb > MAX_MSB) return BUCKETS - 1;
+        int shift = msb - SUB_BITS;
+        return SUB + shift * SUB + (int) ((value >>> shift) - SUB);
+    }
+
+    /** Largest value that falls in {@code bucket}. */
+    static long highestIn(int bucket) {
+        if (bucket < SUB) return bucket;
+        int shift = (bucket - SUB) / SUB;
+        long sub = SUB + (bucket - SUB) % SUB;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    /** Value at quantile {@code q} of the bucket counts (the top of the bucket that reaches it). */
+    private static long valueAt(long[] counts, long total, double q) {
+        long rank = Math.max(1, (long) Math.ceil(q * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) return highestIn(i);
+        }
+        return highestIn(counts.length - 1);
+    }
+}
\ No newline at end of file
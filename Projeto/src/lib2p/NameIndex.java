@@ -0,0 +1,94 @@
+package lib2p;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Filename to CID index of the uploads, kept apart from the content-addressed blocks.
+ *
+ * Contents are stored once by CID; a name only points at one. The index is held in memory and persisted as
+ * an append-only file of "name\tcid" lines, the last line for a name winning. A line is appended only when a
+ * name gets a different CID, so uploading the same content under the same name writes nothing, and a name
+ * reused for new content never overwrites the data an older CID refers to. The file is compacted on open.
+ */
+public class NameIndex implements Closeable {
+
+    private final Path file;
+    private final Map<String, String> cids = new ConcurrentHashMap<>();
+    private final BufferedWriter out;
+
+    public NameIndex(Path file) throws IOException {
+        this.file = file;
+        int lines = 0;
+        if (Files.exists(file)) {
+            List<String> all = Files.readAllLines(file, StandardCharsets.UTF_8);
+            for (String line : all) {
+                int tab = line.lastIndexOf('\t');
+                if (tab <= 0) continue; // linha incompleta (crash a meio de uma escrita)
+                cids.put(line.substring(0, tab), line.substring(tab + 1));
+            }
+            lines = all.size();
+        }
+        if (lines > cids.size()) compact();
+        this.out = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Points {@code name} (without line breaks) at {@code cid}; returns the CID it pointed at before (null if none).
+     */
+    public String put(String name, String cid) throws IOException {
+        if (cid.equals(cids.get(name))) return cid; // repetido: nada a escrever
+        synchronized (out) {
+            // sob o lock, para a ordem das linhas no ficheiro ser a das alterações no mapa
+            String previous = cids.put(name, cid);
+            if (!cid.equals(previous)) {
+                out.write(name + "\t" + cid);
+                out.newLine();
+                out.flush();
+            }
+            return previous;
+        }
+    }
+
+    /** CID of the last upload named {@code name}, or null. */
+    public String get(String name) {
+        return cids.get(name);
+    }
+
+    public Map<String, String> all() {
+        return Collections.unmodifiableMap(cids);
+    }
+
+    public int size() {
+        return cids.size();
+    }
+
+    /** Rewrites the file with one line per name. */
+    private void compact() throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (BufferedWriter w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, String> e : cids.entrySet()) {
+                w.write(e.getKey() + "\t" + e.getValue());
+                w.newLine();
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (out) {
+            out.close();
+        }
+    }
+}
\ No newline at end of file
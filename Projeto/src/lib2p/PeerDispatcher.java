@@ -0,0 +1,67 @@
+package lib2p;
+
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Asynchronous fan-out to peers.
+ *
+ * Each peer gets its own small lane (bounded in-flight sends + bounded queue), so a slow or dead
+ * peer only delays its own messages and can never pile up unbounded requests. Callers get a
+ * CompletableFuture back immediately and never block on the network.
+ */
+public class PeerDispatcher {
+
+    private final int maxInFlight;
+    private final int maxQueued;
+    private final Map<String, ThreadPoolExecutor> lanes = new ConcurrentHashMap<>();
+
+    public PeerDispatcher(int maxInFlight, int maxQueued) {
+        this.maxInFlight = maxInFlight;
+        this.maxQueued = maxQueued;
+    }
+
+    /** Queues {@code send} on the peer's lane. Completes with false if the lane is full or the send fails. */
+    public CompletableFuture<Boolean> submit(String peerId, Supplier<Boolean> send) {
+        try {
+            return CompletableFuture.supplyAsync(send, lane(peerId));
+        } catch (RejectedExecutionException e) {
+            System.err.println("Peer " + peerId + " com demasiados envios pendentes — mensagem descartada");
+            CompletableFuture<Boolean> failed = new CompletableFuture<>();
+            failed.complete(false);
+            return failed;
+        }
+    }
+
+    /** Number of sends queued (not yet in flight) for a peer. */
+    public int queued(String peerId) {
+        ThreadPoolExecutor lane = lanes.get(peerId);
+        return lane == null ? 0 : lane.getQueue().size();
+    }
+
+    public void remove(String peerId) {
+        ThreadPoolExecutor lane = lanes.remove(peerId);
+        if (lane != null) lane.shutdown();
+    }
+
+    private ThreadPoolExecutor lane(String peerId) {
+        return lanes.computeIfAbsent(peerId, id -> {
+            AtomicInteger n = new AtomicInteger();
+            ThreadPoolExecutor lane = new ThreadPoolExecutor(maxInFlight, maxInFlight, 30, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(maxQueued), r -> {
+                        Thread t = new Thread(r, "send-" + id + "-" + n.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    });
+            lane.allowCoreThreadTimeOut(true);
+            return lane;
+        });
+    }
+}
\ No newline at end of file
@@ -0,0 +1,77 @@
+package lib2p;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The peers' votes on the hash of one proposed version, counted as they arrive.
+ *
+ * The voters and the majority are fixed when the version is proposed (the peers registered at that moment),
+ * so peers joining or leaving do not move the threshold of versions already in flight. A vote is O(1) and takes
+ * no lock: the peer's first vote is kept, its hash's counter goes up, and the vote that brings a hash to the
+ * majority wins a compare-and-set, so exactly one caller sees {@link Outcome#MAJORITY}. Repeated votes, votes
+ * after the decision and votes from peers outside the snapshot change nothing.
+ */
+public class QuorumTracker {
+
+    public enum Outcome {
+        /** Counted, no majority yet. */
+        COUNTED,
+        /** This vote gave the hash its majority: the caller commits. */
+        MAJORITY,
+        /** The peer had already voted on this version. */
+        DUPLICATE,
+        /** The version already has a majority. */
+        DECIDED,
+        /** The peer was not registered when the version was proposed. */
+        NOT_MEMBER
+    }
+
+    private final Set<String> members;
+    private final int majority;
+    private final ConcurrentHashMap<String, String> votes;
+    private final ConcurrentHashMap<String, AtomicInteger> counts = new ConcurrentHashMap<>(4);
+    private final AtomicReference<String> decision = new AtomicReference<>();
+
+    /** A tracker whose voters are {@code members} (copied), needing more than half of them. */
+    public QuorumTracker(Collection<String> members) {
+        this.members = Collections.unmodifiableSet(new HashSet<>(members));
+        this.majority = this.members.size() / 2 + 1;
+        this.votes = new ConcurrentHashMap<>(Math.max(4, this.members.size() * 2));
+    }
+
+    public Outcome vote(String peerId, String hash) {
+        if (decision.get() != null) return Outcome.DECIDED;
+        if (!members.contains(peerId)) return Outcome.NOT_MEMBER;
+        if (votes.putIfAbsent(peerId, hash) != null) return Outcome.DUPLICATE;
+        AtomicInteger count = counts.get(hash);
+        if (count == null) count = counts.computeIfAbsent(hash, h -> new AtomicInteger());
+        if (count.incrementAndGet() >= majority && decision.compareAndSet(null, hash)) return Outcome.MAJORITY;
+        return Outcome.COUNTED;
+    }
+
+    /** Votes for {@code hash} so far. */
+    public int count(String hash) {
+        AtomicInteger count = counts.get(hash);
+        return count == null ? 0 : count.get();
+    }
+
+    public int majority() {
+        return majority;
+    }
+
+    /** Number of peers that can vote (registered when the version was proposed). */
+    public int members() {
+        return members.size();
+    }
+
+    /** The hash that reached the majority, or null while there is none. */
+    public String decision() {
+        return decision.get();
+    }
+}
\ No newline at end of file
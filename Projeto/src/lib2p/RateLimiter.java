@@ -0,0 +1,32 @@
+package lib2p;
+
+/**
+ * Token bucket shared by the threads of one kind of background transfer (bytes per second).
+ * {@link #acquire(long)} blocks until the bucket allows the bytes; a burst of up to one second
+ * of budget is allowed after an idle period.
+ */
+public class RateLimiter {
+
+    private final long bytesPerSecond;
+    private double available;
+    private long last = System.nanoTime();
+
+    /** {@code bytesPerSecond <= 0} means unlimited. */
+    public RateLimiter(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.available = bytesPerSecond;
+    }
+
+    public void acquire(long bytes) throws InterruptedException {
+        if (bytesPerSecond <= 0) return;
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            available = Math.min(bytesPerSecond, available + (now - last) * bytesPerSecond / 1e9);
+            last = now;
+            available -= bytes; // pode ficar negativo: quem vem a seguir espera pela dívida
+            waitNanos = available >= 0 ? 0 : (long) (-available * 1e9 / bytesPerSecond);
+        }
+        if (waitNanos > 0) Thread.sleep(waitNanos / 1_000_000, (int) (waitNanos % 1_000_000));
+    }
+}
\ No newline at end of file
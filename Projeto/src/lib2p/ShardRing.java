@@ -0,0 +1,136 @@
+package lib2p;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Placement of the embedding shards on peers by consistent hashing.
+ *
+ * Every CID belongs to one of SHARD_COUNT fixed shards (by the first bytes of its digest). Each peer is
+ * hashed to SHARD_VNODES points of a ring; the replicas of a shard are the first {@code replication}
+ * distinct peers clockwise from the shard's own point. When a peer joins or leaves, only the shards
+ * next to its points change owners, so a membership change moves about 1/n of the embeddings.
+ *
+ * The leader computes the {@link Assignment} from the registered peers and serves it on /api/shards;
+ * peers hold and index only the shards assigned to them.
+ */
+public class ShardRing {
+
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+    private final int peers;
+
+    public ShardRing(Collection<String> peerIds, int vnodes) {
+        Set<String> unique = new TreeSet<>(peerIds);
+        peers = unique.size();
+        for (String peer : unique) {
+            for (int i = 0; i < vnodes; i++) ring.put(hash(peer + "#" + i), peer);
+        }
+    }
+
+    /** Shard of {@code cid} (a hex SHA-256 digest). */
+    public static int shardOf(String cid) {
+        return (int) (Long.parseLong(cid.substring(0, 8), 16) % LibP2pConfig.SHARD_COUNT);
+    }
+
+    /** Up to {@code replication} distinct peers for {@code shard}, in ring order (the first is the primary). */
+    public List<String> replicas(int shard, int replication) {
+        List<String> out = new ArrayList<>();
+        if (ring.isEmpty()) return out;
+        int wanted = Math.min(replication, peers);
+        long point = hash("shard-" + shard);
+        // do ponto do shard no sentido dos ponteiros do relógio, dando a volta ao anel
+        for (Iterator<String> it = concat(ring.tailMap(point, true).values(), ring.headMap(point, false).values());
+             it.hasNext() && out.size() < wanted; ) {
+            String peer = it.next();
+            if (!out.contains(peer)) out.add(peer);
+        }
+        return out;
+    }
+
+    /** Assignment of every shard for the current members. */
+    public Assignment assign(int epoch, int replication) {
+        List<List<String>> replicas = new ArrayList<>();
+        for (int s = 0; s < LibP2pConfig.SHARD_COUNT; s++) replicas.add(replicas(s, replication));
+        return new Assignment(epoch, replication, replicas);
+    }
+
+    /** Which peers hold each shard, as published by the leader. Immutable. */
+    public static final class Assignment {
+        public final int epoch;
+        public final int replication;
+        private final List<List<String>> replicas;
+
+        Assignment(int epoch, int replication, List<List<String>> replicas) {
+            this.epoch = epoch;
+            this.replication = replication;
+            List<List<String>> copy = new ArrayList<>();
+            for (List<String> r : replicas) copy.add(Collections.unmodifiableList(new ArrayList<>(r)));
+            this.replicas = Collections.unmodifiableList(copy);
+        }
+
+        public int shards() {
+            return replicas.size();
+        }
+
+        /** Replicas of {@code shard}, primary first (empty if there are no peers). */
+        public List<String> replicas(int shard) {
+            return replicas.get(shard);
+        }
+
+        /** Shards held by {@code peerId}. */
+        public Set<Integer> shardsOf(String peerId) {
+            Set<Integer> out = new TreeSet<>();
+            for (int s = 0; s < replicas.size(); s++) {
+                if (replicas.get(s).contains(peerId)) out.add(s);
+            }
+            return out;
+        }
+
+        /** "epoch;replication;shards" then one "shard;peer1,peer2,..." line per shard. */
+        public String encode() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(epoch).append(';').append(replication).append(';').append(replicas.size());
+            for (int s = 0; s < replicas.size(); s++) {
+                sb.append('\n').append(s).append(';').append(String.join(",", replicas.get(s)));
+            }
+            return sb.toString();
+        }
+
+        /** Inverse of {@link #encode}. */
+        public static Assignment parse(String text) {
+            String[] lines = text.split("\n");
+            String[] header = lines[0].trim().split(";");
+            int shards = Integer.parseInt(header[2]);
+            if (shards != LibP2pConfig.SHARD_COUNT) {
+                throw new IllegalArgumentException("SHARD_COUNT diferente: " + shards + " (local " + LibP2pConfig.SHARD_COUNT + ")");
+            }
+            List<List<String>> replicas = new ArrayList<>();
+            for (int s = 0; s < shards; s++) replicas.add(new ArrayList<>());
+            for (int i = 1; i < lines.length; i++) {
+                String[] parts = lines[i].trim().split(";", 2);
+                if (parts.length < 2 || parts[1].isEmpty()) continue;
+                replicas.set(Integer.parseInt(parts[0]), Arrays.asList(parts[1].split(",")));
+            }
+            return new Assignment(Integer.parseInt(header[0]), Integer.parseInt(header[1]), replicas);
+        }
+    }
+
+    private static <T> Iterator<T> concat(Collection<T> a, Collection<T> b) {
+        List<T> all = new ArrayList<>(a);
+        all.addAll(b);
+        return all.iterator();
+    }
+
+    private static long hash(String key) {
+        try {
+            byte[] d = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            long h = 0;
+            for (int i = 0; i < 8; i++) h = (h << 8) | (d[i] & 0xff);
+            return h;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
\ No newline at end of file
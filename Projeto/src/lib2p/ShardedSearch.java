@@ -0,0 +1,189 @@
+package lib2p;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Search over the sharded embeddings, run by the leader: the query goes to one replica of every shard in
+ * parallel and the partial top-k lists are merged.
+ *
+ * Each shard starts on its primary (first replica), and the shards of one peer go in one request. A request
+ * that fails, or is answered with an error (e.g. 409, shard still being filled on that peer), moves its shards
+ * to their next replica at once. A request still running after the hedge delay is sent again to the next
+ * replicas and the first answer for a shard wins (hedged request); the delay is the 95th percentile of recent
+ * peer latencies, so only the slowest ~5% are duplicated. Shards with no answer after SEARCH_TIMEOUT_MS
+ * are left out and the result says how many shards answered.
+ */
+public class ShardedSearch {
+
+    /** Sends a search to a peer: {@code params} as in the peer's /api/search, {@code vector} in Base64. */
+    public interface Transport {
+        CompletableFuture<Libp2pNode.Response> send(String peerId, String params, String vector);
+    }
+
+    /** Merged result: the lowest committed version among the answers, rows searched and shards answered. */
+    public static final class Result {
+        public final int version;
+        public final int rows;
+        public final int answered;
+        public final int shards;
+        public final int hedged;
+        public final List<Map.Entry<String, Float>> hits;
+
+        Result(int version, int rows, int answered, int shards, int hedged, List<Map.Entry<String, Float>> hits) {
+            this.version = version;
+            this.rows = rows;
+            this.answered = answered;
+            this.shards = shards;
+            this.hedged = hedged;
+            this.hits = hits;
+        }
+    }
+
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "search-hedge");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // latências recentes (ms) das respostas dos peers, para o atraso do hedge (guarded by latencies)
+    private static final long[] latencies = new long[256];
+    private static int latencyCount;
+
+    /** Searches every shard of {@code assignment}; blocks for at most SEARCH_TIMEOUT_MS. */
+    public static Result search(ShardRing.Assignment assignment, Transport transport, String params, float[] query, int k)
+            throws InterruptedException {
+        Query q = new Query(assignment, transport, params, EmbeddingModel.encode(query), k);
+        List<Integer> all = new ArrayList<>();
+        for (int s = 0; s < assignment.shards(); s++) all.add(s);
+        q.dispatch(all);
+        try {
+            q.done.get(LibP2pConfig.SEARCH_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | ExecutionException e) {
+            // resultado parcial: os shards sem resposta ficam de fora
+        }
+        return q.result();
+    }
+
+    private static final class Query {
+        private final ShardRing.Assignment assignment;
+        private final Transport transport;
+        private final String params;
+        private final String vector;
+        private final int k;
+        private final int[] nextReplica;
+        private final boolean[] covered;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+        private final Map<String, Float> hits = new HashMap<>();
+        private int answered;
+        private int inFlight;
+        private int version = Integer.MAX_VALUE;
+        private int rows;
+        private int hedged;
+
+        Query(ShardRing.Assignment assignment, Transport transport, String params, String vector, int k) {
+            this.assignment = assignment;
+            this.transport = transport;
+            this.params = params;
+            this.vector = vector;
+            this.k = k;
+            this.nextReplica = new int[assignment.shards()];
+            this.covered = new boolean[assignment.shards()];
+        }
+
+        /** Sends each uncovered shard of {@code shards} to its next replica, one request per peer. */
+        synchronized void dispatch(Collection<Integer> shards) {
+            Map<String, List<Integer>> byPeer = new LinkedHashMap<>();
+            for (int s : shards) {
+                List<String> replicas = assignment.replicas(s);
+                if (covered[s] || nextReplica[s] >= replicas.size()) continue;
+                byPeer.computeIfAbsent(replicas.get(nextReplica[s]++), p -> new ArrayList<>()).add(s);
+            }
+            for (Map.Entry<String, List<Integer>> e : byPeer.entrySet()) send(e.getKey(), e.getValue());
+            if (inFlight == 0) done.complete(null); // nada em curso: ou está tudo coberto ou não há mais réplicas
+        }
+
+        private void send(String peer, List<Integer> shards) {
+            inFlight++;
+            long start = System.nanoTime();
+            StringBuilder list = new StringBuilder();
+            for (int s : shards) list.append(list.length() == 0 ? "" : ",").append(s);
+            timer.schedule(() -> hedge(shards), hedgeDelayMs(), TimeUnit.MILLISECONDS);
+            transport.send(peer, params + "&shards=" + list, vector)
+                    .whenComplete((r, err) -> onResponse(peer, shards, r, err, start));
+        }
+
+        private synchronized void onResponse(String peer, List<Integer> shards, Libp2pNode.Response r, Throwable err, long start) {
+            inFlight--;
+            if (done.isDone()) return;
+            if (err != null || r == null || r.code != 200) {
+                System.err.println("Pesquisa no peer " + peer + " falhou (" + (err != null ? err.getMessage() : r == null ? "-" : r.code + " " + r.body)
+                        + "): shards " + shards + " passam à réplica seguinte");
+                dispatch(shards);
+                return;
+            }
+            recordLatency((System.nanoTime() - start) / 1_000_000);
+            String[] lines = r.body.split("\n");
+            String[] header = lines[0].split(";");
+            version = Math.min(version, Integer.parseInt(header[0]));
+            // header[2] = "shard:linhas,..."; só contam os shards que esta resposta cobre pela primeira vez
+            for (String sizes : header.length > 2 ? header[2].split(",") : new String[0]) {
+                int sep = sizes.indexOf(':');
+                int s = Integer.parseInt(sizes.substring(0, sep));
+                if (s >= 0 && s < covered.length && !covered[s]) {
+                    covered[s] = true;
+                    answered++;
+                    rows += Integer.parseInt(sizes.substring(sep + 1));
+                }
+            }
+            // uma resposta repetida (hedge) traz os mesmos CIDs com o mesmo score: o mapa elimina duplicados
+            for (int i = 1; i < lines.length; i++) {
+                int sep = lines[i].lastIndexOf(';');
+                if (sep <= 0) continue;
+                hits.merge(lines[i].substring(0, sep), Float.parseFloat(lines[i].substring(sep + 1)), Math::max);
+            }
+            if (answered == covered.length || inFlight == 0) done.complete(null);
+        }
+
+        private synchronized void hedge(List<Integer> shards) {
+            if (done.isDone()) return;
+            List<Integer> pending = new ArrayList<>();
+            for (int s : shards) {
+                if (!covered[s]) pending.add(s);
+            }
+            if (pending.isEmpty()) return;
+            hedged++;
+            dispatch(pending);
+        }
+
+        synchronized Result result() {
+            List<Map.Entry<String, Float>> sorted = new ArrayList<>(hits.entrySet());
+            sorted.sort((a, b) -> Float.compare(b.getValue(), a.getValue()));
+            if (sorted.size() > k) sorted = new ArrayList<>(sorted.subList(0, k));
+            done.complete(null); // respostas que ainda cheguem são ignoradas
+            return new Result(version == Integer.MAX_VALUE ? 0 : version, rows, answered, covered.length, hedged, sorted);
+        }
+    }
+
+    private static void recordLatency(long ms) {
+        synchronized (latencies) {
+            latencies[latencyCount++ % latencies.length] = ms;
+        }
+    }
+
+    /** p95 of the recent latencies (at least SEARCH_HEDGE_MIN_MS); a conservative default until there are samples. */
+    static long hedgeDelayMs() {
+        long[] sample;
+        synchronized (latencies) {
+            if (latencyCount < 20) return 5 * LibP2pConfig.SEARCH_HEDGE_MIN_MS;
+            sample = Arrays.copyOf(latencies, Math.min(latencyCount, latencies.length));
+        }
+        Arrays.sort(sample);
+        return Math.max(LibP2pConfig.SEARCH_HEDGE_MIN_MS, sample[(int) (sample.length * 0.95) - 1]);
+    }
+}
\ No newline at end of file
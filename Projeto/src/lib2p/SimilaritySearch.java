@@ -0,0 +1,182 @@
+package lib2p;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Exact top-k search over the rows of an {@link EmbeddingStore} (brute force, no index).
+ *
+ * The row range is split into LEAF_ROWS chunks scanned in parallel on a fork/join pool; each chunk keeps
+ * its own bounded min-heap of the best k (primitive arrays) and the heaps are merged on join. Rows are
+ * bulk-copied from the mapped segments, BLOCK_ROWS at a time, into one array per chunk, so nothing is
+ * allocated per candidate. The dot-product kernel is unrolled over four independent accumulators so the
+ * JIT can keep the FP units busy (and vectorise it).
+ */
+public class SimilaritySearch {
+
+    private static final int LEAF_ROWS = 8192;
+    private static final int BLOCK_ROWS = 64;
+    private static final ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    /** A result: the row and its score. */
+    public static final class Hit {
+        public final int row;
+        public final float score;
+
+        Hit(int row, float score) {
+            this.row = row;
+            this.score = score;
+        }
+    }
+
+    /**
+     * The {@code k} rows in [0, size) most similar to {@code query}, best first. With {@code cosine} the score
+     * is the cosine similarity, otherwise the dot product. Rows without an embedding are skipped.
+     */
+    public static List<Hit> topK(EmbeddingStore.Rows rows, int size, float[] query, int k, boolean cosine) {
+        return topK(rows, 0, size, query, k, cosine);
+    }
+
+    /** Same as {@link #topK(EmbeddingStore.Rows, int, float[], int, boolean)} over rows [from, to). */
+    public static List<Hit> topK(EmbeddingStore.Rows rows, int from, int to, float[] query, int k, boolean cosine) {
+        if (query.length != EmbeddingModel.DIM) throw new IllegalArgumentException("Vetor de consulta com " + query.length + " dimensões");
+        float[] q = query;
+        if (cosine) {
+            double norm = 0;
+            for (float x : query) norm += x * x;
+            if (norm == 0) return new ArrayList<>();
+            q = new float[query.length];
+            float inv = (float) (1 / Math.sqrt(norm));
+            for (int i = 0; i < q.length; i++) q[i] = query[i] * inv;
+        }
+        if (k <= 0 || to <= from) return new ArrayList<>();
+        return pool.invoke(new Scan(rows, q, k, cosine, from, to)).sorted();
+    }
+
+    private static final class Scan extends RecursiveTask<TopK> {
+        private static final long serialVersionUID = 1L;
+
+        private final EmbeddingStore.Rows rows;
+        private final float[] q;
+        private final int k;
+        private final boolean cosine;
+        private final int from;
+        private final int to;
+
+        Scan(EmbeddingStore.Rows rows, float[] q, int k, boolean cosine, int from, int to) {
+            this.rows = rows;
+            this.q = q;
+            this.k = k;
+            this.cosine = cosine;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected TopK compute() {
+            if (to - from > LEAF_ROWS) {
+                int mid = (from + to) >>> 1;
+                Scan left = new Scan(rows, q, k, cosine, from, mid);
+                left.fork();
+                TopK right = new Scan(rows, q, k, cosine, mid, to).compute();
+                return right.merge(left.join());
+            }
+            TopK top = new TopK(k);
+            int dim = q.length;
+            // blocos de linhas copiados do mapeamento para um array reutilizado: o ciclo interno só lê arrays
+            float[] block = new float[BLOCK_ROWS * dim];
+            for (int row = from; row < to; ) {
+                int segment = row / EmbeddingStore.SEGMENT_ROWS;
+                int count = Math.min(Math.min(BLOCK_ROWS, to - row), (segment + 1) * EmbeddingStore.SEGMENT_ROWS - row);
+                FloatBuffer f = rows.segmentView(segment);
+                f.position((row % EmbeddingStore.SEGMENT_ROWS) * dim);
+                f.get(block, 0, count * dim);
+                for (int r = 0; r < count; r++) {
+                    int base = r * dim;
+                    float d0 = 0, d1 = 0, d2 = 0, d3 = 0;
+                    float n0 = 0, n1 = 0, n2 = 0, n3 = 0;
+                    int j = 0;
+                    for (; j + 3 < dim; j += 4) {
+                        float a0 = block[base + j], a1 = block[base + j + 1], a2 = block[base + j + 2], a3 = block[base + j + 3];
+                        d0 += q[j] * a0;
+                        d1 += q[j + 1] * a1;
+                        d2 += q[j + 2] * a2;
+                        d3 += q[j + 3] * a3;
+                        n0 += a0 * a0;
+                        n1 += a1 * a1;
+                        n2 += a2 * a2;
+                        n3 += a3 * a3;
+                    }
+                    for (; j < dim; j++) {
+                        float x = block[base + j];
+                        d0 += q[j] * x;
+                        n0 += x * x;
+                    }
+                    float norm = (n0 + n1) + (n2 + n3);
+                    if (norm == 0) continue; // linha sem embedding
+                    float dot = (d0 + d1) + (d2 + d3);
+                    top.offer(row + r, cosine ? dot / (float) Math.sqrt(norm) : dot);
+                }
+                row += count;
+            }
+            return top;
+        }
+    }
+
+    /** Bounded min-heap of (score, row): the root is the worst of the best k seen so far. */
+    private static final class TopK {
+        private final float[] scores;
+        private final int[] rows;
+        private int n;
+
+        TopK(int k) {
+            scores = new float[k];
+            rows = new int[k];
+        }
+
+        void offer(int row, float score) {
+            if (n < scores.length) {
+                int i = n++;
+                // sobe até ao lugar certo
+                while (i > 0) {
+                    int parent = (i - 1) >>> 1;
+                    if (scores[parent] <= score) break;
+                    scores[i] = scores[parent];
+                    rows[i] = rows[parent];
+                    i = parent;
+                }
+                scores[i] = score;
+                rows[i] = row;
+            } else if (score > scores[0]) {
+                // substitui a raiz e desce
+                int i = 0;
+                while (true) {
+                    int child = 2 * i + 1;
+                    if (child >= n) break;
+                    if (child + 1 < n && scores[child + 1] < scores[child]) child++;
+                    if (scores[child] >= score) break;
+                    scores[i] = scores[child];
+                    rows[i] = rows[child];
+                    i = child;
+                }
+                scores[i] = score;
+                rows[i] = row;
+            }
+        }
+
+        TopK merge(TopK other) {
+            for (int i = 0; i < other.n; i++) offer(other.rows[i], other.scores[i]);
+            return this;
+        }
+
+        List<Hit> sorted() {
+            List<Hit> hits = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) hits.add(new Hit(rows[i], scores[i]));
+            hits.sort((a, b) -> Float.compare(b.score, a.score));
+            return hits;
+        }
+    }
+}
\ No newline at end of file
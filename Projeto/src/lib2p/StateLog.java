@@ -0,0 +1,410 @@
+package lib2p;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.zip.CRC32;
+
+/**
+ * Durable state of a node: an append-only write-ahead log of tentative and commit records plus
+ * periodic snapshots of the committed vector (and embeddings).
+ *
+ * Records are queued and written by a single thread that fsyncs once per batch (group fsync), so many
+ * concurrent appends share one force(). A snapshot rolls the log to a new segment; a segment is deleted
+ * once the snapshot after the next one exists, so recovery reads one snapshot plus a short log tail. The
+ * previous snapshot is kept with its segments, so an unreadable latest snapshot falls back to it.
+ *
+ * Layout of {@code dir}: {@code wal-<seq>.log} segments and {@code snapshot-<seq>.bin}, where the snapshot's
+ * seq is the first segment written after it was taken.
+ */
+public class StateLog implements Closeable {
+
+    public static final byte TENTATIVE = 1; // payload = DocumentUpdate.toMessage()
+    public static final byte COMMIT = 2;    // payload = CIDs added by the version, "cid1,cid2,..."
+    public static final byte FULL = 3;      // payload = whole committed vector, "cid1,cid2,..."
+    private static final byte SYNC = 0;     // marcador interno: não é escrito
+    private static final byte ROLL = -1;    // marcador interno: mudar de segmento
+
+    private static final int SNAPSHOT_MAGIC = 0x534E4150;    // "SNAP": embeddings como pares (cid, embedding)
+    private static final int SNAPSHOT_MAGIC_V2 = 0x534E5032; // "SNP2": um embedding (ou nenhum) por linha
+    private static final int MAX_BATCH = 1024;
+
+    /** A replayed log record. */
+    public static class Record {
+        public final byte type;
+        public final int version;
+        public final String payload;
+
+        Record(byte type, int version, String payload) {
+            this.type = type;
+            this.version = version;
+            this.payload = payload;
+        }
+    }
+
+    /** State restored from the latest snapshot (embeddings go to an {@link EmbeddingSink} as they are read). */
+    public static class Snapshot {
+        public final int version;
+        public final List<String> cids;
+
+        Snapshot(int version, List<String> cids) {
+            this.version = version;
+            this.cids = cids;
+        }
+    }
+
+    /** Receives the embeddings of a snapshot while it is read, one call per row that has one. */
+    public interface EmbeddingSink {
+        void accept(int row, String cid, String embedding);
+    }
+
+    private static class Pending {
+        final Record record;
+        final CompletableFuture<Long> done = new CompletableFuture<>();
+
+        Pending(Record record) {
+            this.record = record;
+        }
+    }
+
+    private final Path dir;
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final ExecutorService snapshotter = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "snapshot");
+        t.setDaemon(true);
+        return t;
+    });
+    private FileChannel segment;
+    private long segmentSeq;
+    private volatile boolean closed;
+    private volatile Thread writer;
+
+    // seq da penúltima e da última snapshot: segmentos anteriores à penúltima podem ser apagados
+    private long previousSnapshotSeq;
+    private long lastSnapshotSeq;
+    private volatile int lastSnapshotVersion;
+    private volatile boolean snapshotRunning;
+
+    public StateLog(Path dir) throws IOException {
+        this.dir = dir;
+        Files.createDirectories(dir);
+    }
+
+    /** True if {@code version} is SNAPSHOT_INTERVAL_VERSIONS past the latest snapshot and none is being written. */
+    public boolean snapshotDue(int version) {
+        return !snapshotRunning && version - lastSnapshotVersion >= LibP2pConfig.SNAPSHOT_INTERVAL_VERSIONS;
+    }
+
+    /** Loads the latest readable snapshot (null if none). Recovery: loadSnapshot, then replay, then open. */
+    public Snapshot loadSnapshot(EmbeddingSink embeddings) throws IOException {
+        Snapshot snapshot = null;
+        List<Long> snapshotSeqs = seqs("snapshot-", ".bin");
+        for (int i = snapshotSeqs.size() - 1; i >= 0 && snapshot == null; i--) {
+            try {
+                snapshot = readSnapshot(snapshotPath(snapshotSeqs.get(i)), embeddings);
+                lastSnapshotSeq = snapshotSeqs.get(i);
+                previousSnapshotSeq = i > 0 ? snapshotSeqs.get(i - 1) : 0;
+                lastSnapshotVersion = snapshot.version;
+            } catch (IOException e) {
+                System.err.println("Snapshot " + snapshotPath(snapshotSeqs.get(i)) + " ilegível: " + e.getMessage());
+            }
+        }
+        for (long seq : snapshotSeqs) segmentSeq = Math.max(segmentSeq, seq);
+        // Sem snapshot o replay começa na versão 0: só é válido se o log estiver completo desde o primeiro segmento
+        List<Long> segments = seqs("wal-", ".log");
+        if (snapshot == null && !segments.isEmpty() && segments.get(0) > 1) {
+            throw new IOException("nenhuma snapshot legível em " + dir + " e o log começa no segmento " + segments.get(0)
+                    + ": o estado anterior não pode ser reconstruído");
+        }
+        return snapshot;
+    }
+
+    /**
+     * Feeds every log record, oldest first, to {@code replay} and returns how many there were. Records already
+     * covered by the snapshot are included; the caller skips them by version. A torn record ends its segment.
+     */
+    public int replay(Consumer<Record> replay) throws IOException {
+        int total = 0;
+        for (long seq : seqs("wal-", ".log")) {
+            Path p = segmentPath(seq);
+            int n = 0;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(p), 1 << 16))) {
+                Record r;
+                while ((r = readRecord(in)) != null) {
+                    replay.accept(r);
+                    n++;
+                }
+            } catch (IOException e) {
+                System.err.println("Registo incompleto no fim de " + p.getFileName() + " (" + n + " registos lidos)");
+            }
+            total += n;
+            segmentSeq = Math.max(segmentSeq, seq);
+        }
+        return total;
+    }
+
+    /** Starts a new segment and the writer thread. */
+    public synchronized void open() throws IOException {
+        openSegment(segmentSeq + 1);
+        writer = new Thread(this::writeLoop, "wal-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /** Queues a record. The future completes once it (and everything queued before it) is on disk. */
+    public CompletableFuture<Void> append(byte type, int version, String payload) {
+        return enqueue(new Record(type, version, payload)).thenApply(seq -> null);
+    }
+
+    /** Completes once everything queued so far is on disk. */
+    public CompletableFuture<Void> flush() {
+        return enqueue(new Record(SYNC, 0, "")).thenApply(seq -> null);
+    }
+
+    /**
+     * Takes a snapshot of committed state at {@code version} in the background (skipped if one is already
+     * being written). The caller passes immutable/copied state captured consistently with {@code version};
+     * {@code embeddingOfRow} is read on the snapshot thread, for rows [0, cids.size()).
+     */
+    public void snapshot(int version, CidVector.Snapshot cids, IntFunction<String> embeddingOfRow) {
+        synchronized (this) {
+            if (snapshotRunning || closed) return;
+            snapshotRunning = true;
+        }
+        // o roll entra na fila: registos posteriores vão para o novo segmento
+        CompletableFuture<Long> rolled = enqueue(new Record(ROLL, version, ""));
+        snapshotter.execute(() -> {
+            try {
+                long seq = rolled.join();
+                long start = System.currentTimeMillis();
+                writeSnapshot(seq, version, cids, embeddingOfRow);
+                previousSnapshotSeq = lastSnapshotSeq;
+                lastSnapshotSeq = seq;
+                lastSnapshotVersion = version;
+                prune();
+                System.out.println("Snapshot da versão " + version + " (" + cids.size() + " CIDs) em "
+                        + (System.currentTimeMillis() - start) + " ms");
+            } catch (Exception e) {
+                System.err.println("Falha ao escrever snapshot da versão " + version + ": " + e.getMessage());
+            } finally {
+                snapshotRunning = false;
+            }
+        });
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        flush().join();
+        if (writer != null) writer.interrupt();
+        snapshotter.shutdown();
+        synchronized (this) {
+            if (segment != null) segment.close();
+        }
+    }
+
+    private CompletableFuture<Long> enqueue(Record r) {
+        Pending p = new Pending(r);
+        if (writer == null) {
+            p.done.completeExceptionally(new IllegalStateException("StateLog não aberto"));
+        } else {
+            queue.add(p);
+        }
+        return p.done;
+    }
+
+    // Um só thread escreve: junta o que estiver na fila, escreve tudo e faz um único force()
+    private void writeLoop() {
+        List<Pending> batch = new ArrayList<>();
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(1 << 16);
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                if (closed && queue.isEmpty()) return;
+                continue;
+            }
+            queue.drainTo(batch, MAX_BATCH - 1);
+
+            int from = 0;
+            try {
+                for (int i = 0; i < batch.size(); i++) {
+                    Record r = batch.get(i).record;
+                    if (r.type == ROLL) {
+                        // tudo o que veio antes fica no segmento atual
+                        writeAndForce(buf);
+                        complete(batch, from, i, segmentSeq);
+                        openSegment(segmentSeq + 1);
+                        batch.get(i).done.complete(segmentSeq);
+                        from = i + 1;
+                    } else if (r.type != SYNC) {
+                        encode(r, buf);
+                    }
+                }
+                writeAndForce(buf);
+                complete(batch, from, batch.size(), segmentSeq);
+            } catch (IOException e) {
+                System.err.println("Falha a escrever no WAL: " + e.getMessage());
+                for (int i = from; i < batch.size(); i++) batch.get(i).done.completeExceptionally(e);
+                buf.reset();
+            }
+            batch.clear();
+        }
+    }
+
+    private void writeAndForce(ByteArrayOutputStream buf) throws IOException {
+        if (buf.size() > 0) {
+            ByteBuffer bb = ByteBuffer.wrap(buf.toByteArray());
+            while (bb.hasRemaining()) segment.write(bb);
+            buf.reset();
+        }
+        segment.force(false);
+    }
+
+    private static void complete(List<Pending> batch, int from, int to, long seq) {
+        for (int i = from; i < to; i++) batch.get(i).done.complete(seq);
+    }
+
+    private synchronized void openSegment(long seq) throws IOException {
+        if (segment != null) segment.close();
+        segment = FileChannel.open(segmentPath(seq), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        segmentSeq = seq;
+    }
+
+    // Frame: [int length][int crc32][byte type][int version][payload UTF-8]; length/crc cobrem type..payload
+    private static void encode(Record r, ByteArrayOutputStream out) throws IOException {
+        byte[] payload = r.payload.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer body = ByteBuffer.allocate(5 + payload.length);
+        body.put(r.type).putInt(r.version).put(payload);
+        CRC32 crc = new CRC32();
+        crc.update(body.array(), 0, body.capacity());
+        DataOutputStream dos = new DataOutputStream(out);
+        dos.writeInt(body.capacity());
+        dos.writeInt((int) crc.getValue());
+        dos.write(body.array());
+    }
+
+    private static Record readRecord(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        int expectedCrc = in.readInt();
+        if (length < 5) throw new IOException("tamanho inválido " + length);
+        byte[] body = new byte[length];
+        in.readFully(body);
+        CRC32 crc = new CRC32();
+        crc.update(body, 0, length);
+        if ((int) crc.getValue() != expectedCrc) throw new IOException("CRC inválido");
+        ByteBuffer bb = ByteBuffer.wrap(body);
+        byte type = bb.get();
+        int version = bb.getInt();
+        return new Record(type, version, new String(body, 5, length - 5, StandardCharsets.UTF_8));
+    }
+
+    // Snapshot: escrito num ficheiro temporário, fsync e rename atómico
+    private void writeSnapshot(long seq, int version, CidVector.Snapshot cids, IntFunction<String> embeddingOfRow)
+            throws IOException {
+        Path tmp = dir.resolve("snapshot-" + seq + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16))) {
+            out.writeInt(SNAPSHOT_MAGIC_V2);
+            out.writeInt(version);
+            out.writeInt(cids.size());
+            for (int i = 0; i < cids.size(); i++) out.write(cids.digest(i));
+            for (int i = 0; i < cids.size(); i++) {
+                String e = embeddingOfRow.apply(i);
+                byte[] emb = e == null ? new byte[0] : e.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(emb.length);
+                out.write(emb);
+            }
+            out.flush();
+            fos.getFD().sync();
+        }
+        Files.move(tmp, snapshotPath(seq), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static Snapshot readSnapshot(Path p, EmbeddingSink embeddings) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(p), 1 << 16))) {
+            int magic = in.readInt();
+            if (magic != SNAPSHOT_MAGIC && magic != SNAPSHOT_MAGIC_V2) throw new IOException("formato desconhecido");
+            int version = in.readInt();
+            int n = in.readInt();
+            List<String> cids = new ArrayList<>(n);
+            byte[] digest = new byte[32];
+            for (int i = 0; i < n; i++) {
+                in.readFully(digest);
+                cids.add(BlockStore.toHex(digest));
+            }
+            if (magic == SNAPSHOT_MAGIC_V2) {
+                for (int i = 0; i < n; i++) {
+                    byte[] emb = new byte[in.readInt()];
+                    in.readFully(emb);
+                    if (emb.length > 0) embeddings.accept(i, cids.get(i), new String(emb, StandardCharsets.UTF_8));
+                }
+            } else {
+                // formato antigo: pares (cid, embedding) em qualquer ordem
+                Map<String, Integer> rows = new HashMap<>();
+                for (int i = 0; i < n; i++) rows.put(cids.get(i), i);
+                int m = in.readInt();
+                for (int i = 0; i < m; i++) {
+                    String cid = in.readUTF();
+                    byte[] emb = new byte[in.readInt()];
+                    in.readFully(emb);
+                    Integer row = rows.get(cid);
+                    if (row != null) embeddings.accept(row, cid, new String(emb, StandardCharsets.UTF_8));
+                }
+            }
+            return new Snapshot(version, cids);
+        }
+    }
+
+    /** Deletes snapshots and segments older than the previous snapshot (kept as a fallback for the latest). */
+    private void prune() throws IOException {
+        for (long seq : seqs("snapshot-", ".bin")) {
+            if (seq < previousSnapshotSeq) Files.deleteIfExists(snapshotPath(seq));
+        }
+        for (long seq : seqs("wal-", ".log")) {
+            if (seq < previousSnapshotSeq) Files.deleteIfExists(segmentPath(seq));
+        }
+    }
+
+    private List<Long> seqs(String prefix, String suffix) throws IOException {
+        List<Long> out = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, prefix + "*" + suffix)) {
+            for (Path p : ds) {
+                String name = p.getFileName().toString();
+                try {
+                    out.add(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())));
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+        out.sort(null);
+        return out;
+    }
+
+    private Path segmentPath(long seq) {
+        return dir.resolve(String.format("wal-%08d.log", seq));
+    }
+
+    private Path snapshotPath(long seq) {
+        return dir.resolve(String.format("snapshot-%08d.bin", seq));
+    }
+}
\ No newline at end of file
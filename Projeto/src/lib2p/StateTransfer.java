@@ -0,0 +1,287 @@
+package lib2p;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+
+/**
+ * Chunked transfer of the committed state (CID vector + embeddings) to a peer that fell behind, and of the
+ * embeddings of a shard to a peer that was assigned it ({@link #serveEmbeddings} / {@link #fetchEmbeddings}).
+ *
+ * Server side: GET /api/state/snapshot?offset=O&limit=N answers "version;size;root" followed by one
+ * "cid:embedding" line per row in [O, O+N). The vector only grows, so rows below a size never change and
+ * a download can continue at the same offset from a later response or from another node.
+ * Responses share one byte-rate limit and a small number of concurrent transfers, so a catch-up never
+ * starves live commits; a busy server answers 503 and the client moves on to another source.
+ */
+public class StateTransfer {
+
+    private static final RateLimiter limiter = new RateLimiter(LibP2pConfig.CATCHUP_MAX_BYTES_PER_SEC);
+    private static final Semaphore transfers = new Semaphore(LibP2pConfig.CATCHUP_MAX_TRANSFERS);
+
+    /** Committed state downloaded by {@link #downloadSnapshot}. */
+    public static class Snapshot {
+        public final int version;
+        public final List<String> cids;
+        public final Map<String, String> embeddings;
+
+        Snapshot(int version, List<String> cids, Map<String, String> embeddings) {
+            this.version = version;
+            this.cids = cids;
+            this.embeddings = embeddings;
+        }
+    }
+
+    /**
+     * Serves one snapshot chunk. {@code rows}, {@code version} and {@code root} must be captured together;
+     * {@code embeddingOfRow} gives the embedding of a row (or null).
+     */
+    public static void serveSnapshot(HttpExchange exchange, Map<String, String> query, int version,
+                                     CidVector.Snapshot rows, String root, IntFunction<String> embeddingOfRow)
+            throws IOException {
+        if (!transfers.tryAcquire()) {
+            exchange.getResponseHeaders().add("Retry-After", "1");
+            send(exchange, 503, "Demasiadas transferências em curso".getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        try {
+            int offset;
+            int limit;
+            try {
+                offset = Integer.parseInt(query.getOrDefault("offset", "0"));
+                limit = Math.min(LibP2pConfig.CATCHUP_CHUNK_ROWS, Integer.parseInt(query.getOrDefault("limit",
+                        String.valueOf(LibP2pConfig.CATCHUP_CHUNK_ROWS))));
+            } catch (NumberFormatException e) {
+                send(exchange, 400, "Parametros invalidos".getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            StringBuilder sb = new StringBuilder();
+            sb.append(version).append(';').append(rows.size()).append(';').append(root);
+            for (int i = Math.max(0, offset); i < Math.min(rows.size(), offset + limit); i++) {
+                String emb = embeddingOfRow.apply(i);
+                sb.append('\n').append(rows.get(i)).append(':');
+                if (emb != null) sb.append(emb);
+            }
+            byte[] body = sb.toString().getBytes(StandardCharsets.UTF_8);
+            limiter.acquire(body.length);
+            send(exchange, 200, body);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            send(exchange, 503, new byte[0]);
+        } finally {
+            transfers.release();
+        }
+    }
+
+    /**
+     * Serves embeddings by CID: POST body "cid1,cid2,..." (at most CATCHUP_CHUNK_ROWS) -> one "cid:embedding"
+     * line for each CID {@code embeddingOf} knows. Shares the rate limit and the transfer slots of snapshots.
+     */
+    public static void serveEmbeddings(HttpExchange exchange, Function<String, String> embeddingOf) throws IOException {
+        if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+            send(exchange, 405, "Metodo nao permitido".getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        if (!transfers.tryAcquire()) {
+            exchange.getResponseHeaders().add("Retry-After", "1");
+            send(exchange, 503, "Demasiadas transferências em curso".getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        try {
+            String body;
+            try (InputStream is = exchange.getRequestBody()) {
+                body = new String(readAll(is), StandardCharsets.UTF_8).trim();
+            }
+            String[] cids = body.isEmpty() ? new String[0] : body.split(",");
+            if (cids.length > LibP2pConfig.CATCHUP_CHUNK_ROWS) {
+                send(exchange, 400, ("No maximo " + LibP2pConfig.CATCHUP_CHUNK_ROWS + " CIDs por pedido").getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            StringBuilder sb = new StringBuilder();
+            for (String cid : cids) {
+                String emb = embeddingOf.apply(cid.trim());
+                if (emb == null) continue;
+                if (sb.length() > 0) sb.append('\n');
+                sb.append(cid.trim()).append(':').append(emb);
+            }
+            byte[] bytes = sb.toString().getBytes(StandardCharsets.UTF_8);
+            limiter.acquire(bytes.length);
+            send(exchange, 200, bytes);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            send(exchange, 503, new byte[0]);
+        } finally {
+            transfers.release();
+        }
+    }
+
+    /**
+     * Fetches the embeddings of {@code cids} from {@code sources} ("host:port", tried in order), in chunks:
+     * each source is asked for the CIDs the previous ones did not have. Every embedding found goes to
+     * {@code sink} as soon as its chunk arrives; returns how many were found.
+     */
+    public static int fetchEmbeddings(List<String> sources, List<String> cids, BiConsumer<String, String> sink) {
+        List<String> missing = new ArrayList<>(cids);
+        int found = 0;
+        for (String source : sources) {
+            if (missing.isEmpty()) break;
+            List<String> stillMissing = new ArrayList<>();
+            for (int from = 0; from < missing.size(); from += LibP2pConfig.CATCHUP_CHUNK_ROWS) {
+                List<String> chunk = missing.subList(from, Math.min(missing.size(), from + LibP2pConfig.CATCHUP_CHUNK_ROWS));
+                Set<String> got = new HashSet<>();
+                try {
+                    String body = post(source, "/api/embeddings", String.join(",", chunk));
+                    for (String line : body.split("\n")) {
+                        int sep = line.indexOf(':');
+                        if (sep <= 0 || sep + 1 >= line.length()) continue;
+                        String cid = line.substring(0, sep);
+                        if (got.add(cid)) sink.accept(cid, line.substring(sep + 1));
+                    }
+                } catch (IOException e) {
+                    System.err.println("Embeddings de " + source + " indisponíveis: " + e.getMessage());
+                }
+                found += got.size();
+                for (String cid : chunk) {
+                    if (!got.contains(cid)) stillMissing.add(cid);
+                }
+            }
+            missing = stillMissing;
+        }
+        return found;
+    }
+
+    /** Applies the shared rate limit to another catch-up response (e.g. the leader's delta log). */
+    public static void throttle(long bytes) throws InterruptedException {
+        limiter.acquire(bytes);
+    }
+
+    /**
+     * Downloads the committed vector and embeddings from {@code sources} ("host:port"), in chunks.
+     * When a source fails or is busy, the download resumes at the same offset from the next one.
+     * The result is checked against the Merkle root announced by the source it finished on.
+     */
+    public static Snapshot downloadSnapshot(List<String> sources) throws IOException, InterruptedException {
+        List<String> cids = new ArrayList<>();
+        Map<String, String> embeddings = new HashMap<>();
+        int failures = 0;
+        for (int s = 0; failures < sources.size() * 3; s = (s + 1) % sources.size()) {
+            String source = sources.get(s);
+            int targetSize = -1;
+            int targetVersion = 0;
+            String targetRoot = null;
+            try {
+                while (true) {
+                    int limit = targetSize < 0 ? LibP2pConfig.CATCHUP_CHUNK_ROWS
+                            : Math.min(LibP2pConfig.CATCHUP_CHUNK_ROWS, targetSize - cids.size());
+                    String[] lines = get(source, "/api/state/snapshot?offset=" + cids.size() + "&limit=" + limit).split("\n");
+                    String[] header = lines[0].split(";");
+                    int size = Integer.parseInt(header[1]);
+                    if (targetSize < 0) {
+                        // o alvo fica fixo no primeiro pedido a esta fonte: o vetor dela pode crescer entretanto
+                        if (size < cids.size()) throw new IOException("fonte com vetor mais curto (" + size + ")");
+                        targetSize = size;
+                        targetVersion = Integer.parseInt(header[0]);
+                        targetRoot = header[2];
+                    }
+                    for (int i = 1; i < lines.length && cids.size() < targetSize; i++) {
+                        int sep = lines[i].indexOf(':');
+                        String cid = sep < 0 ? lines[i] : lines[i].substring(0, sep);
+                        cids.add(cid);
+                        if (sep >= 0 && sep + 1 < lines[i].length()) embeddings.put(cid, lines[i].substring(sep + 1));
+                    }
+                    if (cids.size() >= targetSize) {
+                        MerkleAccumulator acc = new MerkleAccumulator();
+                        for (String cid : cids) acc.add(BlockStore.fromHex(cid));
+                        if (!acc.rootHex().equals(targetRoot)) {
+                            // a fonte mudou de vetor a meio (commit completo): recomeçar do zero
+                            cids.clear();
+                            embeddings.clear();
+                            throw new IOException("raiz Merkle diferente da anunciada");
+                        }
+                        return new Snapshot(targetVersion, cids, embeddings);
+                    }
+                    if (lines.length <= 1) throw new IOException("resposta sem linhas");
+                }
+            } catch (IOException | RuntimeException e) {
+                failures++;
+                System.err.println("Transferência de estado de " + source + " interrompida em " + cids.size()
+                        + " CIDs: " + e.getMessage());
+                Thread.sleep(200);
+            }
+        }
+        throw new IOException("Nenhuma fonte conseguiu enviar o estado");
+    }
+
+    /** GET to "host:port" + path; the body, or an IOException if the code is not 200. */
+    public static String get(String hostPort, String pathAndQuery) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL("http://" + hostPort + pathAndQuery).openConnection();
+        conn.setConnectTimeout(2000);
+        conn.setReadTimeout(10000);
+        try {
+            int code = conn.getResponseCode();
+            if (code != 200) throw new IOException("codigo " + code);
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(conn.getInputStream(), StandardCharsets.UTF_8))) {
+                StringBuilder sb = new StringBuilder();
+                String line;
+                while ((line = br.readLine()) != null) {
+                    if (sb.length() > 0) sb.append('\n');
+                    sb.append(line);
+                }
+                return sb.toString();
+            }
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    /** POST of {@code body} to "host:port" + path; the response body, or an IOException if the code is not 200. */
+    public static String post(String hostPort, String pathAndQuery, String body) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL("http://" + hostPort + pathAndQuery).openConnection();
+        conn.setRequestMethod("POST");
+        conn.setRequestProperty("Content-Type", "text/plain; charset=UTF-8");
+        conn.setDoOutput(true);
+        conn.setConnectTimeout(2000);
+        conn.setReadTimeout(10000);
+        try {
+            try (OutputStream os = conn.getOutputStream()) {
+                os.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+            int code = conn.getResponseCode();
+            if (code != 200) throw new IOException("codigo " + code);
+            try (InputStream is = conn.getInputStream()) {
+                return new String(readAll(is), StandardCharsets.UTF_8);
+            }
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    private static byte[] readAll(InputStream is) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = is.read(buf)) > 0) out.write(buf, 0, n);
+        return out.toByteArray();
+    }
+
+    private static void send(HttpExchange exchange, int statusCode, byte[] bytes) throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", "text/plain; charset=UTF-8");
+        exchange.sendResponseHeaders(statusCode, bytes.length == 0 ? -1 : bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            if (bytes.length > 0) os.write(bytes);
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,184 @@
+package lib2p;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Incrementally maintained Merkle tree over the committed CID vector.
+ *
+ * Leaves are the 32-byte CID digests in vector order; level 0 keeps their leaf hashes (SHA-256(0x00 || cid),
+ * see {@link MerkleAccumulator}). Every complete node is kept, packed per level,
+ * so appending a CID costs O(1) amortized (O(log N) worst case) and any subtree hash can be served
+ * to another node to locate a divergence without exchanging the vector.
+ * The root is the same as the one {@link MerkleAccumulator} computes over the same leaves.
+ */
+public class VectorMerkleTree {
+
+    public static final String EMPTY_ROOT = "0000000000000000000000000000000000000000000000000000000000000000";
+    private static final int HASH_SIZE = 32;
+
+    /** Read access to a tree's complete nodes, local or remote. */
+    public interface NodeSource {
+        /** Number of complete nodes at {@code level} (level 0 = leaves). */
+        long count(int level) throws Exception;
+
+        /** Hex hashes of nodes [from, from + n) at {@code level}. */
+        List<String> nodes(int level, long from, int n) throws Exception;
+    }
+
+    // levels.get(k) = nós completos do nível k, 32 bytes cada, contíguos
+    private final List<Level> levels = new ArrayList<>();
+    private final MessageDigest digest;
+
+    private static class Level {
+        byte[] data = new byte[HASH_SIZE * 16];
+        int count;
+
+        void add(byte[] hash) {
+            if ((count + 1) * HASH_SIZE > data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            System.arraycopy(hash, 0, data, count * HASH_SIZE, HASH_SIZE);
+            count++;
+        }
+
+        byte[] get(int i) {
+            return Arrays.copyOfRange(data, i * HASH_SIZE, (i + 1) * HASH_SIZE);
+        }
+    }
+
+    public VectorMerkleTree() {
+        try {
+            this.digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Builds a tree over a whole vector of hex CIDs (used for full transfers and recovery). */
+    public static VectorMerkleTree of(List<String> cids) {
+        VectorMerkleTree tree = new VectorMerkleTree();
+        for (String cid : cids) tree.append(cid);
+        return tree;
+    }
+
+    public void append(String cid) {
+        append(BlockStore.fromHex(cid));
+    }
+
+    /** Appends a leaf and completes every parent it closes. */
+    public void append(byte[] leaf) {
+        digest.update(MerkleAccumulator.LEAF_PREFIX);
+        digest.update(leaf);
+        level(0).add(digest.digest());
+        int k = 0;
+        while (level(k).count % 2 == 0) {
+            Level cur = level(k);
+            digest.update(MerkleAccumulator.NODE_PREFIX);
+            digest.update(cur.data, (cur.count - 2) * HASH_SIZE, HASH_SIZE);
+            digest.update(cur.data, (cur.count - 1) * HASH_SIZE, HASH_SIZE);
+            level(k + 1).add(digest.digest());
+            k++;
+        }
+    }
+
+    /** Accumulator positioned at the current end of the tree, to hash tentative appends without mutating it. */
+    public MerkleAccumulator accumulator() {
+        List<byte[]> peaks = new ArrayList<>();
+        List<Integer> heights = new ArrayList<>();
+        for (int k = levels.size() - 1; k >= 0; k--) {
+            Level l = levels.get(k);
+            if (l.count % 2 == 1) {
+                peaks.add(l.get(l.count - 1));
+                heights.add(k);
+            }
+        }
+        return new MerkleAccumulator(peaks, heights, size());
+    }
+
+    public String rootHex() {
+        return accumulator().rootHex();
+    }
+
+    public long size() {
+        return levels.isEmpty() ? 0 : levels.get(0).count;
+    }
+
+    public long count(int level) {
+        return level < levels.size() ? levels.get(level).count : 0;
+    }
+
+    public int height() {
+        return levels.size();
+    }
+
+    public String node(int level, int index) {
+        return BlockStore.toHex(levels.get(level).get(index));
+    }
+
+    /** Hex hashes of complete nodes [from, from + n) at {@code level} (fewer if the level is shorter). */
+    public List<String> nodes(int level, long from, int n) {
+        List<String> out = new ArrayList<>();
+        for (long i = from; i < from + n && i < count(level); i++) out.add(node(level, (int) i));
+        return out;
+    }
+
+    private Level level(int k) {
+        while (levels.size() <= k) levels.add(new Level());
+        return levels.get(k);
+    }
+
+    /**
+     * Index of the first leaf where two trees differ, comparing subtree hashes top-down
+     * (O(log N) node fetches). Returns -1 if both have the same leaves.
+     */
+    public static long firstDivergentLeaf(NodeSource a, NodeSource b) throws Exception {
+        long sizeA = a.count(0), sizeB = b.count(0);
+        long common = Math.min(sizeA, sizeB);
+        if (common == 0) return sizeA == sizeB ? -1 : 0;
+
+        int level = 63 - Long.numberOfLeadingZeros(common); // nível mais alto com pelo menos um nó em ambos
+        long from = 0;
+        for (; level >= 0; level--) {
+            long available = Math.min(a.count(level), b.count(level));
+            int n = (int) Math.max(0, Math.min(2, available - from));
+            int diff = -1;
+            if (n > 0) {
+                List<String> na = a.nodes(level, from, n);
+                List<String> nb = b.nodes(level, from, n);
+                for (int i = 0; i < n; i++) {
+                    if (!na.get(i).equals(nb.get(i))) {
+                        diff = i;
+                        break;
+                    }
+                }
+            }
+            if (level == 0) {
+                if (diff >= 0) return from + diff;
+                from += n;
+                break;
+            }
+            // descer para os filhos do nó diferente; se os nós são iguais a diferença está mais à direita
+            from = diff >= 0 ? 2 * (from + diff) : 2 * (from + n);
+        }
+        return sizeA == sizeB && from >= common ? -1 : from;
+    }
+
+    /** NodeSource over a local tree. Caller must hold whatever lock guards the tree while it is used. */
+    public NodeSource asNodeSource() {
+        return new NodeSource() {
+            @Override
+            public long count(int level) {
+                return VectorMerkleTree.this.count(level);
+            }
+
+            @Override
+            public List<String> nodes(int level, long from, int n) {
+                return VectorMerkleTree.this.nodes(level, from, n);
+            }
+        };
+    }
+}
\ No newline at end of file